@@ -0,0 +1,52 @@
+package com.thoughtworks.calabash.android;
+
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Tracks an action submitted to an {@link ActionPipeline}
+ */
+public class ActionHandle {
+    private final String description;
+    private final CountDownLatch done = new CountDownLatch(1);
+    private volatile CalabashException failure;
+
+    ActionHandle(String description) {
+        this.description = description;
+    }
+
+    public String getDescription() {
+        return description;
+    }
+
+    /**
+     * @return true if the action was executed or skipped
+     */
+    public boolean isDone() {
+        return done.getCount() == 0;
+    }
+
+    /**
+     * Waits for the action to finish
+     *
+     * @throws CalabashException if the action failed or was skipped because an earlier action failed
+     */
+    public void await() throws CalabashException {
+        awaitQuietly();
+        if (failure != null)
+            throw failure;
+    }
+
+    void awaitQuietly() throws CalabashException {
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CalabashException("Interrupted while waiting for " + description, e);
+        }
+    }
+
+    void complete(CalabashException failure) {
+        this.failure = failure;
+        done.countDown();
+    }
+}
@@ -0,0 +1,126 @@
+package com.thoughtworks.calabash.android;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import static com.thoughtworks.calabash.android.CalabashLogger.error;
+import static com.thoughtworks.calabash.android.CalabashLogger.info;
+import static java.lang.String.format;
+
+/**
+ * Runs the actions of a device in submission order on a dedicated worker thread. Once an action fails, the
+ * remaining actions are skipped until the failure is reported by {@link #barrier()}.
+ */
+public class ActionPipeline {
+    private final ExecutorService worker;
+    private final LinkedList<ActionHandle> pending = new LinkedList<ActionHandle>();
+    private volatile Thread workerThread;
+    private CalabashException failure;
+
+    public interface Action {
+        void run() throws CalabashException;
+    }
+
+    public ActionPipeline(final String name) {
+        worker = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, name);
+                thread.setDaemon(true);
+                workerThread = thread;
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Queues the action and returns without waiting for it
+     *
+     * @param description used in logs and failures
+     * @param action      action to be run on the worker
+     * @return handle to wait for this action
+     */
+    public synchronized ActionHandle submit(String description, final Action action) {
+        final ActionHandle handle = new ActionHandle(description);
+        pending.add(handle);
+        worker.execute(new Runnable() {
+            public void run() {
+                execute(handle, action);
+            }
+        });
+        return handle;
+    }
+
+    /**
+     * Waits until every action submitted so far has finished
+     *
+     * @throws CalabashException the first failure since the previous barrier
+     */
+    public void barrier() throws CalabashException {
+        List<ActionHandle> handles;
+        synchronized (this) {
+            handles = new ArrayList<ActionHandle>(pending);
+        }
+        for (ActionHandle handle : handles) {
+            handle.awaitQuietly();
+        }
+
+        CalabashException firstFailure;
+        synchronized (this) {
+            firstFailure = failure;
+            failure = null;
+        }
+        if (firstFailure != null)
+            throw firstFailure;
+    }
+
+    public boolean isWorkerThread() {
+        return Thread.currentThread() == workerThread;
+    }
+
+    public synchronized boolean hasPendingActions() {
+        return !pending.isEmpty();
+    }
+
+    /**
+     * Stops the worker, actions that have not started yet are discarded
+     */
+    public void shutdown() {
+        worker.shutdownNow();
+    }
+
+    private void execute(ActionHandle handle, Action action) {
+        CalabashException skippedBecause;
+        synchronized (this) {
+            skippedBecause = failure;
+        }
+
+        CalabashException result = null;
+        if (skippedBecause != null) {
+            info("Skipping %s as an earlier action failed", handle.getDescription());
+            result = new CalabashException(format("Skipped %s as an earlier action failed. %s", handle.getDescription(), skippedBecause.getMessage()));
+        } else {
+            try {
+                action.run();
+            } catch (CalabashException e) {
+                result = e;
+            } catch (RuntimeException e) {
+                error("Failed to %s", e, handle.getDescription());
+                result = new CalabashException(format("Failed to %s. %s", handle.getDescription(), e.getMessage()), e);
+            }
+            if (result != null) {
+                synchronized (this) {
+                    failure = result;
+                }
+            }
+        }
+
+        handle.complete(result);
+        synchronized (this) {
+            pending.remove(handle);
+        }
+    }
+}
@@ -0,0 +1,264 @@
+package com.thoughtworks.calabash.android;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static java.lang.String.format;
+
+/**
+ * Talks to the adb server over its host protocol instead of launching the adb binary for every command. Each
+ * request is a 4 digit hex length followed by the request, answered with OKAY or FAIL and a message.
+ */
+public class AdbClient {
+    public static final int DEFAULT_PORT = 5037;
+    public static final String ENV_ADB_SERVER_PORT = "ANDROID_ADB_SERVER_PORT";
+    private static final String OKAY = "OKAY";
+    private static final String FAIL = "FAIL";
+    private static final int CONNECT_TIMEOUT_IN_MS = 2000;
+    private static final int READ_TIMEOUT_IN_MS = 120000;
+    private final String host;
+    private final int port;
+
+    public AdbClient() {
+        this("127.0.0.1", getServerPort());
+    }
+
+    public AdbClient(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    /**
+     * @return devices known to the adb server, same as <code>adb devices</code>
+     * @throws CalabashException
+     */
+    public List<Device> getDevices() throws CalabashException {
+        return parseDevices(query("host:devices"));
+    }
+
+    /**
+     * Opens a connection on which the adb server pushes the whole device list, with details like the model, every
+     * time a device is attached, detached or changes state. Servers that can't send the details are asked for the
+     * plain list instead.
+     *
+     * @return socket to be read with {@link #readDeviceListUpdate(InputStream)}, to be closed by the caller
+     * @throws CalabashException
+     */
+    Socket trackDevices() throws CalabashException {
+        try {
+            return openHostStream("host:track-devices-l");
+        } catch (CalabashException e) {
+            CalabashLogger.info("%s, tracking devices without details", e.getMessage());
+        }
+        return openHostStream("host:track-devices");
+    }
+
+    /**
+     * @return next device list pushed on a tracking connection, null when the connection is closed
+     * @throws IOException
+     */
+    List<Device> readDeviceListUpdate(InputStream in) throws IOException {
+        byte[] length = new byte[4];
+        if (!readFully(in, length))
+            return null;
+        byte[] message = new byte[Integer.parseInt(new String(length, "US-ASCII"), 16)];
+        if (!readFully(in, message))
+            return null;
+        return parseDevices(new String(message, "UTF-8"));
+    }
+
+    /**
+     * Runs a shell command on the device, same as <code>adb -s serial shell command</code>
+     *
+     * @param serial  serial of the device
+     * @param command command and its arguments
+     * @return output of the command with the error stream interleaved, lines separated by \n
+     * @throws CalabashException
+     */
+    public String shell(String serial, String... command) throws CalabashException {
+        return readShellOutput(openShell(serial, command), serial, command);
+    }
+
+    /**
+     * Starts a shell command on the device without reading its output
+     *
+     * @return socket carrying the command's output, to be read with {@link #readShellOutput(Socket, String, String...)}
+     * @throws CalabashException when the stream can't be opened, in which case the command did not run
+     */
+    Socket openShell(String serial, String... command) throws CalabashException {
+        return openDeviceStream(serial, "shell:" + Utils.join(command));
+    }
+
+    /**
+     * Reads the output of a command started with {@link #openShell(String, String...)} and closes the socket
+     */
+    String readShellOutput(Socket socket, String serial, String... command) throws CalabashException {
+        try {
+            return readToEnd(socket.getInputStream()).replace("\r\n", "\n");
+        } catch (IOException e) {
+            throw new CalabashException(format("Failed to run %s on %s. %s", Utils.join(command), serial, e.getMessage()), e);
+        } finally {
+            Utils.closeQuietly(socket);
+        }
+    }
+
+    /**
+     * Connects to a service on the device, eg: <code>shell:sh</code>
+     *
+     * @return socket carrying the service's stream, to be closed by the caller
+     * @throws CalabashException
+     */
+    Socket openDeviceStream(String serial, String service) throws CalabashException {
+        Socket socket = connect();
+        try {
+            send(socket, "host:transport:" + serial);
+            send(socket, service);
+            return socket;
+        } catch (IOException e) {
+            Utils.closeQuietly(socket);
+            throw new CalabashException(format("Failed to open %s on %s. %s", service, serial, e.getMessage()), e);
+        } catch (CalabashException e) {
+            Utils.closeQuietly(socket);
+            throw e;
+        }
+    }
+
+    String getAddress() {
+        return host + ":" + port;
+    }
+
+    private String query(String request) throws CalabashException {
+        Socket socket = connect();
+        try {
+            send(socket, request);
+            return readMessage(socket.getInputStream());
+        } catch (IOException e) {
+            throw new CalabashException(format("adb request %s failed. %s", request, e.getMessage()), e);
+        } finally {
+            Utils.closeQuietly(socket);
+        }
+    }
+
+    private Socket openHostStream(String request) throws CalabashException {
+        Socket socket = connect();
+        try {
+            send(socket, request);
+            // the server writes to this connection only when something changes
+            socket.setSoTimeout(0);
+            return socket;
+        } catch (IOException e) {
+            Utils.closeQuietly(socket);
+            throw new CalabashException(format("adb request %s failed. %s", request, e.getMessage()), e);
+        } catch (CalabashException e) {
+            Utils.closeQuietly(socket);
+            throw e;
+        }
+    }
+
+    /**
+     * Parses lines of a serial, a state and, in the long format, details like <code>model:Nexus_5</code>
+     */
+    private List<Device> parseDevices(String output) {
+        List<Device> devices = new ArrayList<Device>();
+        for (String line : output.split("\n")) {
+            String[] fields = line.trim().split("\\s+");
+            if (fields.length < 2)
+                continue;
+            StringBuilder state = new StringBuilder();
+            Map<String, String> properties = new HashMap<String, String>();
+            for (int i = 1; i < fields.length; i++) {
+                int separator = fields[i].indexOf(':');
+                if (separator > 0 && state.length() > 0) {
+                    properties.put(fields[i].substring(0, separator), fields[i].substring(separator + 1));
+                } else {
+                    if (state.length() > 0)
+                        state.append(' ');
+                    state.append(fields[i]);
+                }
+            }
+            devices.add(new Device(fields[0], state.toString(), properties));
+        }
+        return devices;
+    }
+
+    private Socket connect() throws CalabashException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_IN_MS);
+            socket.setSoTimeout(READ_TIMEOUT_IN_MS);
+            socket.setTcpNoDelay(true);
+            return socket;
+        } catch (IOException e) {
+            Utils.closeQuietly(socket);
+            throw new CalabashException(format("adb server is not reachable on %s:%d. %s", host, port, e.getMessage()), e);
+        }
+    }
+
+    /**
+     * Sends a request and reads its status
+     */
+    private void send(Socket socket, String request) throws IOException, CalabashException {
+        byte[] payload = request.getBytes("UTF-8");
+        OutputStream out = socket.getOutputStream();
+        out.write(format("%04x", payload.length).getBytes("US-ASCII"));
+        out.write(payload);
+        out.flush();
+
+        InputStream in = socket.getInputStream();
+        byte[] status = new byte[4];
+        if (!readFully(in, status))
+            throw new CalabashException("adb server closed the connection for " + request);
+        String result = new String(status, "US-ASCII");
+        if (FAIL.equals(result))
+            throw new CalabashException(format("adb request %s failed. %s", request, readMessage(in)));
+        if (!OKAY.equals(result))
+            throw new CalabashException(format("Unexpected adb response %s to %s", result, request));
+    }
+
+    private String readMessage(InputStream in) throws IOException {
+        byte[] length = new byte[4];
+        if (!readFully(in, length))
+            return "";
+        byte[] message = new byte[Integer.parseInt(new String(length, "US-ASCII"), 16)];
+        readFully(in, message);
+        return new String(message, "UTF-8");
+    }
+
+    private boolean readFully(InputStream in, byte[] buffer) throws IOException {
+        try {
+            new DataInputStream(in).readFully(buffer);
+            return true;
+        } catch (EOFException e) {
+            return false;
+        }
+    }
+
+    private String readToEnd(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8 * 1024];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toString("UTF-8");
+    }
+
+    private static int getServerPort() {
+        String port = System.getenv(ENV_ADB_SERVER_PORT);
+        try {
+            return port != null ? Integer.parseInt(port.trim()) : DEFAULT_PORT;
+        } catch (NumberFormatException e) {
+            return DEFAULT_PORT;
+        }
+    }
+}
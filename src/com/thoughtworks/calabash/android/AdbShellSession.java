@@ -0,0 +1,188 @@
+package com.thoughtworks.calabash.android;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.thoughtworks.calabash.android.CalabashLogger.info;
+import static java.lang.String.format;
+
+/**
+ * A long lived shell on a device that runs commands one after another, so that polling the device doesn't open
+ * a new adb stream per command. Each command is followed by an echo of a unique sentinel; its output is everything
+ * up to the sentinel, and the exit status follows the sentinel. The sentinel is written split in two quoted halves,
+ * so the shell echoing the command line back never looks like the end of the output.
+ * <p/>
+ * Sessions are shared JVM wide per adb server and device, and callers on different threads take turns.
+ */
+public class AdbShellSession {
+    public static final long DEFAULT_TIMEOUT_IN_MS = 60000;
+    private static final String SENTINEL = "__CAJB_";
+    private static final Map<String, AdbShellSession> sessions = new HashMap<String, AdbShellSession>();
+
+    private final AdbClient adbClient;
+    private final String serial;
+    private Socket socket;
+    private BufferedReader reader;
+    private OutputStream writer;
+    private long nextId = 1;
+
+    AdbShellSession(AdbClient adbClient, String serial) {
+        this.adbClient = adbClient;
+        this.serial = serial;
+    }
+
+    /**
+     * @return the shared session for the device, connected on first use
+     */
+    public static AdbShellSession forDevice(AdbClient adbClient, String serial) {
+        String key = adbClient.getAddress() + "/" + serial;
+        synchronized (sessions) {
+            AdbShellSession session = sessions.get(key);
+            if (session == null) {
+                session = new AdbShellSession(adbClient, serial);
+                sessions.put(key, session);
+            }
+            return session;
+        }
+    }
+
+    /**
+     * Closes the shared session of the device, eg: when the device goes away
+     */
+    public static void closeForDevice(AdbClient adbClient, String serial) {
+        AdbShellSession session;
+        synchronized (sessions) {
+            session = sessions.remove(adbClient.getAddress() + "/" + serial);
+        }
+        if (session != null)
+            session.close();
+    }
+
+    /**
+     * Runs the command with {@link #DEFAULT_TIMEOUT_IN_MS}
+     */
+    public String execute(String... command) throws CalabashException {
+        return execute(DEFAULT_TIMEOUT_IN_MS, command);
+    }
+
+    /**
+     * Runs the command in the shell, ignoring its exit status
+     *
+     * @return output of the command with the error stream interleaved, lines separated by \n
+     * @see #run(long, String...)
+     */
+    public String execute(long timeoutInMs, String... command) throws CalabashException {
+        return run(timeoutInMs, command).getOutput();
+    }
+
+    /**
+     * Opens the shell unless it is open already
+     *
+     * @throws CalabashException when the shell can't be opened, in which case no command was sent to the device
+     */
+    public synchronized void connect() throws CalabashException {
+        if (socket == null)
+            open();
+    }
+
+    /**
+     * Runs the command in the shell, reconnecting first if the shell was closed. A command that times out closes
+     * the shell, since its output could otherwise end up in the next command's.
+     *
+     * @param timeoutInMs time to wait for the command to finish
+     * @param command     command and its arguments, joined with spaces
+     * @return exit status of the command and its output with the error stream interleaved, lines separated by \n
+     * @throws CalabashException
+     */
+    public synchronized ProcessRunner.Result run(long timeoutInMs, String... command) throws CalabashException {
+        connect();
+
+        String commandLine = Utils.join(command);
+        long id = nextId++;
+        long startTime = System.currentTimeMillis();
+        try {
+            socket.setSoTimeout((int) Math.max(1, timeoutInMs));
+            String framed = frame(commandLine + " </dev/null", id);
+            write(framed + "\n");
+            StringBuilder output = new StringBuilder();
+            int exitStatus = readUntilSentinel(id, framed, output);
+            return new ProcessRunner.Result(exitStatus, System.currentTimeMillis() - startTime, output.toString(), "", output.length(), false, false);
+        } catch (IOException e) {
+            close();
+            throw new CalabashException(format("Failed to run %s on %s. %s", commandLine, serial, e.getMessage()), e);
+        }
+    }
+
+    public synchronized boolean isOpen() {
+        return socket != null;
+    }
+
+    public synchronized void close() {
+        Utils.closeQuietly(socket);
+        socket = null;
+        reader = null;
+        writer = null;
+    }
+
+    private void open() throws CalabashException {
+        info("Opening a shell on %s", serial);
+        socket = adbClient.openDeviceStream(serial, "shell:sh");
+        try {
+            reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+            writer = socket.getOutputStream();
+            // older devices run the shell on a terminal, which echoes the input and prints prompts
+            socket.setSoTimeout((int) DEFAULT_TIMEOUT_IN_MS);
+            long id = nextId++;
+            write(frame("stty -echo 2>/dev/null; PS1=''; PS2=''", id) + "\n");
+            readUntilSentinel(id, null, new StringBuilder());
+        } catch (IOException e) {
+            close();
+            throw new CalabashException(format("Failed to open a shell on %s. %s", serial, e.getMessage()), e);
+        }
+    }
+
+    private void write(String text) throws IOException {
+        writer.write(text.getBytes("UTF-8"));
+        writer.flush();
+    }
+
+    private String frame(String commandLine, long id) {
+        return commandLine + "; echo \"" + SENTINEL + "\"\"" + id + "\" $?";
+    }
+
+    /**
+     * @param output receives the output up to the sentinel
+     * @return exit status printed after the sentinel
+     */
+    private int readUntilSentinel(long id, String framedCommand, StringBuilder output) throws IOException {
+        String marker = SENTINEL + id + " ";
+        boolean firstLine = true;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.endsWith("\r"))
+                line = line.substring(0, line.length() - 1);
+            int sentinel = line.indexOf(marker);
+            if (sentinel != -1) {
+                output.append(line.substring(0, sentinel));
+                try {
+                    return Integer.parseInt(line.substring(sentinel + marker.length()).trim());
+                } catch (NumberFormatException e) {
+                    throw new IOException("unexpected exit status after " + line);
+                }
+            }
+            if (firstLine && framedCommand != null && line.endsWith(framedCommand)) {
+                firstLine = false;
+                continue;
+            }
+            firstLine = false;
+            output.append(line).append('\n');
+        }
+        throw new SocketException("shell on " + serial + " closed");
+    }
+}
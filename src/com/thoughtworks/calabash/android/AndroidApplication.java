@@ -1,9 +1,10 @@
 package com.thoughtworks.calabash.android;
 
-import org.jruby.RubyArray;
-import org.jruby.RubyHash;
-
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 
@@ -28,11 +29,34 @@ public class AndroidApplication {
      * @throws CalabashException
      */
     public UIElements query(String query) throws CalabashException {
-        RubyArray array = calabashWrapper.query(query);
-        return new UIElements(array, query, calabashWrapper);
+        return new UIElements(calabashWrapper.query(query), query, calabashWrapper);
     }
 
 
+    /**
+     * Runs all the queries together, sending them to the device concurrently when the http driver is enabled. Useful to verify
+     * many elements on a screen at once.
+     * eg: application.queryAll("button text:'Login'", "edittext id:'username'");
+     *
+     * @param queries calabash queries
+     * @return UIElements for each distinct query, in the order the queries were given
+     * @throws CalabashException
+     */
+    public Map<String, UIElements> queryAll(String... queries) throws CalabashException {
+        Map<String, UIElements> elements = new LinkedHashMap<String, UIElements>();
+        if (queries == null || queries.length == 0)
+            return elements;
+
+        List<String> distinctQueries = new ArrayList<String>(new LinkedHashSet<String>(Arrays.asList(queries)));
+        List<?> results = calabashWrapper.queryAll(distinctQueries);
+
+        for (int i = 0; i < distinctQueries.size(); i++) {
+            String query = distinctQueries.get(i);
+            elements.put(query, new UIElements((List<?>) results.get(i), query, calabashWrapper));
+        }
+        return elements;
+    }
+
     /**
      * returns a list of WebElements corresponding to the calabash query
      * eg: application.queryWebElements("webview css:'div' textContent:'login successful'");
@@ -42,11 +66,31 @@ public class AndroidApplication {
      * @throws CalabashException
      */
     public WebElements queryWebElements(String query) throws CalabashException {
-        RubyArray array = calabashWrapper.query(query);
-        return new WebElements(array, query, calabashWrapper);
+        return new WebElements(calabashWrapper.query(query), query, calabashWrapper);
     }
 
 
+    /**
+     * Gets the asynchronous view of this application. Actions performed through it are queued in order on a
+     * worker dedicated to this device and return immediately with a handle. Any read, like query, waits for
+     * the queued actions to finish first.
+     *
+     * @return the asynchronous actions of this application
+     */
+    public PipelinedActions async() {
+        return new PipelinedActions(calabashWrapper.getActionPipeline(), calabashWrapper);
+    }
+
+    /**
+     * Gets how long the UI took to settle after the last action, when waiting for the UI to settle is enabled
+     * in the configuration
+     *
+     * @return settle time in milliseconds, -1 if not available
+     */
+    public long getLastUISettleTimeInMs() {
+        return calabashWrapper.getLastUISettleTimeInMs();
+    }
+
     /**
      * Fetches all elements in this application and executes callback for each
      * of them
@@ -55,6 +99,7 @@ public class AndroidApplication {
      * @throws CalabashException
      */
     public void inspect(InspectCallback callback) throws CalabashException {
+        calabashWrapper.awaitPendingActions();
         List<TreeNode> tree = new TreeBuilder(calabashWrapper).createTree();
         if (tree.isEmpty()) return;
 
@@ -260,7 +305,8 @@ public class AndroidApplication {
      * @throws CalabashException
      */
     public List<TreeNode> getRootElements() throws CalabashException {
-        final CalabashHttpClient calabashHttpClient = new CalabashHttpClient(calabashWrapper);
+        calabashWrapper.awaitPendingActions();
+        final CalabashHttpClient calabashHttpClient = calabashWrapper.getHttpClient();
         final TreeNodeBuilder treeNodeBuilder = new TreeNodeBuilder(calabashWrapper);
         final TreeBuilder treeBuilder = new TreeBuilder(calabashWrapper, calabashHttpClient, treeNodeBuilder);
         return treeBuilder.createTree();
@@ -290,12 +336,7 @@ public class AndroidApplication {
      * @throws CalabashException
      */
     public ActionResult performCalabashAction(String action, String... args) throws CalabashException {
-        final RubyHash rubyResult = calabashWrapper.performAction(action, args);
-        final RubyArray bonusInformationArray = (RubyArray) rubyResult.get("bonusInformation");
-        final String message = rubyResult.get("message").toString();
-        final boolean success = Boolean.parseBoolean(rubyResult.get("success").toString());
-        final Object[] bonusInformation = Utils.toJavaArray(bonusInformationArray);
-        return new ActionResult(bonusInformation, message, success);
+        return calabashWrapper.performAction(action, args);
     }
 
     /**
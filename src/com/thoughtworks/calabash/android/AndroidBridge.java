@@ -1,10 +1,8 @@
 package com.thoughtworks.calabash.android;
 
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
 
 import static java.lang.String.format;
 
@@ -12,35 +10,200 @@ public class AndroidBridge {
 
     public static final String BOOT_ANIM_STOPPED = "stopped";
     public static final String EMULATOR_PREFIX = "emulator-";
+    private static final String PACKAGE_PREFIX = "package:";
+    private static final String EXIT_STATUS_MARKER = "__CAJB_EXIT_";
     private final Environment environment;
+    private final AdbClient adbClient;
+    private final DeviceRegistry deviceRegistry;
     private DeviceList deviceList;
     private DeviceList newDeviceList;
+    private Process launchedEmulator;
+    private String launchedSerial;
+    private boolean launchCancelled;
     public static final int POLL_RATE_IN_SECONDS = 5;
+    private static final long EMULATOR_ATTACH_TIMEOUT_IN_MS = 30000;
 
     public AndroidBridge(Environment environment) {
+        this(environment, new AdbClient());
+    }
+
+    public AndroidBridge(Environment environment, AdbClient adbClient) {
         this.environment = environment;
+        this.adbClient = adbClient;
+        this.deviceRegistry = DeviceRegistry.forServer(adbClient);
+        EmulatorConsole.evictOnDetach(deviceRegistry);
     }
 
     public boolean isAppInstalled(String appPackageName, final String serialNo) throws CalabashException {
-        String[] cmd = new String[]{environment.getAdb(), "-s", serialNo, "shell", "pm", "path", appPackageName};
-        String output = Utils.runCommand(cmd, format("could not check if app %s is installed on %s", appPackageName, serialNo));
-        return output.contains(appPackageName);
+        ProcessRunner.Result result = runShell(serialNo, format("could not check if app %s is installed on %s", appPackageName, serialNo), "pm", "path", appPackageName);
+        return result.isSuccess() && result.getOutput().contains(appPackageName);
+    }
+
+    /**
+     * Gets the md5 checksum of the apk installed for the package
+     *
+     * @return hex encoded checksum, null if the package is not installed or the checksum can't be computed on the device
+     * @throws CalabashException
+     */
+    public String getInstalledApkChecksum(String appPackageName, String serialNo) throws CalabashException {
+        ProcessRunner.Result path = runShell(serialNo, format("could not get the path of %s on %s", appPackageName, serialNo), "pm", "path", appPackageName);
+        String output = path.getOutput().trim();
+        if (!path.isSuccess() || !output.startsWith(PACKAGE_PREFIX))
+            return null;
+
+        String apkPath = output.substring(PACKAGE_PREFIX.length()).split("\\s|package:")[0];
+        ProcessRunner.Result md5sum = runShell(serialNo, format("could not compute checksum of %s on %s", apkPath, serialNo), "md5sum", apkPath);
+        if (!md5sum.isSuccess())
+            return null;
+        String checksum = md5sum.getOutput().trim().split("\\s")[0];
+        return checksum.matches("[0-9a-fA-F]{32}") ? checksum.toLowerCase() : null;
+    }
+
+    /**
+     * Decides whether installing can be skipped, by comparing the checksum of the installed apk with the local one
+     *
+     * @param expectedMd5 hex encoded md5 of the local apk
+     * @return true if the installed apk has the checksum, false if it differs, the package is not installed or the
+     * checksum can't be computed on the device
+     * @throws CalabashException
+     */
+    public boolean isInstalled(String appPackageName, String expectedMd5, String serialNo) throws CalabashException {
+        String installedChecksum = getInstalledApkChecksum(appPackageName, serialNo);
+        if (installedChecksum == null) {
+            CalabashLogger.info("Could not get the checksum of %s on %s", appPackageName, serialNo);
+            return false;
+        }
+        if (!installedChecksum.equalsIgnoreCase(expectedMd5)) {
+            CalabashLogger.info("Installed %s on %s differs from the local apk", appPackageName, serialNo);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @param processName name of the process, for apps the package name
+     * @return true if a process with the name is running on the device
+     * @throws CalabashException
+     */
+    public boolean isProcessRunning(String processName, String serialNo) throws CalabashException {
+        if (containsProcess(shell(serialNo, format("could not list the processes on %s", serialNo), "ps"), processName))
+            return true;
+        // from android 8 plain ps lists only the processes of the shell, older versions may reject -A
+        return containsProcess(runShell(serialNo, format("could not list the processes on %s", serialNo), "ps", "-A").getOutput(), processName);
+    }
+
+    /**
+     * Runs the command on the device, see {@link #runShell(String, String, String...)}
+     *
+     * @return output of the command, lines separated by \n
+     * @throws CalabashException when the command fails or exits with a non zero status
+     */
+    private String shell(String serialNo, String onFailureMessage, String... command) throws CalabashException {
+        ProcessRunner.Result result = runShell(serialNo, onFailureMessage, command);
+        if (!result.isSuccess())
+            throw new CalabashException(format("%s. Exit status %d: %s", onFailureMessage, result.getExitCode(), result.getOutput().trim()));
+        return result.getOutput();
+    }
+
+    /**
+     * Runs the command in the device's long lived shell. Only when that shell can't be opened, the command runs in
+     * a one off shell through the adb server's socket, or with the adb binary if the server can't be reached. A
+     * command which failed or timed out after it was sent is not run again, since it may not be safe to repeat.
+     *
+     * @return exit status of the command and its output, lines separated by \n
+     */
+    private ProcessRunner.Result runShell(String serialNo, String onFailureMessage, String... command) throws CalabashException {
+        AdbShellSession session = AdbShellSession.forDevice(adbClient, serialNo);
+        try {
+            session.connect();
+        } catch (CalabashException e) {
+            CalabashLogger.info("%s, running a one off shell instead", e.getMessage());
+            return runOneOffShell(serialNo, onFailureMessage, command);
+        }
+        return session.run(AdbShellSession.DEFAULT_TIMEOUT_IN_MS, command);
+    }
+
+    private ProcessRunner.Result runOneOffShell(String serialNo, String onFailureMessage, String... command) throws CalabashException {
+        // one off shells don't report the exit status, so the command prints it after its output
+        String[] commandWithStatus = new String[command.length + 2];
+        System.arraycopy(command, 0, commandWithStatus, 0, command.length);
+        commandWithStatus[command.length] = ";";
+        commandWithStatus[command.length + 1] = "echo " + EXIT_STATUS_MARKER + "$?";
+        long startTime = System.currentTimeMillis();
+        Socket stream = null;
+        try {
+            stream = adbClient.openShell(serialNo, commandWithStatus);
+        } catch (CalabashException e) {
+            CalabashLogger.info("%s, running adb instead", e.getMessage());
+        }
+        if (stream != null)
+            return toShellResult(adbClient.readShellOutput(stream, serialNo, commandWithStatus), startTime, onFailureMessage);
+
+        String[] adbCommand = new String[commandWithStatus.length + 4];
+        adbCommand[0] = environment.getAdb();
+        adbCommand[1] = "-s";
+        adbCommand[2] = serialNo;
+        adbCommand[3] = "shell";
+        System.arraycopy(commandWithStatus, 0, adbCommand, 4, commandWithStatus.length);
+        ProcessRunner.Result result = new ProcessRunner(adbCommand).run();
+        if (!result.getOutput().contains(EXIT_STATUS_MARKER))
+            throw new CalabashException(onFailureMessage);
+        return toShellResult(result.getOutput().replace("\r\n", "\n"), startTime, onFailureMessage);
+    }
+
+    private ProcessRunner.Result toShellResult(String outputWithStatus, long startTime, String onFailureMessage) throws CalabashException {
+        int marker = outputWithStatus.lastIndexOf(EXIT_STATUS_MARKER);
+        if (marker == -1)
+            throw new CalabashException(onFailureMessage);
+        String output = outputWithStatus.substring(0, marker);
+        try {
+            int exitStatus = Integer.parseInt(outputWithStatus.substring(marker + EXIT_STATUS_MARKER.length()).trim());
+            return new ProcessRunner.Result(exitStatus, System.currentTimeMillis() - startTime, output, "", output.length(), false, false);
+        } catch (NumberFormatException e) {
+            throw new CalabashException(onFailureMessage);
+        }
+    }
+
+    private boolean containsProcess(String psOutput, String processName) {
+        for (String line : psOutput.split("\\r?\\n")) {
+            String[] columns = line.trim().split("\\s+");
+            if (columns[columns.length - 1].equals(processName))
+                return true;
+        }
+        return false;
     }
 
     public String launchEmulator(AndroidConfiguration configuration) throws CalabashException {
+        return launchEmulator(configuration, new StartupTimings());
+    }
+
+    /**
+     * Finds the device to run on, launching the emulator if a device name is configured
+     *
+     * @param timings receives the device discovery and emulator boot durations
+     * @return serial of the device
+     * @throws CalabashException
+     */
+    public String launchEmulator(AndroidConfiguration configuration, StartupTimings timings) throws CalabashException {
+        long startTime = System.nanoTime();
         deviceList = getDeviceList();
         String deviceSerial = configuration.getSerial();
         if (deviceSerial != null) {
             checkDeviceIsRunning(deviceList, deviceSerial);
+            timings.record(StartupTimings.DEVICE_DISCOVERY, startTime);
             return deviceSerial;
         }
         String deviceName = configuration.getDeviceName();
         if (deviceName != null) {
+            timings.record(StartupTimings.DEVICE_DISCOVERY, startTime);
+            startTime = System.nanoTime();
             final String newSerial = launchEmulatorWithName(deviceName);
             if (newSerial == null) {
                 CalabashLogger.error("Could not find launched emulator's serial from device list");
                 throw new CalabashException("Emulator launch Failed");
             }
+            if (deviceRegistry.isTracking())
+                deviceRegistry.awaitState(newSerial, DeviceRegistry.STATE_DEVICE, configuration.getTimeToWaitInSecForEmulatorLaunch() * 1000L);
 
             ConditionalWaiter waitForBootAnim = new ConditionalWaiter(new ICondition(format("Wait for Device %s to be ready", newSerial)) {
                 @Override
@@ -57,8 +220,10 @@ public class AndroidBridge {
             waitForBootAnim.run(configuration.getTimeToWaitInSecForEmulatorLaunch() / POLL_RATE_IN_SECONDS, POLL_RATE_IN_SECONDS);
             waitForPackageManager.run(5, POLL_RATE_IN_SECONDS);
             unlockKeyguard(newSerial);
+            timings.record(StartupTimings.EMULATOR_BOOT, startTime);
             return newSerial;
         }
+        timings.record(StartupTimings.DEVICE_DISCOVERY, startTime);
         if (deviceList.size() == 1) {
             CalabashLogger.info("Only one emualtor/device is connected");
             return deviceList.get(0).getSerial();
@@ -72,7 +237,15 @@ public class AndroidBridge {
         if (launchedDeviceSerial != null) {
             return launchedDeviceSerial;
         }
-        Process process = Utils.runCommandInBackGround(launchCommand, format("failed to launch the emulator %s", deviceName));
+        emulatorLaunched(Utils.runCommandInBackGround(launchCommand, format("failed to launch the emulator %s", deviceName)));
+        if (deviceRegistry.isTracking()) {
+            List<String> knownSerials = new ArrayList<String>();
+            for (Device device : deviceList.devices) {
+                knownSerials.add(device.getSerial());
+            }
+            return emulatorAttached(deviceRegistry.awaitNewDevice(knownSerials, EMULATOR_ATTACH_TIMEOUT_IN_MS).getSerial());
+        }
+
         ConditionalWaiter waitForNewEmulatorLaunch = new ConditionalWaiter(new ICondition(format("waiting for emulator with name %s to launch", deviceName)) {
             public boolean test() throws CalabashException {
                 newDeviceList = getDeviceList();
@@ -81,52 +254,60 @@ public class AndroidBridge {
         });
         waitForNewEmulatorLaunch.run(5, 5);
 
-        return getNewSerial(deviceList, newDeviceList);
+        return emulatorAttached(getNewSerial(deviceList, newDeviceList));
     }
 
-    private String getSerialIfDeviceAlreadyLaunched(DeviceList deviceList, String deviceName) throws CalabashException {
-        CalabashLogger.info("Checking if %s is already launched", deviceName);
-        for (Device device : deviceList.devices) {
-            String serial = device.getSerial();
+    /**
+     * Stops an emulator launch running on another thread. The emulator started by this bridge is killed, or as soon
+     * as it is started if the launch hasn't got that far yet. Devices that were already running are left alone.
+     */
+    public void cancelEmulatorLaunch() {
+        Process process;
+        String serial;
+        synchronized (this) {
+            launchCancelled = true;
+            process = launchedEmulator;
+            serial = launchedSerial;
+            launchedEmulator = null;
+            launchedSerial = null;
+        }
+        if (process == null)
+            return;
+        CalabashLogger.info("Killing the emulator launched for this run");
+        if (serial != null) {
             try {
-                if (isDeviceRunningWithSerial(deviceName, serial)) {
-                    CalabashLogger.info("%s is running with serial %s", deviceName, serial);
-                    return serial;
-                }
-            } catch (IOException e) {
-                CalabashLogger.error(e);
-                throw new CalabashException("could not get the device name from serial " + deviceName, e);
+                EmulatorConsole.forSerial(serial).command("kill");
+            } catch (CalabashException e) {
+                CalabashLogger.info("Could not kill %s from its console. %s", serial, e.getMessage());
             }
         }
-        return null;
+        process.destroy();
     }
 
-    private boolean isDeviceRunningWithSerial(String deviceName, String serial) throws IOException, CalabashException {
-        int index = serial.indexOf(EMULATOR_PREFIX);
-        if (index != -1) {
-            String port = serial.substring(EMULATOR_PREFIX.length());
-            Socket emulatorSocket = new Socket("localhost", Integer.parseInt(port));
-            BufferedReader in = new BufferedReader(new InputStreamReader(emulatorSocket.getInputStream()));
-            PrintWriter out = new PrintWriter(emulatorSocket.getOutputStream(), true);
-            BufferedReader br = new BufferedReader(new InputStreamReader(System.in));
-            try {
-                in.readLine();
-                in.readLine();
-                out.println("avd name");
-                String runningDeviceName = in.readLine();
-                if (deviceName.equals(runningDeviceName.trim())) {
-                    return true;
-                }
-            } catch (Exception e) {
-                throw new CalabashException(String.format("could not get the device name from serial %s", serial), e);
-            } finally {
-                emulatorSocket.close();
-                in.close();
-                out.close();
-                br.close();
-            }
+    private synchronized void emulatorLaunched(Process process) throws CalabashException {
+        if (launchCancelled) {
+            process.destroy();
+            throw new CalabashException("Emulator launch cancelled");
         }
-        return false;
+        launchedEmulator = process;
+    }
+
+    private synchronized String emulatorAttached(String serial) {
+        if (launchedEmulator != null)
+            launchedSerial = serial;
+        return serial;
+    }
+
+    private String getSerialIfDeviceAlreadyLaunched(DeviceList deviceList, String deviceName) throws CalabashException {
+        CalabashLogger.info("Checking if %s is already launched", deviceName);
+        List<String> serials = new ArrayList<String>();
+        for (Device device : deviceList.devices) {
+            serials.add(device.getSerial());
+        }
+        String serial = EmulatorConsole.findSerialOfAvd(deviceName, serials);
+        if (serial != null)
+            CalabashLogger.info("%s is running with serial %s", deviceName, serial);
+        return serial;
     }
 
     private String getNewSerial(DeviceList oldDeviceList, DeviceList newDeviceList) {
@@ -138,14 +319,18 @@ public class AndroidBridge {
     }
 
     private DeviceList getDeviceList() throws CalabashException {
+        try {
+            return new DeviceList(deviceRegistry.getDevices());
+        } catch (CalabashException e) {
+            CalabashLogger.info("%s, running adb instead", e.getMessage());
+        }
         String listDeviceOutput = Utils.runCommand(getDeviceListCommand(), "could not list all devices");
         return new DeviceList(listDeviceOutput);
     }
 
     private boolean isBootAnimationOver(String serial) throws CalabashException {
-        String[] bootAnimationCommand = getBootAnimationCommand(serial);
-        String result = Utils.runCommand(bootAnimationCommand);
-        return result.equals(BOOT_ANIM_STOPPED);
+        String result = shell(serial, format("could not get the boot animation state of %s", serial), "getprop", "init.svc.bootanim");
+        return result.trim().equals(BOOT_ANIM_STOPPED);
     }
 
     private void checkDeviceIsRunning(DeviceList deviceList, String serial) throws CalabashException {
@@ -161,14 +346,12 @@ public class AndroidBridge {
     }
 
     public void unlockKeyguard(String serial) throws CalabashException {
-        String[] unlockCommand = {environment.getAdb(), "-s", serial, "shell", "input", "keyevent", "82"};
-        Utils.runCommand(unlockCommand, "failed to unlock the keyguard");
+        shell(serial, "failed to unlock the keyguard", "input", "keyevent", "82");
     }
 
     private boolean isPackageManagerAvailable(String serial) throws CalabashException {
-        String[] deviceReadyCommand = getPackageManagerAvailableCommand(serial);
-        String output = Utils.runCommand(deviceReadyCommand);
-        return output.contains("package");
+        ProcessRunner.Result result = runShell(serial, format("could not check the package manager of %s", serial), "pm", "path", "android");
+        return result.isSuccess() && result.getOutput().contains("package");
     }
 
     private String[] getLaunchCommand(String deviceName) {
@@ -178,13 +361,5 @@ public class AndroidBridge {
     private String[] getDeviceListCommand() {
         return new String[]{environment.getAdb(), "devices"};
     }
-
-    private String[] getBootAnimationCommand(String serial) {
-        return new String[]{environment.getAdb(), "-s", serial, "shell", "getprop", "init.svc.bootanim"};
-    }
-
-    private String[] getPackageManagerAvailableCommand(String serial) {
-        return new String[]{environment.getAdb(), "-s", serial, "shell", "pm", "path", "android"};
-    }
     
 }
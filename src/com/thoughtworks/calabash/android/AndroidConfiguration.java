@@ -12,6 +12,15 @@ public class AndroidConfiguration {
     private ScreenshotListener screenshotListener;
     private long pauseTimeInMs = -1;
     private int timeToWaitInSecForEmulatorLaunch = 180;
+    private boolean useHttpDriver = false;
+    private boolean waitForUISettle = false;
+    private long uiSettleTimeoutInMs = 2000;
+    private int testServerRequestTimeoutInMs = CalabashHttpClient.DEFAULT_REQUEST_TIMEOUT_IN_MS;
+    private boolean compileRubySources = false;
+    private boolean keepWarmSpareRuntime = false;
+    private File setupCacheDirectory;
+    private boolean runGemsFromArchive = false;
+    private boolean attachToRunningTestServer = false;
 
     /**
      * Gets the boolean value indicating whether logging is enabled
@@ -205,6 +214,162 @@ public class AndroidConfiguration {
         return pauseTimeInMs;
     }
 
+    /**
+     * Determines if actions wait for the view hierarchy to stop changing instead of pausing for a fixed time
+     *
+     * @return true if waiting for the UI to settle, false otherwise
+     */
+    public boolean shouldWaitForUISettle() {
+        return waitForUISettle;
+    }
+
+    /**
+     * Set true to return from every action as soon as consecutive view dumps from the test server are
+     * identical, instead of pausing for the pause time. Waits at most for the settle timeout.
+     * Default value false.
+     *
+     * @param waitForUISettle
+     */
+    public void setWaitForUISettle(boolean waitForUISettle) {
+        this.waitForUISettle = waitForUISettle;
+    }
+
+    /**
+     * Gets the maximum time to wait for the UI to settle after an action
+     *
+     * @return settle timeout in milliseconds
+     */
+    public long getUISettleTimeoutInMs() {
+        return uiSettleTimeoutInMs;
+    }
+
+    /**
+     * Sets the maximum time to wait for the UI to settle after an action. Defaults to 2000 milliseconds.
+     *
+     * @param uiSettleTimeoutInMs
+     *            Milliseconds to wait at most after each action
+     */
+    public void setUISettleTimeout(long uiSettleTimeoutInMs) {
+        this.uiSettleTimeoutInMs = uiSettleTimeoutInMs;
+    }
+
+    /**
+     * Gets the time a request sent straight to the test server waits to connect and for each read of the response
+     *
+     * @return request timeout in milliseconds
+     */
+    public int getTestServerRequestTimeoutInMs() {
+        return testServerRequestTimeoutInMs;
+    }
+
+    /**
+     * Sets the time a request sent straight to the test server, eg: a view dump or a query with the http driver,
+     * waits to connect and for each read of the response. Defaults to 30000 milliseconds.
+     *
+     * @param testServerRequestTimeoutInMs
+     *            Milliseconds to wait at most, 0 waits forever
+     */
+    public void setTestServerRequestTimeout(int testServerRequestTimeoutInMs) {
+        this.testServerRequestTimeoutInMs = testServerRequestTimeoutInMs;
+    }
+
+    /**
+     * Determines if the calabash-android ruby sources are compiled to JVM bytecode and cached
+     *
+     * @return true if the ruby sources are compiled, false otherwise
+     */
+    public boolean shouldCompileRubySources() {
+        return compileRubySources;
+    }
+
+    /**
+     * Set true to compile the calabash-android ruby sources to JVM bytecode and cache the classes next to the
+     * extracted gems. The first run pays for the compilation, later runs with the same gem version load the
+     * cached classes. JRuby keeps one code cache for the whole JVM, so the classes are only cached if this is set
+     * before the first ruby runtime of the JVM is created. Default value false.
+     *
+     * @param compileRubySources
+     */
+    public void setCompileRubySources(boolean compileRubySources) {
+        this.compileRubySources = compileRubySources;
+    }
+
+    /**
+     * Determines if a spare ruby runtime is booted in the background for the next runner
+     *
+     * @return true if a spare runtime is kept warm, false otherwise
+     */
+    public boolean shouldKeepWarmSpareRuntime() {
+        return keepWarmSpareRuntime;
+    }
+
+    /**
+     * Set true to boot a spare ruby runtime with calabash-android loaded in the background whenever the JVM has no
+     * idle one, so a runner started while another is still running doesn't wait for JRuby. The spare costs the
+     * memory and startup CPU of another runtime. Runtimes released by disposed runners are reused either way.
+     * Default value false.
+     *
+     * @param keepWarmSpareRuntime
+     */
+    public void setKeepWarmSpareRuntime(boolean keepWarmSpareRuntime) {
+        this.keepWarmSpareRuntime = keepWarmSpareRuntime;
+    }
+
+    /**
+     * Gets the directory caching resigned applications and test servers
+     *
+     * @return the setup cache directory if set, null otherwise
+     */
+    public File getSetupCacheDirectory() {
+        return setupCacheDirectory;
+    }
+
+    /**
+     * Sets a directory, usually shared by all the workspaces on a machine, where resigned applications and their
+     * test servers are cached. Setup is skipped when the same application was already set up with the same
+     * keystore and calabash version. Setting to null disables the cache. Defaults to null
+     *
+     * @param setupCacheDirectory
+     *      The setup cache directory
+     * @throws CalabashException
+     *      If directory can't be created or is not writable.
+     */
+    public void setSetupCacheDirectory(File setupCacheDirectory) throws CalabashException {
+        if (setupCacheDirectory == null) {
+            this.setupCacheDirectory = null;
+            return;
+        }
+
+        if (!setupCacheDirectory.isDirectory() && !setupCacheDirectory.mkdirs())
+            throw new CalabashException("Can't create setup cache directory " + setupCacheDirectory.getAbsolutePath());
+
+        if (!setupCacheDirectory.canWrite())
+            throw new CalabashException(setupCacheDirectory.getAbsolutePath() + " is not writable");
+
+        this.setupCacheDirectory = setupCacheDirectory;
+    }
+
+    /**
+     * Determines if the ruby runtime loads the bundled gems from a single archive instead of extracted files
+     *
+     * @return true if gems are loaded from the archive, false otherwise
+     */
+    public boolean shouldRunGemsFromArchive() {
+        return runGemsFromArchive;
+    }
+
+    /**
+     * Set true to keep the bundled gems as a single archive in the temp directory and load jruby.home and the gems
+     * from inside it, instead of unpacking thousands of files before startup. The gems are still extracted when
+     * setup has to resign the application and build the test server.
+     * Default value false.
+     *
+     * @param runGemsFromArchive
+     */
+    public void setRunGemsFromArchive(boolean runGemsFromArchive) {
+        this.runGemsFromArchive = runGemsFromArchive;
+    }
+
     /**
      * specify the time that you want to wait for the emulator to get launched, defaults to 180 seconds.
      * Usually it takes a while to load the emualator, so it is better to enable snapshot through avd
@@ -222,4 +387,47 @@ public class AndroidConfiguration {
     public int getTimeToWaitInSecForEmulatorLaunch() {
         return timeToWaitInSecForEmulatorLaunch;
     }
+
+    /**
+     * Determines if query, touch, text entry, element existence checks and calabash actions talk to the
+     * test server directly instead of going through the ruby client.
+     *
+     * @return true if the http driver is used, false otherwise
+     */
+    public boolean shouldUseHttpDriver() {
+        return useHttpDriver;
+    }
+
+    /**
+     * Set true to send the high frequency operations straight to the test server over http.
+     * The ruby client is still used for setup, installation and the remaining operations.
+     * Default value false.
+     *
+     * @param useHttpDriver
+     */
+    public void setUseHttpDriver(boolean useHttpDriver) {
+        this.useHttpDriver = useHttpDriver;
+    }
+
+    /**
+     * Determines if start attaches to a test server that is already running for the app on the device.
+     *
+     * @return true if a running test server is reused, false otherwise
+     */
+    public boolean shouldAttachToRunningTestServer() {
+        return attachToRunningTestServer;
+    }
+
+    /**
+     * Set true to reuse a test server left running by an earlier run, eg: an IDE re-run, instead of reinstalling
+     * and restarting it. The server is reused only if it answers on the forwarded port with the expected calabash
+     * version and the installed app and test server match the local apks. Ignored when the app is reinstalled on
+     * every execution.
+     * Default value false.
+     *
+     * @param attachToRunningTestServer
+     */
+    public void setAttachToRunningTestServer(boolean attachToRunningTestServer) {
+        this.attachToRunningTestServer = attachToRunningTestServer;
+    }
 }
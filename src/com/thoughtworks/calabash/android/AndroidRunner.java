@@ -1,11 +1,12 @@
 package com.thoughtworks.calabash.android;
 
-import net.lingala.zip4j.core.ZipFile;
-import net.lingala.zip4j.exception.ZipException;
-
 import java.io.*;
 import java.net.URL;
 import java.util.Enumeration;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import java.util.jar.Attributes;
 import java.util.jar.Manifest;
 
@@ -15,10 +16,12 @@ public class AndroidRunner {
 
     public static final String TEST_SERVERS = "test_servers";
     public static final String GEMS_ZIP = "gems_android.zip";
+    public static final String GEMS_RESOURCE = "scripts/" + GEMS_ZIP;
     private final AndroidConfiguration configuration;
     private final File apk;
     private Environment environment;
     private CalabashWrapper calabashWrapper;
+    private final StartupTimings timings = new StartupTimings();
 
     /**
      * @param apkPath       path of the .apk file
@@ -35,10 +38,26 @@ public class AndroidRunner {
             throw new CalabashException("invalid path to apk file");
         }
         this.configuration = configuration;
+        long startTime = System.nanoTime();
         this.environment = EnvironmentInitializer.initialize(configuration);
+        timings.record(StartupTimings.ENVIRONMENT_DISCOVERY, startTime);
         CalabashLogger.initialize(this.configuration);
-        File gemPath = extractGemsFromBundle();
-        calabashWrapper = new CalabashWrapper(gemPath, apk, configuration, environment);
+        if (configuration.shouldRunGemsFromArchive()) {
+            startTime = System.nanoTime();
+            File extractionDir = getExtractionDir();
+            GemArchive gemArchive = GemArchive.fromBundle(GEMS_RESOURCE, new File(extractionDir.getParentFile(), extractionDir.getName() + ".jar"));
+            timings.record(StartupTimings.GEM_EXTRACTION, startTime);
+            startTime = System.nanoTime();
+            calabashWrapper = new CalabashWrapper(extractionDir, gemArchive, apk, configuration, environment);
+        } else {
+            startTime = System.nanoTime();
+            File gemPath = extractGemsFromBundle();
+            timings.record(StartupTimings.GEM_EXTRACTION, startTime);
+            startTime = System.nanoTime();
+            calabashWrapper = new CalabashWrapper(gemPath, apk, configuration, environment);
+        }
+        timings.record(StartupTimings.CONTAINER_INIT, startTime);
+        calabashWrapper.setStartupTimings(timings);
     }
 
 
@@ -81,18 +100,82 @@ public class AndroidRunner {
      * @throws CalabashException
      */
     public AndroidApplication start() throws CalabashException {
-        if (!alreadySetup()) {
-            CalabashLogger.info("Application not setup. Performing setup...");
-            setup();
+        AndroidBridge emulatorLauncher = new AndroidBridge(environment);
+        Future<String> emulatorLaunch = launchEmulatorInBackground(emulatorLauncher);
+        try {
+            if (!alreadySetup()) {
+                CalabashLogger.info("Application not setup. Performing setup...");
+                setup();
+            }
+            long startTime = System.nanoTime();
+            calabashWrapper.warmUp();
+            timings.record(StartupTimings.WARM_UP, startTime);
+        } catch (CalabashException e) {
+            emulatorLaunch.cancel(true);
+            emulatorLauncher.cancelEmulatorLaunch();
+            throw e;
         }
-        AndroidBridge androidBridge = new AndroidBridge(environment);
-        String serial = androidBridge.launchEmulator(configuration);
+
+        long startTime = System.nanoTime();
+        String serial = awaitEmulator(emulatorLaunch);
+        timings.record(StartupTimings.DEVICE_WAIT, startTime);
         CalabashLogger.info("Using the serial: %s", serial);
         calabashWrapper.start(serial);
+        writeStartupTimings();
 
         return new AndroidApplication(calabashWrapper, serial);
     }
 
+    /**
+     * Gets the durations of the startup phases of this runner. Also written to startup-timings.json in the
+     * logs directory when logging is enabled.
+     *
+     * @return the timings recorded so far
+     */
+    public StartupTimings getStartupTimings() {
+        return timings;
+    }
+
+    private void writeStartupTimings() {
+        if (!configuration.isLoggingEnabled())
+            return;
+        try {
+            timings.writeTo(new File(configuration.getLogsDirectory(), StartupTimings.FILE_NAME));
+        } catch (CalabashException e) {
+            CalabashLogger.error("Failed to write startup timings", e);
+        }
+    }
+
+    /**
+     * Launching or finding the device doesn't depend on setup, so it runs while the application is resigned,
+     * the test server is built and the ruby runtime is warmed up. If those fail, the launch is cancelled through
+     * the bridge, which kills the emulator only if it started one.
+     */
+    private Future<String> launchEmulatorInBackground(final AndroidBridge androidBridge) {
+        FutureTask<String> launch = new FutureTask<String>(new Callable<String>() {
+            public String call() throws Exception {
+                return androidBridge.launchEmulator(configuration, timings);
+            }
+        });
+        Thread thread = new Thread(launch, "calabash-emulator-launch");
+        thread.setDaemon(true);
+        thread.start();
+        return launch;
+    }
+
+    private String awaitEmulator(Future<String> emulatorLaunch) throws CalabashException {
+        try {
+            return emulatorLaunch.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CalabashException("Interrupted while waiting for the emulator", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof CalabashException)
+                throw (CalabashException) e.getCause();
+            throw new CalabashException("Failed to launch the emulator. " + e.getCause().getMessage(), e);
+        }
+    }
+
     public void setJrubyJarFile(File jrubyJarFile) {
         environment.setJrubyHome(jrubyJarFile.getAbsolutePath());
     }
@@ -109,7 +192,14 @@ public class AndroidRunner {
             }
         });
 
-        return files.length > 0;
+        if (files == null)
+            return false;
+        for (File testServer : files) {
+            if (testServer.lastModified() >= apk.lastModified())
+                return true;
+        }
+        CalabashLogger.info("%s changed after the test server was built", apk.getAbsolutePath());
+        return false;
     }
 
     private File getApkDir() {
@@ -117,33 +207,7 @@ public class AndroidRunner {
     }
 
     private File extractGemsFromBundle() throws CalabashException {
-        File extractedDir = getExtractionDir();
-        File extracted = new File(extractedDir, "extracted");
-        if (extracted.exists()) {
-            CalabashLogger.info("Gems already present in temp dir");
-            return extractedDir;
-        }
-        CalabashLogger.info("Extracting gems to temp dir");
-        copyFileFromBundleTo("scripts", GEMS_ZIP, extractedDir);
-        try {
-            File gemsZip = new File(extractedDir, "gems_android.zip");
-            unzipWithPermission(extractedDir, gemsZip);
-            gemsZip.delete();
-            extracted.createNewFile();
-        } catch (Exception e) {
-            throw new CalabashException("Failed to unzip gems", e);
-        }
-        return extractedDir;
-    }
-
-    private void unzipWithPermission(File extractedDir, File gemszip) throws ZipException, CalabashException {
-        ZipFile zipFile = new ZipFile(gemszip);
-        zipFile.extractAll(extractedDir.getAbsolutePath());
-        if (!Utils.isWindows()) {
-            File jrubyExecutable = new File(extractedDir + File.separator + "jruby.home" + File.separator + "bin" + File.separator + "jruby");
-            String[] chmod = {"chmod", "+x", jrubyExecutable.getAbsolutePath()};
-            Utils.runCommand(chmod, "Could not change executable permission");
-        }
+        return new GemExtractor(getExtractionDir()).extract(GEMS_RESOURCE);
     }
 
     private File getExtractionDir() throws CalabashException {
@@ -152,13 +216,7 @@ public class AndroidRunner {
             tempFile.delete();
 
             File gemsDir = new File(tempFile.getParentFile(), "calabash-android-gems-" + getCurrentVersion());
-            if (!gemsDir.exists()) {
-                boolean created = gemsDir.mkdir();
-                if (!created)
-                    throw new CalabashException("Can't create gems extraction directory. " + gemsDir.getAbsolutePath());
-            }
-
-            if (!gemsDir.isDirectory())
+            if (gemsDir.exists() && !gemsDir.isDirectory())
                 throw new CalabashException(String.format("Gems directory is invalid. %s is not a directory", gemsDir.getAbsolutePath()));
 
             return gemsDir;
@@ -190,33 +248,6 @@ public class AndroidRunner {
         return "";
     }
 
-    private void copyFileFromBundleTo(String sourceDir, String fileName,
-                                      File outDir) throws CalabashException {
-        final ClassLoader classLoader = Thread.currentThread()
-                .getContextClassLoader();
-        InputStream stream = classLoader.getResourceAsStream(sourceDir + "/"
-                + fileName);
-        if (stream == null) {
-            String message = String.format("Can't copy %s from the bundle. Make sure you are using the correct JAR file", fileName);
-            throw new CalabashException(message, null);
-        }
-
-        try {
-            File file = new File(outDir, fileName);
-            file.createNewFile();
-            FileOutputStream outFile = new FileOutputStream(file);
-            byte[] buffer = new byte[10240];
-            int len;
-            while ((len = stream.read(buffer)) != -1) {
-                outFile.write(buffer, 0, len);
-            }
-            outFile.close();
-        } catch (IOException e) {
-            String message = String.format("Can't copy %s from the bundle to %s. Failed to create destination file", fileName, outDir.getAbsolutePath());
-            throw new CalabashException(message, e);
-        }
-    }
-
     /**
      * Releases resources associated with this runner
      *
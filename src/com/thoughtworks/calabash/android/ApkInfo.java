@@ -0,0 +1,113 @@
+package com.thoughtworks.calabash.android;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import static com.thoughtworks.calabash.android.CalabashLogger.info;
+
+/**
+ * Package name, launcher activity and checksum of an apk, read without aapt or the ruby runtime. The values are
+ * cached per apk file and read again only when the file changes, eg: after it is resigned.
+ */
+public class ApkInfo {
+    private static final String MANIFEST = "AndroidManifest.xml";
+    private static final Map<String, ApkInfo> cache = new HashMap<String, ApkInfo>();
+
+    private final long length;
+    private final long lastModified;
+    private final String packageName;
+    private final String launcherActivity;
+    private final String md5;
+
+    private ApkInfo(long length, long lastModified, String packageName, String launcherActivity, String md5) {
+        this.length = length;
+        this.lastModified = lastModified;
+        this.packageName = packageName;
+        this.launcherActivity = launcherActivity;
+        this.md5 = md5;
+    }
+
+    /**
+     * @param apk android application
+     * @return the cached values, or the freshly read ones if the apk is new or has changed
+     * @throws CalabashException when the apk or its manifest can't be read
+     */
+    public static ApkInfo of(File apk) throws CalabashException {
+        String key = apk.getAbsolutePath();
+        long length = apk.length();
+        long lastModified = apk.lastModified();
+        synchronized (cache) {
+            ApkInfo info = cache.get(key);
+            if (info != null && info.length == length && info.lastModified == lastModified)
+                return info;
+        }
+
+        ApkInfo info = read(apk, length, lastModified);
+        synchronized (cache) {
+            cache.put(key, info);
+        }
+        return info;
+    }
+
+    public String getPackageName() {
+        return packageName;
+    }
+
+    /**
+     * @return fully qualified name of the activity started from the launcher, null if there is none
+     */
+    public String getLauncherActivity() {
+        return launcherActivity;
+    }
+
+    /**
+     * @return hex encoded md5 of the apk, calabash names the test server after it
+     */
+    public String getMd5() {
+        return md5;
+    }
+
+    /**
+     * @param testServersDir  test_servers directory next to the apk
+     * @param calabashVersion version of the calabash-android gem, eg: 0.4.21
+     * @return the test server calabash builds for this apk
+     */
+    public File getTestServer(File testServersDir, String calabashVersion) {
+        return new File(testServersDir, md5 + "_" + calabashVersion + ".apk");
+    }
+
+    private static ApkInfo read(File apk, long length, long lastModified) throws CalabashException {
+        long startTime = System.currentTimeMillis();
+        ZipFile zip = null;
+        try {
+            zip = new ZipFile(apk);
+            ZipEntry entry = zip.getEntry(MANIFEST);
+            if (entry == null)
+                throw new CalabashException("No " + MANIFEST + " found in " + apk.getAbsolutePath());
+            InputStream in = zip.getInputStream(entry);
+            BinaryManifestParser manifest;
+            try {
+                manifest = BinaryManifestParser.parse(in);
+            } finally {
+                in.close();
+            }
+            ApkInfo info = new ApkInfo(length, lastModified, manifest.getPackageName(), manifest.getLauncherActivity(), Utils.digest(apk, "MD5"));
+            info("Read %s from %s in %d ms", info.packageName, apk.getAbsolutePath(), System.currentTimeMillis() - startTime);
+            return info;
+        } catch (IOException e) {
+            throw new CalabashException("Could not read " + apk.getAbsolutePath() + ". " + e.getMessage(), e);
+        } finally {
+            if (zip != null) {
+                try {
+                    zip.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+}
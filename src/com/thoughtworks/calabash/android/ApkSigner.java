@@ -0,0 +1,333 @@
+package com.thoughtworks.calabash.android;
+
+import java.io.*;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import static com.thoughtworks.calabash.android.CalabashLogger.info;
+import static java.lang.String.format;
+
+/**
+ * Signs apks with the JAR signing scheme (v1) the same way jarsigner does, without launching a JVM for it.
+ * Existing signatures are replaced. Instances are immutable, so different apks can be signed in parallel.
+ */
+public class ApkSigner {
+    private static final String META_INF = "META-INF/";
+    private static final String MANIFEST = "META-INF/MANIFEST.MF";
+    private static final String RSA_ENCRYPTION = "1.2.840.113549.1.1.1";
+    private static final String SIGNED_DATA = "1.2.840.113549.1.7.2";
+    private static final String DATA = "1.2.840.113549.1.7.1";
+    private static final Map<String, String> DIGEST_OIDS = new LinkedHashMap<String, String>();
+    private static final String CREATED_BY = "1.0 (calabash-android-java)";
+
+    static {
+        DIGEST_OIDS.put("MD5", "1.2.840.113549.2.5");
+        DIGEST_OIDS.put("SHA-1", "1.3.14.3.2.26");
+        DIGEST_OIDS.put("SHA-256", "2.16.840.1.101.3.4.2.1");
+    }
+
+    private final PrivateKey privateKey;
+    private final X509Certificate certificate;
+    private final String signatureFileName;
+    private final String signatureAlgorithm;
+    private final String digestAlgorithm;
+
+    /**
+     * @param signatureFileName  base name of the .SF and .RSA files, eg: CERT
+     * @param signatureAlgorithm eg: SHA1withRSA
+     * @param digestAlgorithm    digest of the entries, eg: SHA1 or SHA-256
+     */
+    public ApkSigner(PrivateKey privateKey, X509Certificate certificate, String signatureFileName, String signatureAlgorithm, String digestAlgorithm) throws CalabashException {
+        if (!"RSA".equals(privateKey.getAlgorithm()))
+            throw new CalabashException("Only RSA keys are supported, found " + privateKey.getAlgorithm());
+        if (!signatureAlgorithm.toUpperCase().endsWith("WITHRSA") || !DIGEST_OIDS.containsKey(javaDigestName(signatureAlgorithm.substring(0, signatureAlgorithm.length() - 7))))
+            throw new CalabashException("Unsupported signature algorithm " + signatureAlgorithm);
+        if (!DIGEST_OIDS.containsKey(javaDigestName(digestAlgorithm)))
+            throw new CalabashException("Unsupported digest algorithm " + digestAlgorithm);
+        this.privateKey = privateKey;
+        this.certificate = certificate;
+        this.signatureFileName = signatureFileName.toUpperCase();
+        this.signatureAlgorithm = signatureAlgorithm;
+        this.digestAlgorithm = javaDigestName(digestAlgorithm);
+    }
+
+    /**
+     * Reads the signing key from a JKS or PKCS12 keystore
+     *
+     * @param keyPassword password of the key, the store password is used when null
+     */
+    public static ApkSigner fromKeystore(File keystore, String storePassword, String alias, String keyPassword,
+                                         String signatureAlgorithm, String digestAlgorithm, String signatureFileName) throws CalabashException {
+        KeyStore store = loadKeystore(keystore, storePassword);
+        try {
+            char[] password = (keyPassword != null ? keyPassword : storePassword).toCharArray();
+            PrivateKey key = (PrivateKey) store.getKey(alias, password);
+            if (key == null)
+                throw new CalabashException(format("No key with alias %s in %s", alias, keystore.getAbsolutePath()));
+            X509Certificate certificate = (X509Certificate) store.getCertificate(alias);
+            String sigFile = signatureFileName != null ? signatureFileName : defaultSignatureFileName(alias);
+            return new ApkSigner(key, certificate, sigFile, signatureAlgorithm, digestAlgorithm);
+        } catch (CalabashException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new CalabashException(format("Could not read key %s from %s", alias, keystore.getAbsolutePath()), e);
+        }
+    }
+
+    /**
+     * Writes a signed copy of <code>apk</code> to <code>signedApk</code>. Both can be the same file.
+     *
+     * @throws CalabashException
+     */
+    public void sign(File apk, File signedApk) throws CalabashException {
+        long startTime = System.currentTimeMillis();
+        File output = apk.getAbsoluteFile().equals(signedApk.getAbsoluteFile())
+                ? new File(signedApk.getAbsolutePath() + ".signing-" + System.nanoTime()) : signedApk;
+        ZipFile zip = null;
+        ZipOutputStream out = null;
+        try {
+            zip = new ZipFile(apk);
+            List<ZipEntry> entries = new ArrayList<ZipEntry>();
+            ByteArrayOutputStream manifest = new ByteArrayOutputStream();
+            ByteArrayOutputStream signatureFile = new ByteArrayOutputStream();
+            String digestAttribute = digestAttributeName();
+            writeAttribute(manifest, "Manifest-Version", "1.0");
+            writeAttribute(manifest, "Created-By", CREATED_BY);
+            manifest.write(crlf());
+
+            List<byte[]> sections = new ArrayList<byte[]>();
+            List<String> names = new ArrayList<String>();
+            Enumeration<? extends ZipEntry> zipEntries = zip.entries();
+            while (zipEntries.hasMoreElements()) {
+                ZipEntry entry = zipEntries.nextElement();
+                if (isSignatureEntry(entry.getName()))
+                    continue;
+                entries.add(entry);
+                if (entry.isDirectory())
+                    continue;
+
+                ByteArrayOutputStream section = new ByteArrayOutputStream();
+                writeAttribute(section, "Name", entry.getName());
+                writeAttribute(section, digestAttribute, Utils.toBase64(digest(zip, entry)));
+                section.write(crlf());
+                sections.add(section.toByteArray());
+                names.add(entry.getName());
+                manifest.write(section.toByteArray());
+            }
+            byte[] manifestBytes = manifest.toByteArray();
+
+            writeAttribute(signatureFile, "Signature-Version", "1.0");
+            writeAttribute(signatureFile, digestAttribute + "-Manifest", Utils.toBase64(digest(manifestBytes)));
+            writeAttribute(signatureFile, "Created-By", CREATED_BY);
+            signatureFile.write(crlf());
+            for (int i = 0; i < sections.size(); i++) {
+                writeAttribute(signatureFile, "Name", names.get(i));
+                writeAttribute(signatureFile, digestAttribute, Utils.toBase64(digest(sections.get(i))));
+                signatureFile.write(crlf());
+            }
+            byte[] signatureFileBytes = signatureFile.toByteArray();
+
+            out = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(output)));
+            writeEntry(out, MANIFEST, manifestBytes);
+            writeEntry(out, META_INF + signatureFileName + ".SF", signatureFileBytes);
+            writeEntry(out, META_INF + signatureFileName + ".RSA", signatureBlock(signatureFileBytes));
+            for (ZipEntry entry : entries) {
+                copyEntry(zip, entry, out);
+            }
+            out.close();
+            out = null;
+            zip.close();
+            zip = null;
+
+            if (output != signedApk) {
+                if (!signedApk.delete() || !output.renameTo(signedApk))
+                    throw new IOException("Could not replace " + signedApk.getAbsolutePath());
+            }
+            info("Signed %s in %d ms", signedApk.getAbsolutePath(), System.currentTimeMillis() - startTime);
+        } catch (Exception e) {
+            throw new CalabashException(format("Failed to sign %s. %s", apk.getAbsolutePath(), e.getMessage()), e);
+        } finally {
+            Utils.closeQuietly(out);
+            closeQuietly(zip);
+            if (output != signedApk)
+                output.delete();
+        }
+    }
+
+    /**
+     * jarsigner names the signature files after the alias: upper cased, at most 8 characters
+     */
+    static String defaultSignatureFileName(String alias) {
+        StringBuilder name = new StringBuilder();
+        for (char c : alias.toUpperCase().toCharArray()) {
+            if (name.length() == 8)
+                break;
+            name.append((c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '-' ? c : '_');
+        }
+        return name.toString();
+    }
+
+    private static void closeQuietly(ZipFile zip) {
+        if (zip == null)
+            return;
+        try {
+            zip.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private static KeyStore loadKeystore(File keystore, String storePassword) throws CalabashException {
+        Exception failure = null;
+        for (String type : new String[]{"JKS", "PKCS12"}) {
+            InputStream in = null;
+            try {
+                KeyStore store = KeyStore.getInstance(type);
+                in = new FileInputStream(keystore);
+                store.load(in, storePassword.toCharArray());
+                return store;
+            } catch (Exception e) {
+                failure = e;
+            } finally {
+                Utils.closeQuietly(in);
+            }
+        }
+        throw new CalabashException("Could not open keystore " + keystore.getAbsolutePath(), failure);
+    }
+
+    private byte[] signatureBlock(byte[] signatureFile) throws Exception {
+        String hash = javaDigestName(signatureAlgorithm.substring(0, signatureAlgorithm.length() - 7));
+        Signature signature = Signature.getInstance(signatureAlgorithm);
+        signature.initSign(privateKey);
+        signature.update(signatureFile);
+
+        byte[] digestAlgorithmId = Der.algorithm(DIGEST_OIDS.get(hash));
+        byte[] signerInfo = Der.sequence(
+                Der.integer(1),
+                Der.sequence(certificate.getIssuerX500Principal().getEncoded(), Der.integer(certificate.getSerialNumber())),
+                digestAlgorithmId,
+                Der.algorithm(RSA_ENCRYPTION),
+                Der.octetString(signature.sign()));
+        byte[] signedData = Der.sequence(
+                Der.integer(1),
+                Der.set(digestAlgorithmId),
+                Der.sequence(Der.oid(DATA)),
+                Der.tagged(0, certificate.getEncoded()),
+                Der.set(signerInfo));
+        return Der.sequence(Der.oid(SIGNED_DATA), Der.tagged(0, signedData));
+    }
+
+    private boolean isSignatureEntry(String name) {
+        String upper = name.toUpperCase();
+        if (!upper.startsWith(META_INF) || upper.indexOf('/', META_INF.length()) != -1)
+            return false;
+        return upper.equals(MANIFEST) || upper.endsWith(".SF") || upper.endsWith(".RSA") || upper.endsWith(".DSA")
+                || upper.endsWith(".EC") || upper.startsWith(META_INF + "SIG-");
+    }
+
+    private void copyEntry(ZipFile zip, ZipEntry entry, ZipOutputStream out) throws IOException {
+        ZipEntry copy = new ZipEntry(entry.getName());
+        copy.setTime(entry.getTime());
+        if (entry.getMethod() == ZipEntry.STORED) {
+            copy.setMethod(ZipEntry.STORED);
+            copy.setSize(entry.getSize());
+            copy.setCompressedSize(entry.getSize());
+            copy.setCrc(entry.getCrc());
+        }
+        out.putNextEntry(copy);
+        if (!entry.isDirectory()) {
+            InputStream in = zip.getInputStream(entry);
+            try {
+                byte[] buffer = new byte[32 * 1024];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                }
+            } finally {
+                in.close();
+            }
+        }
+        out.closeEntry();
+    }
+
+    private void writeEntry(ZipOutputStream out, String name, byte[] content) throws IOException {
+        ZipEntry entry = new ZipEntry(name);
+        entry.setMethod(ZipEntry.STORED);
+        entry.setSize(content.length);
+        entry.setCompressedSize(content.length);
+        CRC32 crc = new CRC32();
+        crc.update(content);
+        entry.setCrc(crc.getValue());
+        out.putNextEntry(entry);
+        out.write(content);
+        out.closeEntry();
+    }
+
+    private byte[] digest(ZipFile zip, ZipEntry entry) throws Exception {
+        MessageDigest digest = MessageDigest.getInstance(digestAlgorithm);
+        InputStream in = zip.getInputStream(entry);
+        try {
+            byte[] buffer = new byte[32 * 1024];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+        return digest.digest();
+    }
+
+    private byte[] digest(byte[] content) throws Exception {
+        return MessageDigest.getInstance(digestAlgorithm).digest(content);
+    }
+
+    private String digestAttributeName() {
+        return ("SHA-1".equals(digestAlgorithm) ? "SHA1" : digestAlgorithm) + "-Digest";
+    }
+
+    /**
+     * Writes "name: value" wrapped at 72 bytes per line, as required by the JAR manifest format
+     */
+    private static void writeAttribute(ByteArrayOutputStream out, String name, String value) throws IOException {
+        byte[] line = (name + ": " + value).getBytes("UTF-8");
+        int start = 0;
+        int max = 72;
+        while (line.length - start > max) {
+            int end = start + max;
+            while ((line[end] & 0xc0) == 0x80)
+                end--;
+            out.write(line, start, end - start);
+            out.write(crlf());
+            out.write(' ');
+            start = end;
+            max = 71;
+        }
+        out.write(line, start, line.length - start);
+        out.write(crlf());
+    }
+
+    private static byte[] crlf() {
+        return new byte[]{'\r', '\n'};
+    }
+
+    private static String javaDigestName(String name) {
+        String upper = name.toUpperCase();
+        if (upper.equals("SHA1") || upper.equals("SHA-1"))
+            return "SHA-1";
+        if (upper.equals("SHA256") || upper.equals("SHA-256"))
+            return "SHA-256";
+        return upper;
+    }
+}
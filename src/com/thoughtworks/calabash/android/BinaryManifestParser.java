@@ -0,0 +1,212 @@
+package com.thoughtworks.calabash.android;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Reads the package name and the launcher activity from the compiled (binary xml) AndroidManifest.xml of an apk,
+ * the same values <code>aapt dump badging</code> reports as package and launchable-activity.
+ */
+class BinaryManifestParser {
+    private static final int CHUNK_XML = 0x0003;
+    private static final int CHUNK_STRING_POOL = 0x0001;
+    private static final int CHUNK_RESOURCE_MAP = 0x0180;
+    private static final int CHUNK_START_ELEMENT = 0x0102;
+    private static final int CHUNK_END_ELEMENT = 0x0103;
+    private static final int UTF8_FLAG = 1 << 8;
+    private static final int TYPE_STRING = 0x03;
+    private static final int ATTR_NAME = 0x01010003;
+    private static final int ATTR_ENABLED = 0x0101000e;
+    private static final String ACTION_MAIN = "android.intent.action.MAIN";
+    private static final String CATEGORY_LAUNCHER = "android.intent.category.LAUNCHER";
+
+    private final ByteBuffer buffer;
+    private String[] strings = new String[0];
+    private int[] resourceIds = new int[0];
+
+    private String packageName;
+    private String launcherActivity;
+    private String currentActivity;
+    private boolean mainAction;
+    private boolean launcherCategory;
+
+    BinaryManifestParser(byte[] manifest) {
+        this.buffer = ByteBuffer.wrap(manifest).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    static BinaryManifestParser parse(InputStream manifest) throws CalabashException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] chunk = new byte[8 * 1024];
+            int read;
+            while ((read = manifest.read(chunk)) != -1) {
+                out.write(chunk, 0, read);
+            }
+            BinaryManifestParser parser = new BinaryManifestParser(out.toByteArray());
+            parser.parse();
+            return parser;
+        } catch (IOException e) {
+            throw new CalabashException("Could not read AndroidManifest.xml. " + e.getMessage(), e);
+        }
+    }
+
+    String getPackageName() {
+        return packageName;
+    }
+
+    String getLauncherActivity() {
+        return launcherActivity;
+    }
+
+    void parse() throws CalabashException {
+        try {
+            if (buffer.getShort(0) != CHUNK_XML)
+                throw new CalabashException("AndroidManifest.xml is not a binary xml file");
+            int position = buffer.getShort(2) & 0xffff;
+            while (position + 8 <= buffer.limit()) {
+                int type = buffer.getShort(position) & 0xffff;
+                int size = buffer.getInt(position + 4);
+                if (size < 8)
+                    throw new CalabashException("Corrupt chunk in AndroidManifest.xml at " + position);
+                switch (type) {
+                    case CHUNK_STRING_POOL:
+                        readStringPool(position);
+                        break;
+                    case CHUNK_RESOURCE_MAP:
+                        readResourceMap(position, size);
+                        break;
+                    case CHUNK_START_ELEMENT:
+                        startElement(position);
+                        break;
+                    case CHUNK_END_ELEMENT:
+                        endElement(getString(buffer.getInt(position + 20)));
+                        break;
+                }
+                position += size;
+            }
+        } catch (IndexOutOfBoundsException e) {
+            throw new CalabashException("Corrupt AndroidManifest.xml", e);
+        } catch (UnsupportedEncodingException e) {
+            throw new CalabashException("Corrupt AndroidManifest.xml", e);
+        }
+        if (packageName == null)
+            throw new CalabashException("No package name found in AndroidManifest.xml");
+    }
+
+    private void startElement(int position) {
+        String name = getString(buffer.getInt(position + 20));
+        if ("manifest".equals(name)) {
+            packageName = getAttribute(position, "package", 0);
+        } else if (("activity".equals(name) || "activity-alias".equals(name)) && !"false".equals(getAttribute(position, "enabled", ATTR_ENABLED))) {
+            currentActivity = getAttribute(position, "name", ATTR_NAME);
+        } else if ("intent-filter".equals(name)) {
+            mainAction = false;
+            launcherCategory = false;
+        } else if ("action".equals(name)) {
+            mainAction |= ACTION_MAIN.equals(getAttribute(position, "name", ATTR_NAME));
+        } else if ("category".equals(name)) {
+            launcherCategory |= CATEGORY_LAUNCHER.equals(getAttribute(position, "name", ATTR_NAME));
+        }
+    }
+
+    private void endElement(String name) {
+        if ("intent-filter".equals(name)) {
+            if (mainAction && launcherCategory && currentActivity != null && launcherActivity == null)
+                launcherActivity = qualify(currentActivity);
+        } else if ("activity".equals(name) || "activity-alias".equals(name)) {
+            currentActivity = null;
+        }
+    }
+
+    private String getAttribute(int element, String name, int resourceId) {
+        int attributeStart = buffer.getShort(element + 24) & 0xffff;
+        int attributeSize = buffer.getShort(element + 26) & 0xffff;
+        int attributeCount = buffer.getShort(element + 28) & 0xffff;
+        int position = element + 16 + attributeStart;
+        for (int i = 0; i < attributeCount; i++, position += attributeSize) {
+            int nameIndex = buffer.getInt(position + 4);
+            boolean matches = resourceId != 0 && nameIndex >= 0 && nameIndex < resourceIds.length
+                    ? resourceIds[nameIndex] == resourceId : name.equals(getString(nameIndex));
+            if (!matches)
+                continue;
+            int rawValue = buffer.getInt(position + 8);
+            int dataType = buffer.get(position + 15) & 0xff;
+            int data = buffer.getInt(position + 16);
+            if (rawValue != -1)
+                return getString(rawValue);
+            if (dataType == TYPE_STRING)
+                return getString(data);
+            return dataType == 0x12 ? String.valueOf(data != 0) : String.valueOf(data);
+        }
+        return null;
+    }
+
+    private String qualify(String activity) {
+        if (activity.startsWith("."))
+            return packageName + activity;
+        if (activity.indexOf('.') == -1)
+            return packageName + "." + activity;
+        return activity;
+    }
+
+    private String getString(int index) {
+        return index >= 0 && index < strings.length ? strings[index] : null;
+    }
+
+    private void readResourceMap(int position, int size) {
+        int headerSize = buffer.getShort(position + 2) & 0xffff;
+        resourceIds = new int[(size - headerSize) / 4];
+        for (int i = 0; i < resourceIds.length; i++) {
+            resourceIds[i] = buffer.getInt(position + headerSize + i * 4);
+        }
+    }
+
+    private void readStringPool(int position) throws UnsupportedEncodingException {
+        int headerSize = buffer.getShort(position + 2) & 0xffff;
+        int count = buffer.getInt(position + 8);
+        int flags = buffer.getInt(position + 16);
+        int stringsStart = position + buffer.getInt(position + 20);
+        boolean utf8 = (flags & UTF8_FLAG) != 0;
+        strings = new String[count];
+        for (int i = 0; i < count; i++) {
+            int offset = stringsStart + buffer.getInt(position + headerSize + i * 4);
+            strings[i] = utf8 ? readUtf8(offset) : readUtf16(offset);
+        }
+    }
+
+    private String readUtf8(int offset) throws UnsupportedEncodingException {
+        // utf16 length followed by the utf8 byte length, each one or two bytes
+        offset += (buffer.get(offset) & 0x80) != 0 ? 2 : 1;
+        int length = buffer.get(offset) & 0xff;
+        if ((length & 0x80) != 0) {
+            length = ((length & 0x7f) << 8) | (buffer.get(offset + 1) & 0xff);
+            offset += 2;
+        } else {
+            offset += 1;
+        }
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = buffer.get(offset + i);
+        }
+        return new String(bytes, "UTF-8");
+    }
+
+    private String readUtf16(int offset) {
+        int length = buffer.getShort(offset) & 0xffff;
+        if ((length & 0x8000) != 0) {
+            length = ((length & 0x7fff) << 16) | (buffer.getShort(offset + 2) & 0xffff);
+            offset += 4;
+        } else {
+            offset += 2;
+        }
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = (char) buffer.getShort(offset + i * 2);
+        }
+        return new String(chars);
+    }
+}
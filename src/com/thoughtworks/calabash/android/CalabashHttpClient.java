@@ -1,23 +1,55 @@
 package com.thoughtworks.calabash.android;
 
+import org.codehaus.jackson.map.ObjectMapper;
+
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import static com.thoughtworks.calabash.android.CalabashLogger.error;
+import static com.thoughtworks.calabash.android.CalabashLogger.info;
 import static java.lang.Integer.parseInt;
 import static java.lang.String.format;
 
+/**
+ * Talks to the calabash instrumentation test server directly using its json protocol, without going through
+ * the ruby client.
+ */
 public class CalabashHttpClient {
-    private static final String TEST_SERVER_DUMP_URL = "http://localhost:%s/dump";
+    private static final String TEST_SERVER_URL = "http://localhost:%s";
+    private static final String DUMP_PATH = "/dump";
+    private static final String MAP_PATH = "/map";
+    private static final String ACTION_PATH = "/";
+    private static final String PING_PATH = "/ping";
+    private static final int PROBE_TIMEOUT_IN_MS = 1000;
+    public static final int DEFAULT_REQUEST_TIMEOUT_IN_MS = 30000;
+    private static final String OUTCOME_SUCCESS = "SUCCESS";
+    private static final long KEYBOARD_WAIT_IN_MS = 500;
+    private static final int MAX_PARALLEL_QUERIES = 4;
+    private final ObjectMapper mapper = new ObjectMapper();
     private URL url;
+    private String baseUrl;
+    private ExecutorService queryExecutor;
+    private int requestTimeoutInMs = DEFAULT_REQUEST_TIMEOUT_IN_MS;
 
     public CalabashHttpClient(CalabashWrapper calabashWrapper) {
         try {
             final int serverPort = parseInt(calabashWrapper.getTestServerPort());
-            url = new URL(format(TEST_SERVER_DUMP_URL, serverPort));
+            baseUrl = format(TEST_SERVER_URL, serverPort);
+            url = new URL(baseUrl + DUMP_PATH);
         } catch (MalformedURLException e) {
             throw new RuntimeException(e);
         } catch (CalabashException e) {
@@ -25,18 +57,272 @@ public class CalabashHttpClient {
         }
     }
 
-    public String getViewDump() {
-        String dump = "{}";
+    /**
+     * Sets how long a request waits to connect to the test server and then for each read of its response.
+     * Defaults to {@link #DEFAULT_REQUEST_TIMEOUT_IN_MS}.
+     *
+     * @param requestTimeoutInMs milliseconds, 0 waits forever
+     */
+    public void setRequestTimeout(int requestTimeoutInMs) {
+        this.requestTimeoutInMs = requestTimeoutInMs;
+    }
+
+    /**
+     * @return json dump of the current view hierarchy
+     * @throws CalabashException when the test server doesn't answer in time or fails
+     */
+    public String getViewDump() throws CalabashException {
+        return getViewDump(requestTimeoutInMs);
+    }
+
+    /**
+     * @param timeoutInMs overrides the request timeout for this dump, 0 waits forever
+     * @return json dump of the current view hierarchy
+     * @throws CalabashException when the test server doesn't answer in time or fails
+     */
+    public String getViewDump(int timeoutInMs) throws CalabashException {
         try {
-            final HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+            final HttpURLConnection connection = openConnection(url, timeoutInMs);
             connection.setRequestMethod("GET");
             final InputStream stream = connection.getInputStream();
-            dump = Utils.toString(stream);
+            try {
+                return Utils.toString(stream);
+            } finally {
+                stream.close();
+            }
         } catch (IOException e) {
-            CalabashLogger.error("Could not fetch view dump", e);
-        } catch (CalabashException e) {
-            error("Could not fetch view dump", e);
+            String message = format("Could not fetch view dump. %s", e.getMessage());
+            error(message, e);
+            throw new CalabashException(message, e);
+        }
+    }
+
+    /**
+     * Checks whether a test server answers on the port, with a short timeout
+     *
+     * @return true if the test server responded to a ping
+     */
+    public boolean ping() {
+        try {
+            HttpURLConnection connection = openConnection(new URL(baseUrl + PING_PATH), PROBE_TIMEOUT_IN_MS);
+            InputStream in = connection.getInputStream();
+            try {
+                return Utils.toString(in).trim().equals("pong");
+            } finally {
+                in.close();
+            }
+        } catch (Exception e) {
+            info("No test server answering on %s. %s", baseUrl, e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * @return version of the calabash test server, eg: 0.4.21
+     * @throws CalabashException
+     */
+    public String getServerVersion() throws CalabashException {
+        return performAction("version").getMessage();
+    }
+
+    /**
+     * Runs a calabash query on the test server
+     *
+     * @param query calabash query
+     * @param args  optional operations applied on each matched element, eg: a property name
+     * @return decoded results, a map for each element or the value returned by the operation
+     * @throws CalabashException
+     */
+    public List<Object> query(String query, Object... args) throws CalabashException {
+        info("Executing query - %s", query);
+        Map<String, Object> operation = new HashMap<String, Object>();
+        operation.put("method_name", "query");
+        operation.put("arguments", args == null ? new Object[0] : args);
+        Map<String, Object> request = new HashMap<String, Object>();
+        request.put("query", query);
+        request.put("operation", operation);
+
+        Map<?, ?> response = post(MAP_PATH, request);
+        if (!OUTCOME_SUCCESS.equals(response.get("outcome"))) {
+            String message = format("Failed to execute '%s'. %s %s", query, Utils.toString(response.get("reason")), Utils.toString(response.get("details")));
+            error(message);
+            throw new CalabashException(message);
+        }
+        Object results = response.get("results");
+        return results instanceof List ? new ArrayList<Object>((List<?>) results) : new ArrayList<Object>();
+    }
+
+    /**
+     * Runs several calabash queries on the test server. The test server answers one query per request, so the
+     * requests are sent concurrently and the whole batch costs about one round trip.
+     *
+     * @param queries calabash queries
+     * @return decoded results for each query, in the same order
+     * @throws CalabashException when any of the queries fails
+     */
+    public List<List<Object>> queryAll(List<String> queries) throws CalabashException {
+        List<List<Object>> results = new ArrayList<List<Object>>();
+        if (queries.size() == 1) {
+            results.add(query(queries.get(0)));
+            return results;
+        }
+
+        List<Future<List<Object>>> futures = new ArrayList<Future<List<Object>>>();
+        ExecutorService executor = getQueryExecutor();
+        for (final String query : queries) {
+            futures.add(executor.submit(new Callable<List<Object>>() {
+                public List<Object> call() throws Exception {
+                    return query(query);
+                }
+            }));
+        }
+
+        try {
+            for (Future<List<Object>> future : futures) {
+                results.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CalabashException("Interrupted while executing queries " + queries, e);
+        } catch (ExecutionException e) {
+            for (Future<List<Object>> future : futures) {
+                future.cancel(true);
+            }
+            Throwable cause = e.getCause();
+            if (cause instanceof CalabashException)
+                throw (CalabashException) cause;
+            throw new CalabashException(format("Failed to execute %s. %s", queries, cause.getMessage()));
+        }
+        return results;
+    }
+
+    /**
+     * Calls calabash's perform_action on the test server
+     *
+     * @param action action to be performed
+     * @param args   arguments for the action
+     * @return result of the action
+     * @throws CalabashException when the action could not be performed
+     */
+    public ActionResult performAction(String action, String... args) throws CalabashException {
+        info("performing action %s with args %s", action, Utils.getStringFromArray(args));
+        Map<String, Object> request = new HashMap<String, Object>();
+        request.put("command", action);
+        request.put("arguments", args == null ? new String[0] : args);
+
+        Map<?, ?> response = post(ACTION_PATH, request);
+        Object bonusInformation = response.get("bonusInformation");
+        Object[] bonusInformationArray = bonusInformation instanceof List ? ((List<?>) bonusInformation).toArray() : new Object[0];
+        boolean success = Boolean.parseBoolean(Utils.toString(response.get("success")));
+        return new ActionResult(bonusInformationArray, Utils.toString(response.get("message")), success);
+    }
+
+    /**
+     * Touches the center of the first element matching the query
+     *
+     * @param query calabash query
+     * @throws CalabashException
+     */
+    public void touch(String query) throws CalabashException {
+        Map<?, ?> rect = getFirstElementRect(query);
+        ensureSuccess(performAction("touch_coordinate", Utils.toString(rect.get("center_x")), Utils.toString(rect.get("center_y"))), "touch " + query);
+    }
+
+    /**
+     * Touches the first element matching the query and types the text with the keyboard
+     *
+     * @param text  text to be entered
+     * @param query calabash query
+     * @throws CalabashException
+     */
+    public void enterText(String text, String query) throws CalabashException {
+        touch(query);
+        try {
+            Thread.sleep(KEYBOARD_WAIT_IN_MS);
+        } catch (InterruptedException ignored) {
+        }
+        ensureSuccess(performAction("keyboard_enter_text", text), "enter text into " + query);
+    }
+
+    /**
+     * @param query calabash query
+     * @return true if the query matches at least one element
+     * @throws CalabashException
+     */
+    public boolean elementExists(String query) throws CalabashException {
+        return !query(query).isEmpty();
+    }
+
+    /**
+     * Stops the threads used for concurrent queries
+     */
+    public synchronized void close() {
+        if (queryExecutor != null)
+            queryExecutor.shutdownNow();
+        queryExecutor = null;
+    }
+
+    private synchronized ExecutorService getQueryExecutor() {
+        if (queryExecutor == null) {
+            queryExecutor = Executors.newFixedThreadPool(MAX_PARALLEL_QUERIES, new ThreadFactory() {
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "calabash-query");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
         }
-        return dump;
+        return queryExecutor;
+    }
+
+    private Map<?, ?> getFirstElementRect(String query) throws CalabashException {
+        List<Object> elements = query(query);
+        if (elements.isEmpty())
+            throw new CalabashException("No elements found. Query: " + query);
+        Object element = elements.get(0);
+        Object rect = element instanceof Map ? ((Map<?, ?>) element).get("rect") : null;
+        if (!(rect instanceof Map))
+            throw new CalabashException("Element has no bounds. Query: " + query);
+        return (Map<?, ?>) rect;
+    }
+
+    private void ensureSuccess(ActionResult result, String description) throws CalabashException {
+        if (!result.isSuccess()) {
+            String message = format("Failed to %s. %s", description, result.getMessage());
+            error(message);
+            throw new CalabashException(message);
+        }
+    }
+
+    private Map<?, ?> post(String path, Map<String, Object> request) throws CalabashException {
+        try {
+            HttpURLConnection connection = openConnection(new URL(baseUrl + path), requestTimeoutInMs);
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Content-Type", "application/json;charset=utf-8");
+            OutputStream out = connection.getOutputStream();
+            try {
+                mapper.writeValue(out, request);
+            } finally {
+                out.close();
+            }
+            InputStream in = connection.getInputStream();
+            try {
+                return mapper.readValue(in, Map.class);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            String message = format("Request to test server %s failed. %s", path, e.getMessage());
+            error(message, e);
+            throw new CalabashException(message, e);
+        }
+    }
+
+    private HttpURLConnection openConnection(URL target, int timeoutInMs) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) target.openConnection();
+        connection.setConnectTimeout(timeoutInMs);
+        connection.setReadTimeout(timeoutInMs);
+        return connection;
     }
 }
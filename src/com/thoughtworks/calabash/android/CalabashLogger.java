@@ -55,6 +55,11 @@ class CalabashLogger {
             log.warn(String.format(message));
     }
 
+    public static void warn(String message, Object... args) {
+        if (shouldLog && isNotEmpty(message))
+            log.warn(String.format(message, args));
+    }
+
     public static void error(Object message) {
         if (shouldLog && isNotEmpty(message))
             log.error(message);
@@ -3,20 +3,16 @@ package com.thoughtworks.calabash.android;
 import org.joda.time.DateTime;
 import org.jruby.RubyArray;
 import org.jruby.RubyHash;
-import org.jruby.embed.LocalContextScope;
-import org.jruby.embed.LocalVariableBehavior;
 import org.jruby.embed.PathType;
 import org.jruby.embed.ScriptingContainer;
 
 import java.io.File;
 import java.io.FileFilter;
-import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
 import java.net.URL;
 import java.net.URLClassLoader;
 import java.net.URLDecoder;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -43,25 +39,54 @@ public class CalabashWrapper {
     private static final String ADB_DEVICE_ARG = "ADB_DEVICE_ARG";
     private static final String APP_PATH = "APP_PATH";
     private static final String TEST_SERVER_PATH = "TEST_APP_PATH";
-    private static final String ACTION = "cajAction";
-    private static final String ACTION_ARGS = "cajActionArgs";
-    private final ScriptingContainer container = new ScriptingContainer(LocalContextScope.SINGLETHREAD, LocalVariableBehavior.PERSISTENT);
-    private final File rbScriptsPath;
+    private static final String PACKAGE_NAME = "PACKAGE_NAME";
+    private static final String MAIN_ACTIVITY = "MAIN_ACTIVITY";
+    private static final String CALABASH_GEM_PREFIX = "calabash-android-";
+    private static final String DIRECTORY = "cajDirectory";
+    private static final String TEST_SERVER_PACKAGE_SUFFIX = ".test";
+    private final ScriptingContainerPool containerPool;
+    private final ScriptingContainer container;
+    private final ScriptletCache scriptlets;
+    private final OperationsDispatcher operations;
     private final File apk;
     private final AndroidConfiguration configuration;
     private final Environment environment;
+    private final File rbScriptsPath;
+    private final GemArchive gemArchive;
     private File gemsDir;
     private AndroidBridge androidBridge;
+    private CalabashHttpClient httpClient;
+    private UISettleDetector settleDetector;
+    private ActionPipeline actionPipeline;
     private boolean disposed = false;
+    private StartupTimings timings = new StartupTimings();
     private long pauseTimeInMilliSec = 500;
 
     public CalabashWrapper(File rbScriptsPath, File apk, AndroidConfiguration configuration, Environment environment) throws CalabashException {
+        this(rbScriptsPath, null, apk, configuration, environment);
+    }
+
+    /**
+     * @param rbScriptsPath directory where the gems are extracted. With a gem archive, it is extracted only if
+     *                      setup has to run the calabash-android command line
+     * @param gemArchive    archive the ruby runtime loads the gems from, null to use the extracted gems
+     */
+    public CalabashWrapper(File rbScriptsPath, GemArchive gemArchive, File apk, AndroidConfiguration configuration, Environment environment) throws CalabashException {
         this.rbScriptsPath = rbScriptsPath;
+        this.gemArchive = gemArchive;
         this.gemsDir = new File(rbScriptsPath, "gems");
         this.apk = apk;
         this.configuration = configuration;
         this.environment = environment;
         this.androidBridge = new AndroidBridge(environment);
+        this.containerPool = gemArchive != null ? ScriptingContainerPool.forArchive(gemArchive) : ScriptingContainerPool.forGems(rbScriptsPath);
+        if (configuration != null && configuration.shouldCompileRubySources())
+            containerPool.setCompileRubySources(true);
+        if (configuration != null && configuration.shouldKeepWarmSpareRuntime())
+            containerPool.setKeepWarmSpare(true);
+        this.container = containerPool.acquire();
+        this.scriptlets = new ScriptletCache(container);
+        this.operations = new OperationsDispatcher(container);
         this.initializeScriptingContainer();
         if (configuration != null && configuration.getPauseTimeInMs() >= 0)
             pauseTimeInMilliSec = configuration.getPauseTimeInMs();
@@ -69,80 +94,116 @@ public class CalabashWrapper {
     }
 
     private void initializeScriptingContainer() throws CalabashException {
-        container.setHomeDirectory(new File(rbScriptsPath, "jruby.home").getAbsolutePath());
-
-        HashMap<String, String> environmentVariables = new HashMap<String, String>();
-        environmentVariables.putAll(System.getenv());
-        environmentVariables.putAll(environment.getEnvVariables());
-        container.setEnvironment(environmentVariables);
-
-        container.getLoadPaths().addAll(getLoadPaths());
-        container.setErrorWriter(new StringWriter());
-    }
-
-    private List<String> getLoadPaths() throws CalabashException {
-        ArrayList<String> loadPaths = new ArrayList<String>();
-        File[] gems = gemsDir.listFiles(new FileFilter() {
-
-            public boolean accept(File arg0) {
-                return arg0.isDirectory();
-            }
-        });
-
-        if (gems == null || gems.length == 0)
-            throw new CalabashException("Couldn't find any gems inside " + gemsDir.getAbsolutePath());
-
-        for (File gem : gems) {
-            File libPath = new File(gem, "lib");
-            loadPaths.add(libPath.getAbsolutePath());
+        Map<String, String> environmentVariables = environment.getEnvVariables();
+        for (String name : environmentVariables.keySet()) {
+            addContainerEnv(name, environmentVariables.get(name));
         }
-
-        return loadPaths;
     }
 
+    /**
+     * @param timings receives the durations of the setup and start phases
+     */
+    void setStartupTimings(StartupTimings timings) {
+        this.timings = timings;
+    }
 
     public void setup() throws CalabashException {
         try {
             addSystemCommandHack();
+            long startTime = System.nanoTime();
             createDebugCertificateIfMissing();
+            timings.record(StartupTimings.KEYSTORE_CHECK, startTime);
+            SetupCache setupCache = getSetupCache();
+            String cacheKey = null;
+            if (setupCache != null) {
+                startTime = System.nanoTime();
+                cacheKey = SetupCache.key(apk, getDebugKeystore(), getCalabashVersion());
+                boolean restored = setupCache.restore(cacheKey, apk, getTestServersDirectory());
+                timings.record(StartupTimings.SETUP_CACHE_RESTORE, startTime);
+                if (restored) {
+                    info("Skipping setup, restored from setup cache");
+                    return;
+                }
+            }
+            if (gemArchive != null)
+                new GemExtractor(rbScriptsPath).extract(AndroidRunner.GEMS_RESOURCE);
             String jrubyClasspath = getClasspathFor("jruby");
             addContainerEnv("CLASSPATH", jrubyClasspath);
-            container.runScriptlet(format("Dir.chdir '%s'", apk.getParent()));
+            changeDirectory(apk.getParentFile());
 
+            startTime = System.nanoTime();
             container.put(ARGV, new String[]{"resign", apk.getAbsolutePath()});
             String calabashAndroid = new File(getCalabashGemDirectory(), "calabash-android").getAbsolutePath();
             container.runScriptlet(PathType.ABSOLUTE, calabashAndroid);
+            timings.record(StartupTimings.RESIGN, startTime);
             info("Done signing the app");
 
+            startTime = System.nanoTime();
             container.put(ARGV, new String[]{"build", apk.getAbsolutePath()});
             container.runScriptlet(PathType.ABSOLUTE, calabashAndroid);
+            timings.record(StartupTimings.BUILD, startTime);
             info("App build complete");
+
+            if (setupCache != null)
+                setupCache.store(cacheKey, SetupCache.key(apk, getDebugKeystore(), getCalabashVersion()), apk, getTestServersDirectory());
         } catch (Exception e) {
             error("Failed to setup calabash for project: %s", e, apk.getAbsolutePath());
             throw new CalabashException(format("Failed to setup calabash. %s", e.getMessage()));
         }
     }
 
+    /**
+     * Loads the calabash operations into the ruby runtime ahead of {@link #start(String)}. Doesn't need a device.
+     *
+     * @throws CalabashException
+     */
+    public void warmUp() throws CalabashException {
+        try {
+            long startTime = System.currentTimeMillis();
+            addRequiresAndIncludes("Calabash::Android::Operations");
+            addSystemCommandHack();
+            info("Calabash operations loaded in %d ms", System.currentTimeMillis() - startTime);
+        } catch (Exception e) {
+            error("Failed to load calabash operations", e);
+            throw new CalabashException("Failed to load calabash operations. " + e.getMessage(), e);
+        }
+    }
+
     public void start(String serial) throws CalabashException {
         try {
             addRequiresAndIncludes("Calabash::Android::Operations");
             addSystemCommandHack();
-            container.runScriptlet(format("Dir.chdir '%s'", apk.getParentFile().getAbsolutePath()));
+            changeDirectory(apk.getParentFile());
             addContainerEnv(ADB_DEVICE_ARG, serial);
             addContainerEnv(APP_PATH, apk.getAbsolutePath());
-            String testServerPath = container.runScriptlet("test_server_path(ENV['APP_PATH'])").toString();
+            ApkInfo apkInfo = ApkInfo.of(apk);
+            String packageName = apkInfo.getPackageName();
+            String testServerPath = apkInfo.getTestServer(getTestServersDirectory(), getCalabashGemVersion()).getAbsolutePath();
             addContainerEnv(TEST_SERVER_PATH, testServerPath);
+            addContainerEnv(PACKAGE_NAME, packageName);
+            if (apkInfo.getLauncherActivity() != null)
+                addContainerEnv(MAIN_ACTIVITY, apkInfo.getLauncherActivity());
 
-            String packageName = container.runScriptlet("package_name(ENV['APP_PATH'])").toString();
-            if (configuration.shouldReinstallApp() || !androidBridge.isAppInstalled(packageName, serial)) {
+            long startTime = System.nanoTime();
+            if (configuration.shouldReinstallApp() || !isInstalled(packageName, apk, serial)) {
                 info("Reinstalling app %s and test server on %s", packageName, serial);
-                container.runScriptlet("reinstall_apps");
-            } else {
+                operations.call("reinstall_apps");
+            } else if (!isInstalled(packageName + TEST_SERVER_PACKAGE_SUFFIX, new File(testServerPath), serial)) {
                 info("Reinstalling test server on %s", serial);
-                container.runScriptlet("reinstall_test_server");
+                operations.call("reinstall_test_server");
+            } else {
+                info("App %s and test server already installed on %s", packageName, serial);
+                if (configuration.shouldAttachToRunningTestServer() && isTestServerRunning(packageName, serial)) {
+                    info("Attached to the test server already running for %s on %s", packageName, serial);
+                    timings.record(StartupTimings.INSTALL, startTime);
+                    return;
+                }
             }
+            timings.record(StartupTimings.INSTALL, startTime);
 
-            container.runScriptlet("start_test_server_in_background");
+            startTime = System.nanoTime();
+            operations.call("start_test_server_in_background");
+            timings.record(StartupTimings.SERVER_START, startTime);
             info("Started the app");
         } catch (Exception e) {
             error("Error starting the app: ", e);
@@ -150,6 +211,16 @@ public class CalabashWrapper {
         }
     }
 
+    private boolean isTestServerRunning(String packageName, String serial) throws CalabashException {
+        return new TestServerProbe(getHttpClient(), androidBridge, getCalabashGemVersion()).isRunning(packageName, serial);
+    }
+
+    private boolean isInstalled(String packageName, File localApk, String serial) throws CalabashException {
+        if (!localApk.isFile())
+            return false;
+        return androidBridge.isInstalled(packageName, ApkInfo.of(localApk).getMd5(), serial);
+    }
+
     //HACK - Jruby system call fails crashing the JVM on attempting to start test server command which redirects error stream to input stream.
     //Overriding kernel system call to execute command via backtick for the particular edge case. Rest of the calls will be executed via the regular
     //kernel system call. Bug has been reported on jruby - https://github.com/jruby/jruby/issues/1500
@@ -157,12 +228,18 @@ public class CalabashWrapper {
     private void addSystemCommandHack() {
         StringBuilder script = new StringBuilder();
 
-        script.append(" def system(cmd)\n" +
-                "  `#{cmd}`\n" +
+        // jarsigner commands are run in process by InProcessJarsigner instead of launching a JVM per apk
+        container.put("$cajJarsigner", new InProcessJarsigner());
+        script.append(" def system(*args)\n" +
+                "  if $cajJarsigner\n" +
+                "   signed = $cajJarsigner.run(args.map { |arg| arg.to_s }.to_java(:string))\n" +
+                "   return signed unless signed.nil?\n" +
+                "  end\n" +
+                "  `#{args.join(' ')}`\n" +
                 "  return $?.success?\n" +
                 " end\n");
 
-        container.runScriptlet(script.toString());
+        scriptlets.run(script.toString());
     }
 
     private void addRequiresAndIncludes(String... modules) throws CalabashException {
@@ -181,7 +258,41 @@ public class CalabashWrapper {
             script.append("def embed(path,image_type,file_name)\nend\n");
         }
 
-        container.runScriptlet(script.toString());
+        scriptlets.run(script.toString());
+    }
+
+    private SetupCache getSetupCache() {
+        if (configuration == null || configuration.getSetupCacheDirectory() == null)
+            return null;
+        return new SetupCache(configuration.getSetupCacheDirectory());
+    }
+
+    private File getTestServersDirectory() {
+        return new File(apk.getParentFile(), AndroidRunner.TEST_SERVERS);
+    }
+
+    private File getDebugKeystore() {
+        for (File keystore : getKeystoreLocation()) {
+            if (keystore.exists())
+                return keystore;
+        }
+        return null;
+    }
+
+    private String getCalabashVersion() throws CalabashException {
+        if (gemArchive != null) {
+            for (String gem : gemArchive.getGemNames()) {
+                if (gem.startsWith("calabash-android"))
+                    return gem;
+            }
+            throw new CalabashException(format("Error finding 'calabash-android' in %s", gemArchive.getFile().getAbsolutePath()));
+        }
+        return getCalabashGemDirectory().getParentFile().getName();
+    }
+
+    private String getCalabashGemVersion() throws CalabashException {
+        String gem = getCalabashVersion();
+        return gem.startsWith(CALABASH_GEM_PREFIX) ? gem.substring(CALABASH_GEM_PREFIX.length()) : gem;
     }
 
     private void createDebugCertificateIfMissing() throws CalabashException {
@@ -198,21 +309,8 @@ public class CalabashWrapper {
 
     private void generateDefaultAndroidKeyStore() throws CalabashException {
         File destinationKeystoreLocation = new File(apk.getParentFile(), "debug.keystore");
-        String[] keygenCommand = getKeygenCommand(destinationKeystoreLocation.getAbsolutePath());
         info("Generating keystore at %s", destinationKeystoreLocation.getAbsolutePath());
-        Utils.runCommand(keygenCommand, "could not generate debug.keystore");
-    }
-
-    private String[] getKeygenCommand(final String keystore) {
-        return new String[]{environment.getKeytool(), "-genkey", "-v",
-                "-keystore", keystore,
-                "-alias", "androiddebugkey",
-                "-storepass", "android",
-                "-keypass", "android",
-                "-keyalg", "RSA",
-                "-keysize", "2048",
-                "-validity", "10000",
-                "-dname", "CN=AndroidDebug,O=Android,C=US"};
+        DebugKeystore.generate(destinationKeystoreLocation);
     }
 
     private List<File> getKeystoreLocation() {
@@ -262,31 +360,63 @@ public class CalabashWrapper {
         return new File(calabashGemPath[0], "bin");
     }
 
-    public RubyArray query(String query, String... args) throws CalabashException {
+    /**
+     * Runs the query through the test server when the http driver is enabled, through the ruby client otherwise
+     *
+     * @param query calabash query
+     * @param args  selectors applied to each matching element, eg: getText
+     * @return matching elements, or the selected values of each element
+     * @throws CalabashException
+     */
+    @SuppressWarnings("unchecked")
+    public List<Object> query(String query, String... args) throws CalabashException {
         ensureNotDisposed();
+        awaitPendingActions();
+        if (isHttpDriverEnabled())
+            return getHttpClient().query(query, (Object[]) args);
         try {
             info("Executing query - %s", query);
-            container.put(QUERY_STRING, query);
-            container.put(QUERY_ARGS, args);
-
-            RubyArray queryResults = null;
-            if (args != null && args.length > 0)
-                queryResults = (RubyArray) container.runScriptlet(String.format("query(%s, *%s)", QUERY_STRING, QUERY_ARGS));
-            else
-                queryResults = (RubyArray) container.runScriptlet(String.format("query(%s)", QUERY_STRING));
-
-            return queryResults;
+            return (RubyArray) operations.callWithSplat("query", query, args);
         } catch (Exception e) {
             error("Execution of query: %s, failed", e, query);
             throw new CalabashException(String.format("Failed to execute '%s'. %s", query, e.getMessage()));
         }
     }
 
+    /**
+     * Runs all the queries together. With the http driver the queries are sent to the test server concurrently,
+     * otherwise the ruby client runs them one after another.
+     *
+     * @param queries calabash queries
+     * @return one list of results for each query, in the same order
+     * @throws CalabashException
+     */
+    public List<?> queryAll(List<String> queries) throws CalabashException {
+        ensureNotDisposed();
+        awaitPendingActions();
+        if (isHttpDriverEnabled())
+            return getHttpClient().queryAll(queries);
+        try {
+            info("Executing %d queries - %s", queries.size(), queries);
+            List<Object> results = new ArrayList<Object>();
+            for (String query : queries) {
+                results.add(operations.call("query", query));
+            }
+            return results;
+        } catch (Exception e) {
+            error("Execution of queries: %s, failed", e, queries);
+            throw new CalabashException(String.format("Failed to execute %s. %s", queries, e.getMessage()));
+        }
+    }
+
     public void touch(String query) throws CalabashException {
+        awaitPendingActions();
         try {
             info("Touching - %s", query);
-            container.put(QUERY_STRING, query);
-            container.runScriptlet(String.format("touch(%s)", QUERY_STRING));
+            if (isHttpDriverEnabled())
+                getHttpClient().touch(query);
+            else
+                operations.call("touch", query);
             pause();
         } catch (Exception e) {
             error("Failed to touch on: %s", e, query);
@@ -296,11 +426,13 @@ public class CalabashWrapper {
     }
 
     public void enterText(String text, String query) throws CalabashException {
+        awaitPendingActions();
         try {
             info("Entering text %s into %s", text, query);
-            container.put(QUERY_STRING, query);
-            container.put("TEXT", text);
-            container.runScriptlet(String.format("enter_text(%s,%s)", QUERY_STRING, "TEXT"));
+            if (isHttpDriverEnabled())
+                getHttpClient().enterText(text, query);
+            else
+                operations.call("enter_text", query, text);
             pause();
         } catch (Exception e) {
             error("Failed to enter text %s into %s", e, text, query);
@@ -309,10 +441,24 @@ public class CalabashWrapper {
     }
 
     public void dispose() throws CalabashException {
+        if (disposed)
+            return;
         try {
-            container.clear();
-            container.getProvider().getRuntime().tearDown(true);
-            container.terminate();
+            if (actionPipeline != null) {
+                try {
+                    awaitPendingActions();
+                } catch (CalabashException e) {
+                    error("Pending action failed while disposing", e);
+                }
+                actionPipeline.shutdown();
+                actionPipeline = null;
+            }
+            scriptlets.clear();
+            if (httpClient != null)
+                httpClient.close();
+            httpClient = null;
+            settleDetector = null;
+            containerPool.release(container);
             disposed = true;
         } catch (Throwable e) {
             error("Failed to dispose container. ", e);
@@ -321,11 +467,10 @@ public class CalabashWrapper {
     }
 
     public void takeScreenShot(File dir, String fileName) throws CalabashException {
+        awaitPendingActions();
         try {
             info("Taking screenshot");
-            container.put(SCREENSHOT_PREFIX, dir.getAbsolutePath() + "/");
-            container.put(SCREENSHOT_FILENAME, fileName);
-            container.runScriptlet(String.format("screenshot(options={:prefix => %s, :name => %s})", SCREENSHOT_PREFIX, SCREENSHOT_FILENAME));
+            operations.call("screenshot", operations.options("prefix", dir.getAbsolutePath() + "/", "name", fileName));
         } catch (Exception e) {
             error("Failed to take screenshot.", e);
             throw new CalabashException(String.format("Failed to take screenshot. %s", e.getMessage()));
@@ -333,10 +478,10 @@ public class CalabashWrapper {
     }
 
     public Map<String, String> getPreferences(String preferenceName) throws CalabashException {
+        awaitPendingActions();
         try {
             info("Finding preferences: %s", preferenceName);
-            container.put(PREFERENCE_NAME, preferenceName);
-            RubyHash preferenceHash = (RubyHash) container.runScriptlet(String.format("get_preferences(%s)", PREFERENCE_NAME));
+            RubyHash preferenceHash = (RubyHash) operations.call("get_preferences", preferenceName);
             return (Map<String, String>) Utils.toJavaHash(preferenceHash);
         } catch (Exception e) {
             error("Failed to get preferences: %s", preferenceName);
@@ -345,9 +490,10 @@ public class CalabashWrapper {
     }
 
     public String getCurrentActivity() throws CalabashException {
+        awaitPendingActions();
         try {
             info("Getting current activity");
-            RubyHash activityInfoMap = (RubyHash) container.runScriptlet("perform_action('get_activity_name')");
+            RubyHash activityInfoMap = (RubyHash) operations.call("perform_action", "get_activity_name");
             String activityName = (String) Utils.toJavaHash(activityInfoMap).get("message");
             info("Current activity: %s", activityName);
             return activityName;
@@ -359,16 +505,16 @@ public class CalabashWrapper {
     }
 
     public DateTime getDate(String query) throws CalabashException {
+        awaitPendingActions();
         try {
             info("Getting date from %s", query);
-            container.put(QUERY_STRING, query);
-            RubyArray rubyArray = (RubyArray) container.runScriptlet(String.format("query(%s, :getYear)", QUERY_STRING));
+            RubyArray rubyArray = (RubyArray) operations.call("query", query, operations.symbol("getYear"));
             int year = Utils.getFirstIntValue(rubyArray);
 
-            rubyArray = (RubyArray) container.runScriptlet(String.format("query(%s, :getMonth)", QUERY_STRING));
+            rubyArray = (RubyArray) operations.call("query", query, operations.symbol("getMonth"));
             int month = Utils.getFirstIntValue(rubyArray);
 
-            rubyArray = (RubyArray) container.runScriptlet(String.format("query(%s, :getDayOfMonth)", QUERY_STRING));
+            rubyArray = (RubyArray) operations.call("query", query, operations.symbol("getDayOfMonth"));
             int day = Utils.getFirstIntValue(rubyArray);
 
             return new DateTime(year, month + 1, day, 0, 0);
@@ -379,13 +525,13 @@ public class CalabashWrapper {
     }
 
     public String getTime(String query) throws CalabashException {
+        awaitPendingActions();
         try {
             info("Getting time from %s", query);
-            container.put(QUERY_STRING, query);
-            RubyArray rubyArray = (RubyArray) container.runScriptlet(String.format("query(%s, :getCurrentHour)", QUERY_STRING));
+            RubyArray rubyArray = (RubyArray) operations.call("query", query, operations.symbol("getCurrentHour"));
             int hour = Utils.getFirstIntValue(rubyArray);
 
-            rubyArray = (RubyArray) container.runScriptlet(String.format("query(%s, :getCurrentMinute)", QUERY_STRING));
+            rubyArray = (RubyArray) operations.call("query", query, operations.symbol("getCurrentMinute"));
             int minute = Utils.getFirstIntValue(rubyArray);
 
 
@@ -397,10 +543,10 @@ public class CalabashWrapper {
     }
 
     public void setChecked(String query, boolean checked) throws CalabashException {
+        awaitPendingActions();
         try {
             info("Setting checked to : %s", checked);
-            container.put(QUERY_STRING, query);
-            container.runScriptlet(String.format("query(%s, {:method_name => :setChecked, :arguments => [%s] })", QUERY_STRING, checked));
+            operations.call("query", query, operations.options("method_name", operations.symbol("setChecked"), "arguments", operations.array(checked)));
         } catch (Exception e) {
             String message = String.format("Failed to set checked property to: %s", checked);
             error(message, e);
@@ -409,9 +555,10 @@ public class CalabashWrapper {
     }
 
     public void performGoBack() throws CalabashException {
+        awaitPendingActions();
         try {
             info("Pressing back button");
-            container.runScriptlet("press_back_button");
+            operations.call("press_back_button");
             pause();
         } catch (Exception e) {
             String message = "Failed to go back";
@@ -422,9 +569,10 @@ public class CalabashWrapper {
     }
 
     public void pressEnterKey() throws CalabashException {
+        awaitPendingActions();
         try {
             info("Pressing enter key");
-            container.runScriptlet("press_user_action_button");
+            operations.call("press_user_action_button");
             pause();
         } catch (Exception e) {
             String message = "Failed to press enter key";
@@ -434,9 +582,10 @@ public class CalabashWrapper {
     }
 
     public void scrollDown() throws CalabashException {
+        awaitPendingActions();
         try {
             info("Scrolling down");
-            container.runScriptlet("scroll_down");
+            operations.call("scroll_down");
         } catch (Exception e) {
             String message = "Failed to scroll down";
             error(message, e);
@@ -445,9 +594,10 @@ public class CalabashWrapper {
     }
 
     public void scrollUp() throws CalabashException {
+        awaitPendingActions();
         try {
             info("Scrolling up");
-            container.runScriptlet("scroll_up");
+            operations.call("scroll_up");
         } catch (Exception e) {
             String message = "Failed to scroll up";
             error(message, e);
@@ -456,6 +606,7 @@ public class CalabashWrapper {
     }
 
     public void selectMenuItem(String menuItem) throws CalabashException {
+        awaitPendingActions();
         info("Selecting menu item %s", menuItem);
         try {
             touch(String.format("com.android.internal.view.menu.ActionMenuItemView marked:\"%s\"", menuItem));
@@ -466,8 +617,7 @@ public class CalabashWrapper {
 
     private void selectOptionsMenuItem(String menuItem) throws CalabashException {
         try {
-            container.put(MENU_ITEM, menuItem);
-            container.runScriptlet(String.format("select_options_menu_item %s", MENU_ITEM));
+            operations.call("select_options_menu_item", menuItem);
             pause();
         } catch (Exception e) {
             throw new CalabashException(String.format("Failed to select menu item '%s'", menuItem));
@@ -475,9 +625,10 @@ public class CalabashWrapper {
     }
 
     public void drag(Integer fromX, Integer toX, Integer fromY, Integer toY, Integer steps) throws CalabashException {
+        awaitPendingActions();
         try {
             info("Performing drag from: (%s,%s) to: (%s,%s) in %s steps", fromX, fromY, toX, toY, steps);
-            container.runScriptlet(String.format("perform_action('drag', '%d', '%d', '%d', '%d', '%d')", fromX, toX, fromY, toY, steps));
+            operations.call("perform_action", "drag", fromX.toString(), toX.toString(), fromY.toString(), toY.toString(), steps.toString());
         } catch (Exception e) {
             String message = "Error performing drag";
             error(message, e);
@@ -486,9 +637,10 @@ public class CalabashWrapper {
     }
 
     public void longPress(String query) throws CalabashException {
+        awaitPendingActions();
         try {
             info("Long pressing element: %s", query);
-            container.runScriptlet(String.format("long_press_when_element_exists(\"%s\")", query));
+            operations.call("long_press_when_element_exists", query);
             pause();
         } catch (Exception e) {
             String message = "Failed to long press";
@@ -498,9 +650,10 @@ public class CalabashWrapper {
     }
 
     public void setGPSCoordinates(double latitude, double longitude) throws CalabashException {
+        awaitPendingActions();
         try {
             info("Setting gps coordinates %f : %f", latitude, longitude);
-            container.runScriptlet(String.format("set_gps_coordinates(%f, %f)", latitude, longitude));
+            operations.call("set_gps_coordinates", latitude, longitude);
 
         } catch (Exception e) {
             String message = String.format("Failed to set coordinates %f : %f", latitude, longitude);
@@ -511,9 +664,10 @@ public class CalabashWrapper {
     }
 
     public void setGPSLocation(String location) throws CalabashException {
+        awaitPendingActions();
         try {
             info("Setting GPS location to : %s", location);
-            container.runScriptlet(String.format("set_gps_coordinates_from_location('%s')", location));
+            operations.call("set_gps_coordinates_from_location", location);
         } catch (Exception e) {
             String message = "Failed to set gps location to : " + location;
             error(message, e);
@@ -522,10 +676,10 @@ public class CalabashWrapper {
     }
 
     public void setDate(String query, int year, int month, int day) throws CalabashException {
+        awaitPendingActions();
         try {
             info("Setting date: %d-%d-%d - format yyyy-mm-dd", year, month, day);
-            container.put(QUERY_STRING, query);
-            container.runScriptlet(String.format("set_date(%s,%d,%d,%d)", QUERY_STRING, year, month, day));
+            operations.call("set_date", query, year, month, day);
         } catch (Exception e) {
             String message = String.format("Failed to set date : %d-%d-%d", year, month, day);
             error(message, e);
@@ -535,10 +689,10 @@ public class CalabashWrapper {
     }
 
     public void setTime(String query, int hour, int minute) throws CalabashException {
+        awaitPendingActions();
         try {
             info("Setting time: %d:%d ", hour, minute);
-            container.put(QUERY_STRING, query);
-            container.runScriptlet(String.format("set_time(%s,%d,%d)", QUERY_STRING, hour, minute));
+            operations.call("set_time", query, hour, minute);
         } catch (Exception e) {
             String message = String.format("Failed to set time : %d:%d", hour, minute);
             error(message, e);
@@ -546,12 +700,23 @@ public class CalabashWrapper {
         }
     }
 
-    public RubyHash performAction(String action, String[] args) throws CalabashException {
+    /**
+     * Performs the action through the test server when the http driver is enabled, through the ruby client otherwise
+     *
+     * @param action calabash action, eg: click_on_screen
+     * @param args   arguments of the action
+     * @return result of the action
+     * @throws CalabashException
+     */
+    public ActionResult performAction(String action, String... args) throws CalabashException {
+        awaitPendingActions();
+        if (isHttpDriverEnabled())
+            return getHttpClient().performAction(action, args);
         try {
             info("performing action %s with args %s", action, Utils.getStringFromArray(args));
-            container.put(ACTION, action);
-            container.put(ACTION_ARGS, args);
-            return (RubyHash) container.runScriptlet(String.format("perform_action(%s,*%s)", ACTION, ACTION_ARGS));
+            RubyHash result = (RubyHash) operations.callWithSplat("perform_action", action, args);
+            Object[] bonusInformation = Utils.toJavaArray((RubyArray) result.get("bonusInformation"));
+            return new ActionResult(bonusInformation, result.get("message").toString(), Boolean.parseBoolean(result.get("success").toString()));
         } catch (Exception e) {
             String message = String.format("Failed to perform action %s with args %s", action, Utils.getStringFromArray(args));
             error(message, e);
@@ -560,21 +725,48 @@ public class CalabashWrapper {
     }
 
     public void waitFor(ICondition condition, WaitOptions options) throws CalabashException, OperationTimedoutException {
+        awaitPendingActions();
         try {
             info("Waiting for condition");
             addRequiresAndIncludes("Calabash::Android::WaitHelpers");
             container.put(WAIT_CONDITION, condition);
             String waitOptionsHash = getWaitOptionsHash(options);
             if (waitOptionsHash == null)
-                container.runScriptlet(String.format("wait_for { %s.test }", WAIT_CONDITION));
+                scriptlets.run(String.format("wait_for { %s.test }", WAIT_CONDITION));
             else {
-                container.runScriptlet(String.format("wait_for(%s) { %s.test }", waitOptionsHash, WAIT_CONDITION));
+                scriptlets.run(String.format("wait_for(%s) { %s.test }", waitOptionsHash, WAIT_CONDITION));
             }
         } catch (Exception e) {
             handleWaitException(e, options);
         }
     }
 
+    /**
+     * Gets the pipeline running the asynchronous actions of this session
+     *
+     * @return the action pipeline
+     */
+    public synchronized ActionPipeline getActionPipeline() {
+        if (actionPipeline == null)
+            actionPipeline = new ActionPipeline("calabash-actions-" + apk.getName());
+        return actionPipeline;
+    }
+
+    /**
+     * Waits for the queued asynchronous actions, so that synchronous operations observe their effect.
+     * Does nothing when called from the pipeline itself.
+     *
+     * @throws CalabashException the first failure among the queued actions
+     */
+    public void awaitPendingActions() throws CalabashException {
+        ActionPipeline pipeline;
+        synchronized (this) {
+            pipeline = actionPipeline;
+        }
+        if (pipeline != null && !pipeline.isWorkerThread())
+            pipeline.barrier();
+    }
+
     private void ensureNotDisposed() throws CalabashException {
         if (disposed)
             throw new CalabashException("Object is disposed.");
@@ -617,31 +809,70 @@ public class CalabashWrapper {
         }
     }
 
+    /**
+     * @return time taken by the UI to settle after the last action in milliseconds, -1 if settle mode is
+     * disabled or no action was performed yet
+     */
+    public long getLastUISettleTimeInMs() {
+        return settleDetector == null ? -1 : settleDetector.getLastSettleTimeInMs();
+    }
+
     private void pause() {
+        if (configuration != null && configuration.shouldWaitForUISettle()) {
+            if (settleDetector == null)
+                settleDetector = new UISettleDetector(getHttpClient(), configuration.getUISettleTimeoutInMs());
+            settleDetector.waitForSettle();
+            return;
+        }
         try {
             Thread.sleep(pauseTimeInMilliSec);
         } catch (InterruptedException ignored) {
         }
     }
 
+    private void changeDirectory(File directory) {
+        container.put(DIRECTORY, directory.getAbsolutePath());
+        scriptlets.run(format("Dir.chdir %s", DIRECTORY));
+    }
+
     private void addContainerEnv(String envName, String envValue) {
         String cajEnv = ENVIRONMENT_VAR_PLACEHOLDER;
         container.put(cajEnv, envValue);
-        container.runScriptlet(format("ENV['%s'] = %s", envName, cajEnv));
+        scriptlets.run(format("ENV['%s'] = %s", envName, cajEnv));
+    }
+
+    /**
+     * @return true if the high frequency operations should talk to the test server directly
+     */
+    public boolean isHttpDriverEnabled() {
+        return configuration != null && configuration.shouldUseHttpDriver();
+    }
+
+    /**
+     * Gets the client talking to the test server of the current session
+     *
+     * @return the http client
+     */
+    public CalabashHttpClient getHttpClient() {
+        if (httpClient == null) {
+            httpClient = new CalabashHttpClient(this);
+            if (configuration != null)
+                httpClient.setRequestTimeout(configuration.getTestServerRequestTimeoutInMs());
+        }
+        return httpClient;
     }
 
     public String getTestServerPort() throws CalabashException {
         addRequiresAndIncludes("Calabash::Android::Operations");
-        final Object serverPort = container.runScriptlet("default_device.default_server_port");
+        final Object serverPort = operations.callOn(operations.call("default_device"), "default_server_port");
         return serverPort.toString();
     }
 
     public boolean elementExistsById(String id) throws CalabashException {
+        awaitPendingActions();
         try {
             info("Checking for element's existence");
-            Boolean existsAsUIElement = (Boolean) container.runScriptlet(String.format("element_exists(\"%s\")", id));
-            Boolean existsAsWebView = (Boolean) container.runScriptlet("element_exists(\"webView css:'#" + id + "'\")");
-            return existsAsUIElement || existsAsWebView;
+            return !query(id).isEmpty() || !query("webView css:'#" + id + "'").isEmpty();
         } catch (Exception e) {
             String message = "Failed to check for element's existence";
             error(message, e);
@@ -650,9 +881,10 @@ public class CalabashWrapper {
     }
 
     public void hideKeyboard() throws CalabashException {
+        awaitPendingActions();
         try {
             info("hiding keyboard");
-            container.runScriptlet("hide_soft_keyboard");
+            operations.call("hide_soft_keyboard");
         } catch (Exception e) {
             String message = "Failed hide keyboard";
             error(message, e);
@@ -660,10 +892,11 @@ public class CalabashWrapper {
         }
     }
 
-    public void waitForActivity(String activityName, int timeout) throws OperationTimedoutException {
+    public void waitForActivity(String activityName, int timeout) throws OperationTimedoutException, CalabashException {
+        awaitPendingActions();
         try {
             info("waiting for activity %s for %d seconds", activityName, timeout);
-            container.runScriptlet(String.format("wait_for_activity('%s',%d)", activityName, timeout));
+            operations.call("wait_for_activity", activityName, timeout);
         } catch (Exception e) {
             String message = String.format("Activity '%s' did not appear within %d seconds", activityName, timeout);
             error(message, e);
@@ -672,9 +905,10 @@ public class CalabashWrapper {
     }
 
     public Object executeCommand(String calabashCommand) throws CalabashException {
+        awaitPendingActions();
         try {
             info("Executing : %s", calabashCommand);
-            return container.runScriptlet(calabashCommand);
+            return scriptlets.run(calabashCommand);
         } catch (Exception e) {
             String message = String.format("Failed executing command : %s", calabashCommand);
             error(message, e);
@@ -0,0 +1,90 @@
+package com.thoughtworks.calabash.android;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import static com.thoughtworks.calabash.android.CalabashLogger.info;
+
+/**
+ * Creates the android debug keystore with the JDK security APIs, the same way
+ * <code>keytool -genkey -alias androiddebugkey -storepass android -keypass android -keyalg RSA -keysize 2048
+ * -validity 10000 -dname "CN=AndroidDebug,O=Android,C=US"</code> does, without launching keytool.
+ */
+public class DebugKeystore {
+    public static final String ALIAS = "androiddebugkey";
+    public static final String PASSWORD = "android";
+    private static final int KEY_SIZE = 2048;
+    private static final int VALIDITY_IN_DAYS = 10000;
+    private static final String SHA256_WITH_RSA = "1.2.840.113549.1.1.11";
+    private static final String COUNTRY = "2.5.4.6";
+    private static final String ORGANIZATION = "2.5.4.10";
+    private static final String COMMON_NAME = "2.5.4.3";
+
+    /**
+     * Generates a key pair and self signed certificate and stores them in a new JKS keystore
+     *
+     * @param keystore file to be created
+     * @throws CalabashException
+     */
+    public static void generate(File keystore) throws CalabashException {
+        OutputStream out = null;
+        try {
+            long startTime = System.currentTimeMillis();
+            KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+            generator.initialize(KEY_SIZE, new SecureRandom());
+            KeyPair keyPair = generator.generateKeyPair();
+            X509Certificate certificate = selfSignedCertificate(keyPair);
+
+            KeyStore store = KeyStore.getInstance("JKS");
+            store.load(null, null);
+            store.setKeyEntry(ALIAS, keyPair.getPrivate(), PASSWORD.toCharArray(), new Certificate[]{certificate});
+            out = new FileOutputStream(keystore);
+            store.store(out, PASSWORD.toCharArray());
+            info("Generated debug keystore at %s in %d ms", keystore.getAbsolutePath(), System.currentTimeMillis() - startTime);
+        } catch (Exception e) {
+            throw new CalabashException("Could not generate debug keystore at " + keystore.getAbsolutePath(), e);
+        } finally {
+            Utils.closeQuietly(out);
+        }
+    }
+
+    private static X509Certificate selfSignedCertificate(KeyPair keyPair) throws Exception {
+        byte[] name = Der.sequence(
+                Der.set(Der.sequence(Der.oid(COUNTRY), Der.printableString("US"))),
+                Der.set(Der.sequence(Der.oid(ORGANIZATION), Der.printableString("Android"))),
+                Der.set(Der.sequence(Der.oid(COMMON_NAME), Der.printableString("AndroidDebug"))));
+        Date notBefore = new Date();
+        Date notAfter = new Date(notBefore.getTime() + TimeUnit.DAYS.toMillis(VALIDITY_IN_DAYS));
+        byte[] algorithm = Der.algorithm(SHA256_WITH_RSA);
+
+        byte[] tbsCertificate = Der.sequence(
+                Der.tagged(0, Der.integer(2)),
+                Der.integer(new BigInteger(63, new SecureRandom())),
+                algorithm,
+                name,
+                Der.sequence(Der.time(notBefore), Der.time(notAfter)),
+                name,
+                keyPair.getPublic().getEncoded());
+
+        Signature signature = Signature.getInstance("SHA256withRSA");
+        signature.initSign(keyPair.getPrivate());
+        signature.update(tbsCertificate);
+        byte[] certificate = Der.sequence(tbsCertificate, algorithm, Der.bitString(signature.sign()));
+
+        CertificateFactory factory = CertificateFactory.getInstance("X.509");
+        return (X509Certificate) factory.generateCertificate(new ByteArrayInputStream(certificate));
+    }
+}
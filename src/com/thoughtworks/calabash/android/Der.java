@@ -0,0 +1,136 @@
+package com.thoughtworks.calabash.android;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.math.BigInteger;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.TimeZone;
+
+/**
+ * Minimal DER encoder for the structures needed to build certificates and PKCS#7 signature blocks
+ */
+final class Der {
+    private static final int INTEGER = 0x02;
+    private static final int BIT_STRING = 0x03;
+    private static final int OCTET_STRING = 0x04;
+    private static final int NULL = 0x05;
+    private static final int OBJECT_IDENTIFIER = 0x06;
+    private static final int PRINTABLE_STRING = 0x13;
+    private static final int UTC_TIME = 0x17;
+    private static final int GENERALIZED_TIME = 0x18;
+    private static final int SEQUENCE = 0x30;
+    private static final int SET = 0x31;
+
+    private Der() {
+    }
+
+    public static byte[] sequence(byte[]... contents) {
+        return encode(SEQUENCE, concat(contents));
+    }
+
+    public static byte[] set(byte[]... contents) {
+        return encode(SET, concat(contents));
+    }
+
+    public static byte[] integer(BigInteger value) {
+        return encode(INTEGER, value.toByteArray());
+    }
+
+    public static byte[] integer(long value) {
+        return integer(BigInteger.valueOf(value));
+    }
+
+    public static byte[] nullValue() {
+        return encode(NULL, new byte[0]);
+    }
+
+    public static byte[] octetString(byte[] value) {
+        return encode(OCTET_STRING, value);
+    }
+
+    public static byte[] bitString(byte[] value) {
+        byte[] content = new byte[value.length + 1];
+        System.arraycopy(value, 0, content, 1, value.length);
+        return encode(BIT_STRING, content);
+    }
+
+    public static byte[] printableString(String value) {
+        return encode(PRINTABLE_STRING, ascii(value));
+    }
+
+    /**
+     * Encodes as UTCTime up to 2049 and GeneralizedTime afterwards, as required for certificate validity
+     */
+    public static byte[] time(Date date) {
+        Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+        calendar.setTime(date);
+        boolean utc = calendar.get(Calendar.YEAR) < 2050;
+        SimpleDateFormat format = new SimpleDateFormat(utc ? "yyMMddHHmmss'Z'" : "yyyyMMddHHmmss'Z'");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return encode(utc ? UTC_TIME : GENERALIZED_TIME, ascii(format.format(date)));
+    }
+
+    public static byte[] oid(String dotted) {
+        String[] parts = dotted.split("\\.");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(Integer.parseInt(parts[0]) * 40 + Integer.parseInt(parts[1]));
+        for (int i = 2; i < parts.length; i++) {
+            long value = Long.parseLong(parts[i]);
+            int groups = 1;
+            while ((value >> (7 * groups)) != 0)
+                groups++;
+            for (int group = groups - 1; group >= 0; group--) {
+                int septet = (int) ((value >> (7 * group)) & 0x7f);
+                out.write(group == 0 ? septet : septet | 0x80);
+            }
+        }
+        return encode(OBJECT_IDENTIFIER, out.toByteArray());
+    }
+
+    public static byte[] algorithm(String oid) {
+        return sequence(oid(oid), nullValue());
+    }
+
+    /**
+     * Context specific constructed tag, used for both EXPLICIT tagging and IMPLICIT tagging of SET/SEQUENCE OF
+     */
+    public static byte[] tagged(int tag, byte[]... contents) {
+        return encode(0xa0 | tag, concat(contents));
+    }
+
+    public static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.write(part, 0, part.length);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] encode(int tag, byte[] content) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(tag);
+        int length = content.length;
+        if (length < 0x80) {
+            out.write(length);
+        } else {
+            int bytes = 0;
+            for (int remaining = length; remaining != 0; remaining >>= 8)
+                bytes++;
+            out.write(0x80 | bytes);
+            for (int i = bytes - 1; i >= 0; i--)
+                out.write((length >> (8 * i)) & 0xff);
+        }
+        out.write(content, 0, content.length);
+        return out.toByteArray();
+    }
+
+    private static byte[] ascii(String value) {
+        try {
+            return value.getBytes("US-ASCII");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -1,12 +1,25 @@
 package com.thoughtworks.calabash.android;
 
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
 public class Device {
     private final String serial;
     private final String state;
+    private final Map<String, String> properties;
 
     public Device(String serial, String state) {
+        this(serial, state, Collections.<String, String>emptyMap());
+    }
+
+    /**
+     * @param properties details reported by the adb server, eg: model, product, transport_id
+     */
+    public Device(String serial, String state, Map<String, String> properties) {
         this.serial = serial;
         this.state = state;
+        this.properties = Collections.unmodifiableMap(new HashMap<String, String>(properties));
     }
 
     public String getSerial() {
@@ -17,6 +30,18 @@ public class Device {
         return state;
     }
 
+    /**
+     * @param name name of the detail, eg: model
+     * @return value of the detail or null if the adb server didn't report it
+     */
+    public String getProperty(String name) {
+        return properties.get(name);
+    }
+
+    public Map<String, String> getProperties() {
+        return properties;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
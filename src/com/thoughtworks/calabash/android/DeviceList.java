@@ -12,6 +12,10 @@ public class DeviceList {
         parseForDevices(outputFromAdbDeviceList);
     }
 
+    public DeviceList(List<Device> devices) {
+        this.devices.addAll(devices);
+    }
+
     private void parseForDevices(String outputFromAdbDeviceList) {
         int startIndex = outputFromAdbDeviceList.indexOf(HEADER) + HEADER.length();
         String devices = outputFromAdbDeviceList.substring(startIndex);
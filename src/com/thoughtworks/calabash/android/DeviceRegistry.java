@@ -0,0 +1,307 @@
+package com.thoughtworks.calabash.android;
+
+import java.io.InputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static com.thoughtworks.calabash.android.CalabashLogger.error;
+import static com.thoughtworks.calabash.android.CalabashLogger.info;
+import static java.lang.String.format;
+
+/**
+ * Keeps the state of every device known to the adb server, updated from the server's track-devices stream instead
+ * of running <code>adb devices</code> whenever the list is needed. Callers can listen for devices being attached,
+ * changing state and being detached, or block until a device reaches a state.
+ * <p/>
+ * The registry is shared JVM wide per adb server and tracks the devices on a daemon thread, reconnecting when the
+ * server restarts.
+ */
+public class DeviceRegistry {
+    public static final String STATE_DEVICE = "device";
+    private static final long RECONNECT_DELAY_IN_MS = 1000;
+    private static final long FIRST_UPDATE_TIMEOUT_IN_MS = 5000;
+    private static final Map<String, DeviceRegistry> registries = new HashMap<String, DeviceRegistry>();
+
+    private final AdbClient adbClient;
+    private final Map<String, Device> devices = new LinkedHashMap<String, Device>();
+    private final Map<String, Long> stateChangedAt = new HashMap<String, Long>();
+    private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+    private boolean tracking;
+    private String failure;
+    private Thread tracker;
+    private Socket socket;
+
+    /**
+     * Receives the changes to the device list, on the registry's thread
+     */
+    public interface Listener {
+        void attached(Device device);
+
+        void stateChanged(Device device, String previousState);
+
+        void detached(Device device);
+    }
+
+    DeviceRegistry(AdbClient adbClient) {
+        this.adbClient = adbClient;
+    }
+
+    /**
+     * @return the JVM wide registry for the adb server, tracking its devices
+     */
+    public static DeviceRegistry forServer(AdbClient adbClient) {
+        synchronized (registries) {
+            DeviceRegistry registry = registries.get(adbClient.getAddress());
+            if (registry == null) {
+                registry = new DeviceRegistry(adbClient);
+                registries.put(adbClient.getAddress(), registry);
+            }
+            registry.start();
+            return registry;
+        }
+    }
+
+    /**
+     * Starts tracking the devices in the background, unless already started
+     */
+    public synchronized void start() {
+        if (tracker != null)
+            return;
+        failure = null;
+        tracker = new Thread(new Runnable() {
+            public void run() {
+                track(Thread.currentThread());
+            }
+        }, "calabash-device-registry");
+        tracker.setDaemon(true);
+        tracker.start();
+    }
+
+    /**
+     * Stops tracking. The last known devices are kept until the next {@link #start()}
+     */
+    public void stop() {
+        Socket connection;
+        synchronized (this) {
+            tracker = null;
+            tracking = false;
+            connection = socket;
+            socket = null;
+            notifyAll();
+        }
+        Utils.closeQuietly(connection);
+    }
+
+    /**
+     * @return true when connected to the adb server and the device list is current
+     */
+    public synchronized boolean isTracking() {
+        return tracking;
+    }
+
+    /**
+     * Gets the devices, waiting for the server's first update after connecting
+     *
+     * @return devices known to the adb server, same as <code>adb devices</code>
+     * @throws CalabashException when the adb server can't be tracked
+     */
+    public synchronized List<Device> getDevices() throws CalabashException {
+        awaitTracking();
+        return new ArrayList<Device>(devices.values());
+    }
+
+    /**
+     * @return the device or null if the adb server doesn't know it
+     * @throws CalabashException when the adb server can't be tracked
+     */
+    public synchronized Device getDevice(String serial) throws CalabashException {
+        awaitTracking();
+        return devices.get(serial);
+    }
+
+    /**
+     * @return time in ms when the device was attached or last changed state, -1 if the device is not attached
+     */
+    public synchronized long getStateChangedAt(String serial) {
+        Long time = stateChangedAt.get(serial);
+        return time == null ? -1 : time;
+    }
+
+    /**
+     * Blocks until the device is attached in the given state
+     *
+     * @param state eg: device, offline
+     * @return the device
+     * @throws CalabashException when the device doesn't reach the state within the timeout
+     */
+    public synchronized Device awaitState(String serial, String state, long timeoutInMs) throws CalabashException {
+        long deadline = System.currentTimeMillis() + timeoutInMs;
+        while (true) {
+            Device device = devices.get(serial);
+            if (tracking && device != null && state.equals(device.getState()))
+                return device;
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0)
+                throw new CalabashException(format("%s did not become %s in %d ms. Current state: %s", serial, state, timeoutInMs, device == null ? "not attached" : device.getState()));
+            waitFor(remaining);
+        }
+    }
+
+    /**
+     * Blocks until a device which is not in <code>knownSerials</code> is attached, in any state
+     *
+     * @return the new device
+     * @throws CalabashException when no device is attached within the timeout
+     */
+    public synchronized Device awaitNewDevice(Collection<String> knownSerials, long timeoutInMs) throws CalabashException {
+        long deadline = System.currentTimeMillis() + timeoutInMs;
+        while (true) {
+            if (tracking) {
+                for (Device device : devices.values()) {
+                    if (!knownSerials.contains(device.getSerial()))
+                        return device;
+                }
+            }
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0)
+                throw new CalabashException(format("No new device was attached in %d ms", timeoutInMs));
+            waitFor(remaining);
+        }
+    }
+
+    /**
+     * Adds the listener unless it was already added
+     */
+    public void addListener(Listener listener) {
+        listeners.addIfAbsent(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    private void awaitTracking() throws CalabashException {
+        long deadline = System.currentTimeMillis() + FIRST_UPDATE_TIMEOUT_IN_MS;
+        while (!tracking) {
+            if (failure != null)
+                throw new CalabashException("Not tracking the devices of the adb server. " + failure);
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0)
+                throw new CalabashException("Timed out waiting for the device list from the adb server");
+            waitFor(remaining);
+        }
+    }
+
+    private void waitFor(long timeoutInMs) throws CalabashException {
+        try {
+            wait(timeoutInMs);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CalabashException("Interrupted while waiting for the device list", e);
+        }
+    }
+
+    private synchronized boolean isCurrentTracker(Thread thread) {
+        return tracker == thread;
+    }
+
+    private void track(Thread thread) {
+        while (isCurrentTracker(thread)) {
+            Socket connection = null;
+            try {
+                connection = adbClient.trackDevices();
+                synchronized (this) {
+                    if (tracker != thread)
+                        break;
+                    socket = connection;
+                }
+                InputStream in = connection.getInputStream();
+                List<Device> update;
+                while ((update = adbClient.readDeviceListUpdate(in)) != null) {
+                    update(update);
+                }
+                connectionLost(thread, "adb server closed the connection");
+            } catch (Exception e) {
+                connectionLost(thread, e.getMessage());
+            } finally {
+                Utils.closeQuietly(connection);
+            }
+            try {
+                Thread.sleep(RECONNECT_DELAY_IN_MS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private synchronized void connectionLost(Thread thread, String reason) {
+        if (tracker != thread)
+            return;
+        if (tracking || failure == null)
+            info("Stopped tracking devices. %s", reason);
+        tracking = false;
+        failure = reason;
+        socket = null;
+        notifyAll();
+    }
+
+    private void update(List<Device> latest) {
+        List<Device> attached = new ArrayList<Device>();
+        List<Device> changed = new ArrayList<Device>();
+        List<String> previousStates = new ArrayList<String>();
+        List<Device> detached = new ArrayList<Device>();
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            Map<String, Device> current = new LinkedHashMap<String, Device>();
+            for (Device device : latest) {
+                current.put(device.getSerial(), device);
+                Device previous = devices.get(device.getSerial());
+                if (previous == null) {
+                    attached.add(device);
+                    stateChangedAt.put(device.getSerial(), now);
+                } else if (!previous.getState().equals(device.getState())) {
+                    changed.add(device);
+                    previousStates.add(previous.getState());
+                    stateChangedAt.put(device.getSerial(), now);
+                }
+            }
+            for (Device device : devices.values()) {
+                if (!current.containsKey(device.getSerial())) {
+                    detached.add(device);
+                    stateChangedAt.remove(device.getSerial());
+                }
+            }
+            devices.clear();
+            devices.putAll(current);
+            tracking = true;
+            failure = null;
+            notifyAll();
+        }
+
+        for (Device device : detached) {
+            info("%s detached", device.getSerial());
+            AdbShellSession.closeForDevice(adbClient, device.getSerial());
+        }
+        for (Listener listener : listeners) {
+            try {
+                for (Device device : attached) {
+                    listener.attached(device);
+                }
+                for (int i = 0; i < changed.size(); i++) {
+                    listener.stateChanged(changed.get(i), previousStates.get(i));
+                }
+                for (Device device : detached) {
+                    listener.detached(device);
+                }
+            } catch (RuntimeException e) {
+                error("Device listener failed", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,478 @@
+package com.thoughtworks.calabash.android;
+
+import org.codehaus.jackson.map.ObjectMapper;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermission;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.thoughtworks.calabash.android.CalabashLogger.error;
+import static com.thoughtworks.calabash.android.CalabashLogger.info;
+import static com.thoughtworks.calabash.android.CalabashLogger.warn;
+import static java.lang.String.format;
+
+/**
+ * Keeps started applications warm across test JVMs. The daemon owns one {@link AndroidRunner} session per apk and
+ * device; test JVMs connect with {@link RemoteAndroidApplication} over a local socket and reuse the session, so they
+ * don't extract gems, boot JRuby or restart the test server themselves.
+ * <p/>
+ * The protocol is one json object per line in each direction. A client opens a session with
+ * <code>{"command":"open","token":"...","apk":"/path/app.apk","serial":"emulator-5554"}</code> and sends
+ * <code>{"command":"touch","session":"...","args":["button"]}</code> for the operations. Every request is answered
+ * with either <code>{"result":...}</code> or <code>{"error":"...","timedOut":false}</code>.
+ * <p/>
+ * The token is generated at startup and written to a file only the user can read, see {@link #getTokenFile(int)}.
+ * Operations are only served for the sessions a connection opened with it. A session is restarted when it is
+ * opened for a changed apk or configuration, unless other connections use it, in which case the open fails. It is
+ * stopped when the last connection using it disposes it.
+ * <p/>
+ * Run it with <code>java com.thoughtworks.calabash.android.DriverDaemon [port]</code>.
+ */
+public class DriverDaemon {
+    public static final int DEFAULT_PORT = 7455;
+    static final String OPEN = "open";
+    static final String DISPOSE = "dispose";
+    private static final String TOKEN_FILE_PREFIX = ".calabash_driver_daemon_";
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final Map<String, Session> sessions = new HashMap<String, Session>();
+    private final RunnerFactory runnerFactory;
+    private final ServerSocket serverSocket;
+    private final File tokenFile;
+    private final String token;
+    private volatile boolean stopped = false;
+
+    /**
+     * Creates the {@link AndroidRunner} for a new session
+     */
+    public interface RunnerFactory {
+        AndroidRunner create(String apkPath, AndroidConfiguration configuration) throws CalabashException;
+    }
+
+    private static class Session {
+        private AndroidRunner runner;
+        private AndroidApplication application;
+        private String apkVersion;
+        private String settings;
+        private int clients;
+    }
+
+    /**
+     * @param port local port to listen on, 0 to pick a free one
+     * @throws CalabashException
+     */
+    public DriverDaemon(int port) throws CalabashException {
+        this(port, null, new RunnerFactory() {
+            public AndroidRunner create(String apkPath, AndroidConfiguration configuration) throws CalabashException {
+                return new AndroidRunner(apkPath, configuration);
+            }
+        });
+    }
+
+    /**
+     * @param tokenFile file the token is written to, null for {@link #getTokenFile(int)}
+     */
+    public DriverDaemon(int port, File tokenFile, RunnerFactory runnerFactory) throws CalabashException {
+        this.runnerFactory = runnerFactory;
+        try {
+            serverSocket = new ServerSocket(port, 50, InetAddress.getByName("127.0.0.1"));
+        } catch (IOException e) {
+            throw new CalabashException(format("Could not listen on port %d. %s", port, e.getMessage()), e);
+        }
+        this.tokenFile = tokenFile != null ? tokenFile : getTokenFile(getPort());
+        byte[] random = new byte[16];
+        new SecureRandom().nextBytes(random);
+        this.token = Utils.toHex(random);
+        try {
+            writeToken();
+        } catch (CalabashException e) {
+            Utils.closeQuietly(serverSocket);
+            throw e;
+        }
+    }
+
+    /**
+     * @return file in the user's home directory holding the token of the daemon listening on the port
+     */
+    public static File getTokenFile(int port) {
+        return new File(System.getProperty("user.home"), TOKEN_FILE_PREFIX + port + ".token");
+    }
+
+    public static void main(String[] args) throws CalabashException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        final DriverDaemon daemon = new DriverDaemon(port);
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                daemon.stop();
+            }
+        });
+        daemon.start();
+        info("Calabash driver daemon listening on port %d, token in %s", daemon.getPort(), daemon.tokenFile.getAbsolutePath());
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Starts accepting connections on a separate thread
+     */
+    public void start() {
+        Thread acceptor = new Thread(new Runnable() {
+            public void run() {
+                acceptConnections();
+            }
+        }, "calabash-driver-daemon");
+        acceptor.start();
+    }
+
+    /**
+     * Stops accepting connections, deletes the token file and disposes all the sessions
+     */
+    public void stop() {
+        stopped = true;
+        Utils.closeQuietly(serverSocket);
+        tokenFile.delete();
+        List<Session> openSessions;
+        synchronized (sessions) {
+            openSessions = new ArrayList<Session>(sessions.values());
+            sessions.clear();
+        }
+        for (Session session : openSessions) {
+            dispose(session);
+        }
+    }
+
+    public int getSessionCount() {
+        synchronized (sessions) {
+            return sessions.size();
+        }
+    }
+
+    private void acceptConnections() {
+        while (!stopped) {
+            try {
+                final Socket socket = serverSocket.accept();
+                Thread handler = new Thread(new Runnable() {
+                    public void run() {
+                        serve(socket);
+                    }
+                }, "calabash-driver-client");
+                handler.setDaemon(true);
+                handler.start();
+            } catch (IOException e) {
+                if (!stopped)
+                    error("Failed to accept driver connection", e);
+            }
+        }
+    }
+
+    /**
+     * Serves the requests of one connection. The sessions it opened are detached when it closes but kept running.
+     */
+    private void serve(Socket socket) {
+        Set<String> attached = new HashSet<String>();
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+            Writer writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8"));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                writer.write(mapper.writeValueAsString(handle(line, attached)));
+                writer.write('\n');
+                writer.flush();
+            }
+        } catch (SocketException ignored) {
+            // client went away
+        } catch (IOException e) {
+            error("Driver connection failed", e);
+        } finally {
+            Utils.closeQuietly(socket);
+            for (String key : new ArrayList<String>(attached)) {
+                detach(key, attached, false);
+            }
+        }
+    }
+
+    /**
+     * @param attached keys of the sessions the connection opened
+     */
+    Map<String, Object> handle(String line, Set<String> attached) {
+        Map<String, Object> response = new HashMap<String, Object>();
+        try {
+            Map<?, ?> request = mapper.readValue(line, Map.class);
+            String command = Utils.toString(request.get("command"));
+            Object args = request.get("args");
+            List<?> arguments = args instanceof List ? (List<?>) args : new ArrayList<Object>();
+            if (OPEN.equals(command)) {
+                response.put("result", open(request, attached));
+            } else if (DISPOSE.equals(command)) {
+                String key = Utils.toString(request.get("session"));
+                getSession(key, attached);
+                detach(key, attached, true);
+                response.put("result", null);
+            } else {
+                Session session = getSession(Utils.toString(request.get("session")), attached);
+                synchronized (session) {
+                    if (session.application == null)
+                        throw new CalabashException("Driver session is not started. Open it again");
+                    response.put("result", invoke(session.application, command, arguments));
+                }
+            }
+        } catch (OperationTimedoutException e) {
+            response.put("error", e.getMessage());
+            response.put("timedOut", true);
+        } catch (Exception e) {
+            response.put("error", e.getMessage() != null ? e.getMessage() : e.toString());
+            response.put("timedOut", false);
+        }
+        return response;
+    }
+
+    private String open(Map<?, ?> request, Set<String> attached) throws CalabashException {
+        checkToken(Utils.toString(request.get("token")));
+        File apkFile = new File(Utils.toString(request.get("apk"))).getAbsoluteFile();
+        String apk = apkFile.getPath();
+        AndroidConfiguration configuration = new AndroidConfiguration();
+        configuration.setSerial(stringOrNull(request.get("serial")));
+        configuration.setDeviceName(stringOrNull(request.get("deviceName")));
+        configuration.setAndroidHome(stringOrNull(request.get("androidHome")));
+        configuration.setJavaHome(stringOrNull(request.get("javaHome")));
+        configuration.setShouldReinstallApp(Boolean.TRUE.equals(request.get("reinstall")));
+        String key = apk + "|" + (configuration.getSerial() != null ? configuration.getSerial() : configuration.getDeviceName());
+        String apkVersion = apkFile.lastModified() + "|" + apkFile.length();
+        String settings = configuration.getAndroidHome() + "|" + configuration.getJavaHome() + "|" + configuration.shouldReinstallApp();
+
+        Session session;
+        boolean attaching;
+        synchronized (sessions) {
+            session = sessions.get(key);
+            if (session == null) {
+                session = new Session();
+                sessions.put(key, session);
+            }
+            attaching = attached.add(key);
+            if (attaching)
+                session.clients++;
+        }
+        synchronized (session) {
+            if (session.application != null && apkVersion.equals(session.apkVersion) && settings.equals(session.settings)) {
+                info("Reusing the driver session for %s", key);
+                return key;
+            }
+            if (session.runner != null && session.clients > 1) {
+                int others = session.clients - 1;
+                if (attaching)
+                    detach(key, attached, false);
+                throw new CalabashException(format("Driver session %s is used by %d other clients with a different apk or configuration. Dispose it there first", key, others));
+            }
+            if (session.runner != null) {
+                info("Restarting the driver session for %s, the apk or the configuration changed", key);
+                dispose(session);
+            }
+            try {
+                info("Starting a driver session for %s", key);
+                session.runner = runnerFactory.create(apk, configuration);
+                session.application = session.runner.start();
+                session.apkVersion = apkVersion;
+                session.settings = settings;
+            } catch (CalabashException e) {
+                dispose(session);
+                detach(key, attached, true);
+                throw e;
+            }
+        }
+        return key;
+    }
+
+    private void checkToken(String clientToken) throws CalabashException {
+        try {
+            if (!MessageDigest.isEqual(token.getBytes("UTF-8"), clientToken.getBytes("UTF-8")))
+                throw new CalabashException("Invalid driver daemon token");
+        } catch (UnsupportedEncodingException e) {
+            throw new CalabashException("Could not check the driver daemon token", e);
+        }
+    }
+
+    private void writeToken() throws CalabashException {
+        tokenFile.delete();
+        Writer writer = null;
+        try {
+            // the permissions are restricted before the token is written
+            if (!tokenFile.createNewFile())
+                throw new IOException("file already exists");
+            restrictToUser(tokenFile);
+            writer = new OutputStreamWriter(new FileOutputStream(tokenFile), "UTF-8");
+            writer.write(token);
+        } catch (IOException e) {
+            tokenFile.delete();
+            throw new CalabashException(format("Could not write the driver daemon token to %s. %s", tokenFile.getAbsolutePath(), e.getMessage()), e);
+        } finally {
+            Utils.closeQuietly(writer);
+        }
+    }
+
+    /**
+     * Uses posix permissions where the file system has them. Elsewhere, eg: on Windows, the java.io.File calls can't
+     * always take the permissions away from other users, and the token is written anyway.
+     */
+    private void restrictToUser(File file) throws IOException {
+        Path path = file.toPath();
+        if (path.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+            Files.setPosixFilePermissions(path, EnumSet.of(PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE));
+            return;
+        }
+        boolean restricted = file.setReadable(false, false) & file.setReadable(true, true)
+                & file.setWritable(false, false) & file.setWritable(true, true);
+        if (!restricted)
+            warn("Could not make %s private to the user, other users may be able to read the driver daemon token", file.getAbsolutePath());
+    }
+
+    private Object invoke(AndroidApplication application, String command, List<?> args) throws CalabashException, OperationTimedoutException {
+        if ("query".equals(command))
+            return toMaps(application.query(string(args, 0)));
+        if ("elementExists".equals(command))
+            return !application.query(string(args, 0)).isEmpty();
+        if ("touch".equals(command)) {
+            application.query(string(args, 0)).first().touch();
+        } else if ("longPress".equals(command)) {
+            application.query(string(args, 0)).first().longPress();
+        } else if ("enterText".equals(command)) {
+            application.query(string(args, 0)).first().setText(string(args, 1));
+        } else if ("setChecked".equals(command)) {
+            application.query(string(args, 0)).first().setChecked(Boolean.parseBoolean(string(args, 1)));
+        } else if ("getProperty".equals(command)) {
+            return application.query(string(args, 0)).first().getProperty(string(args, 1));
+        } else if ("getCurrentActivity".equals(command)) {
+            return application.getCurrentActivity();
+        } else if ("waitForActivity".equals(command)) {
+            application.waitForActivity(string(args, 0), integer(args, 1));
+        } else if ("waitForElementWithId".equals(command)) {
+            application.waitForElementWithId(string(args, 0), integer(args, 1));
+        } else if ("goBack".equals(command)) {
+            application.goBack();
+        } else if ("pressEnterKey".equals(command)) {
+            application.pressEnterKey();
+        } else if ("scrollDown".equals(command)) {
+            application.scrollDown();
+        } else if ("scrollUp".equals(command)) {
+            application.scrollUp();
+        } else if ("hideKeyboard".equals(command)) {
+            application.hideKeyboard();
+        } else if ("selectMenuItem".equals(command)) {
+            application.selectMenuItem(string(args, 0));
+        } else if ("swipe".equals(command)) {
+            application.swipe(Direction.valueOf(string(args, 0)));
+        } else if ("drag".equals(command)) {
+            application.drag(integer(args, 0), integer(args, 1), integer(args, 2), integer(args, 3), integer(args, 4));
+        } else if ("takeScreenshot".equals(command)) {
+            application.takeScreenshot(new File(string(args, 0)), string(args, 1));
+        } else if ("getSharedPreferences".equals(command)) {
+            return application.getSharedPreferences(string(args, 0));
+        } else if ("setGPSLocation".equals(command)) {
+            application.setGPSLocation(string(args, 0));
+        } else if ("setGPSCoordinates".equals(command)) {
+            application.setGPSCoordinates(Double.parseDouble(string(args, 0)), Double.parseDouble(string(args, 1)));
+        } else if ("performCalabashAction".equals(command)) {
+            String[] actionArgs = new String[args.size() - 1];
+            for (int i = 1; i < args.size(); i++) {
+                actionArgs[i - 1] = string(args, i);
+            }
+            ActionResult result = application.performCalabashAction(string(args, 0), actionArgs);
+            Map<String, Object> map = new HashMap<String, Object>();
+            map.put("success", result.isSuccess());
+            map.put("message", result.getMessage());
+            map.put("bonusInformation", result.getBonusInformation());
+            return map;
+        } else if ("execute".equals(command)) {
+            return Utils.toString(application.execute(string(args, 0)));
+        } else {
+            throw new CalabashException("Unknown command " + command);
+        }
+        return null;
+    }
+
+    private List<Map<String, Object>> toMaps(UIElements elements) {
+        List<Map<String, Object>> maps = new ArrayList<Map<String, Object>>();
+        for (UIElement element : elements) {
+            Map<String, Object> map = new LinkedHashMap<String, Object>();
+            for (Map.Entry<Object, Object> property : element.getProperties().entrySet()) {
+                map.put(Utils.toString(property.getKey()), property.getValue());
+            }
+            maps.add(map);
+        }
+        return maps;
+    }
+
+    private Session getSession(String key, Set<String> attached) throws CalabashException {
+        synchronized (sessions) {
+            Session session = sessions.get(key);
+            if (session == null || !attached.contains(key))
+                throw new CalabashException("No driver session " + key + " on this connection. Open one first");
+            return session;
+        }
+    }
+
+    /**
+     * Detaches the connection from the session. The session is stopped when disposing and no other connection
+     * uses it.
+     */
+    private void detach(String key, Set<String> attached, boolean dispose) {
+        Session session;
+        synchronized (sessions) {
+            session = sessions.get(key);
+            if (!attached.remove(key) || session == null)
+                return;
+            session.clients--;
+            if (!dispose)
+                return;
+            if (session.clients > 0) {
+                info("Keeping the driver session for %s, %d other clients use it", key, session.clients);
+                return;
+            }
+            sessions.remove(key);
+        }
+        dispose(session);
+    }
+
+    private void dispose(Session session) {
+        synchronized (session) {
+            try {
+                if (session.runner != null)
+                    session.runner.dispose();
+            } catch (Exception e) {
+                error("Failed to dispose driver session", e);
+            }
+            session.runner = null;
+            session.application = null;
+        }
+    }
+
+    private String string(List<?> args, int index) throws CalabashException {
+        if (index >= args.size())
+            throw new CalabashException("Missing argument " + (index + 1));
+        return Utils.toString(args.get(index));
+    }
+
+    private int integer(List<?> args, int index) throws CalabashException {
+        return Integer.parseInt(string(args, index));
+    }
+
+    private String stringOrNull(Object value) {
+        return value == null ? null : value.toString();
+    }
+}
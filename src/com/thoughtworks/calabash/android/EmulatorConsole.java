@@ -0,0 +1,270 @@
+package com.thoughtworks.calabash.android;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import static com.thoughtworks.calabash.android.CalabashLogger.info;
+import static java.lang.String.format;
+
+/**
+ * Client for the console of a running emulator, listening on the port in the emulator's serial. Connections are
+ * authenticated once with the token in the user's home directory and kept open for later commands. The AVD name
+ * of each emulator is cached until its connection is evicted, eg: when the device registry reports a detach.
+ */
+public class EmulatorConsole {
+    public static final String AUTH_TOKEN_FILE = ".emulator_console_auth_token";
+    private static final int CONNECT_TIMEOUT_IN_MS = 1000;
+    private static final int READ_TIMEOUT_IN_MS = 2000;
+    private static final long PROBE_TIMEOUT_IN_MS = 5000;
+    private static final Map<String, EmulatorConsole> consoles = new HashMap<String, EmulatorConsole>();
+    private static final DeviceRegistry.Listener EVICT_ON_DETACH = new DeviceRegistry.Listener() {
+        public void attached(Device device) {
+        }
+
+        public void stateChanged(Device device, String previousState) {
+        }
+
+        public void detached(Device device) {
+            evict(device.getSerial());
+        }
+    };
+    private static ExecutorService probeExecutor;
+
+    private final String serial;
+    private final int port;
+    private Socket socket;
+    private BufferedReader reader;
+    private OutputStream writer;
+    private String avdName;
+
+    private EmulatorConsole(String serial, int port) {
+        this.serial = serial;
+        this.port = port;
+    }
+
+    public static boolean isEmulator(String serial) {
+        return serial.startsWith(AndroidBridge.EMULATOR_PREFIX);
+    }
+
+    /**
+     * @param serial serial of an emulator, eg: emulator-5554
+     * @return the shared console of the emulator, connected on first use
+     * @throws CalabashException when the serial is not an emulator's
+     */
+    public static EmulatorConsole forSerial(String serial) throws CalabashException {
+        int port;
+        try {
+            if (!isEmulator(serial))
+                throw new NumberFormatException();
+            port = Integer.parseInt(serial.substring(AndroidBridge.EMULATOR_PREFIX.length()));
+        } catch (NumberFormatException e) {
+            throw new CalabashException(format("%s is not an emulator", serial));
+        }
+
+        synchronized (consoles) {
+            EmulatorConsole console = consoles.get(serial);
+            if (console == null) {
+                console = new EmulatorConsole(serial, port);
+                consoles.put(serial, console);
+            }
+            return console;
+        }
+    }
+
+    /**
+     * Closes the console of the emulator and forgets its AVD name
+     */
+    public static void evict(String serial) {
+        EmulatorConsole console;
+        synchronized (consoles) {
+            console = consoles.remove(serial);
+        }
+        if (console != null)
+            console.close();
+    }
+
+    /**
+     * Evicts the console of each emulator the registry reports as detached
+     */
+    public static void evictOnDetach(DeviceRegistry registry) {
+        registry.addListener(EVICT_ON_DETACH);
+    }
+
+    /**
+     * Asks the consoles of all the emulators for their AVD name at the same time. Consoles that fail or don't
+     * answer in time are skipped and evicted, so the next probe connects again.
+     *
+     * @param avdName name of the AVD, eg: Nexus_5_API_19
+     * @param serials serials of the attached devices, those which are not emulators are ignored
+     * @return serial of the emulator running the AVD, null if none of them is
+     * @throws CalabashException when interrupted
+     */
+    public static String findSerialOfAvd(String avdName, Collection<String> serials) throws CalabashException {
+        CompletionService<String[]> probes = new ExecutorCompletionService<String[]>(getProbeExecutor());
+        Map<Future<String[]>, String> pending = new HashMap<Future<String[]>, String>();
+        for (final String serial : serials) {
+            if (!isEmulator(serial))
+                continue;
+            pending.put(probes.submit(new Callable<String[]>() {
+                public String[] call() throws Exception {
+                    return new String[]{serial, forSerial(serial).getAvdName()};
+                }
+            }), serial);
+        }
+
+        long deadline = System.currentTimeMillis() + PROBE_TIMEOUT_IN_MS;
+        try {
+            while (!pending.isEmpty()) {
+                Future<String[]> probe = probes.poll(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                if (probe == null)
+                    break;
+                String serial = pending.remove(probe);
+                try {
+                    String[] serialAndName = probe.get();
+                    if (avdName.equals(serialAndName[1]))
+                        return serialAndName[0];
+                } catch (ExecutionException e) {
+                    info("Could not get the AVD name of %s. %s", serial, e.getCause().getMessage());
+                    evict(serial);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CalabashException("Interrupted while probing the emulator consoles", e);
+        }
+
+        for (final String serial : pending.values()) {
+            info("Console of %s did not answer in %d ms", serial, PROBE_TIMEOUT_IN_MS);
+            // closing waits for the stuck probe to give up, so it is done in the background
+            getProbeExecutor().submit(new Runnable() {
+                public void run() {
+                    evict(serial);
+                }
+            });
+        }
+        return null;
+    }
+
+    /**
+     * @return name of the AVD the emulator is running, cached after the first call
+     * @throws CalabashException
+     */
+    public synchronized String getAvdName() throws CalabashException {
+        if (avdName == null)
+            avdName = command("avd name").trim();
+        return avdName;
+    }
+
+    /**
+     * Runs a console command, eg: <code>avd name</code>. A pooled connection which has gone stale is reopened once.
+     *
+     * @return response of the command without the trailing OK
+     * @throws CalabashException when the console can't be reached or the command fails
+     */
+    public synchronized String command(String command) throws CalabashException {
+        boolean pooled = socket != null;
+        try {
+            return send(command);
+        } catch (IOException e) {
+            close();
+            if (!pooled)
+                throw new CalabashException(format("Failed to run '%s' on the console of %s. %s", command, serial, e.getMessage()), e);
+        }
+        try {
+            return send(command);
+        } catch (IOException e) {
+            close();
+            throw new CalabashException(format("Failed to run '%s' on the console of %s. %s", command, serial, e.getMessage()), e);
+        }
+    }
+
+    public synchronized void close() {
+        Utils.closeQuietly(socket);
+        socket = null;
+        reader = null;
+        writer = null;
+    }
+
+    private String send(String command) throws IOException, CalabashException {
+        if (socket == null)
+            connect();
+        writer.write((command + "\n").getBytes("UTF-8"));
+        writer.flush();
+        return readResponse();
+    }
+
+    private void connect() throws IOException, CalabashException {
+        socket = new Socket();
+        socket.connect(new InetSocketAddress("127.0.0.1", port), CONNECT_TIMEOUT_IN_MS);
+        socket.setSoTimeout(READ_TIMEOUT_IN_MS);
+        reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+        writer = socket.getOutputStream();
+
+        String banner = readResponse();
+        if (banner.contains("Authentication required")) {
+            writer.write(("auth " + getAuthToken() + "\n").getBytes("UTF-8"));
+            writer.flush();
+            readResponse();
+        }
+    }
+
+    /**
+     * Reads lines until the console's OK, or KO followed by the reason of the failure
+     */
+    private String readResponse() throws IOException, CalabashException {
+        StringBuilder response = new StringBuilder();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.startsWith("OK"))
+                return response.toString();
+            if (line.startsWith("KO"))
+                throw new CalabashException(format("Console of %s failed. %s", serial, line.substring(2).replaceFirst("^:\\s*", "")));
+            response.append(line.trim()).append('\n');
+        }
+        throw new IOException("console closed the connection");
+    }
+
+    private String getAuthToken() throws CalabashException {
+        File tokenFile = new File(System.getProperty("user.home"), AUTH_TOKEN_FILE);
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(tokenFile);
+            return Utils.toString(in).trim();
+        } catch (IOException e) {
+            throw new CalabashException(format("Console of %s requires the auth token in %s", serial, tokenFile.getAbsolutePath()), e);
+        } finally {
+            Utils.closeQuietly(in);
+        }
+    }
+
+    private static synchronized ExecutorService getProbeExecutor() {
+        if (probeExecutor == null) {
+            probeExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "calabash-emulator-console");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return probeExecutor;
+    }
+}
@@ -7,15 +7,13 @@ import java.util.Map;
 public class Environment {
     public static final String ENV_ANDROID_HOME = "ANDROID_HOME";
     public static final String ENV_JAVA_HOME = "JAVA_HOME";
-    private final String keytool;
-    private final String jarsigner;
     private final Map<String, String> envVariables = new HashMap<String, String>();
     private final String androidHome;
+    private String keytool;
+    private String jarsigner;
     private String jrubyHome;
 
-    public Environment(String androidHome, String javaHome, String keytool, String jarsigner) throws CalabashException {
-        this.keytool = keytool;
-        this.jarsigner = jarsigner;
+    public Environment(String androidHome, String javaHome) throws CalabashException {
         if (!isValidAndroidHome(androidHome))
             throw new CalabashException(String.format("Invalid %s : %s", ENV_ANDROID_HOME, androidHome));
         this.androidHome = androidHome;
@@ -24,6 +22,17 @@ public class Environment {
             envVariables.put(ENV_JAVA_HOME, javaHome);
     }
 
+    /**
+     * @deprecated signing and keystore generation no longer run keytool or jarsigner, use
+     * {@link #Environment(String, String)}
+     */
+    @Deprecated
+    public Environment(String androidHome, String javaHome, String keytool, String jarsigner) throws CalabashException {
+        this(androidHome, javaHome);
+        this.keytool = keytool;
+        this.jarsigner = jarsigner;
+    }
+
     public static String getPlatformExecutable(String executable) {
         return Utils.isWindows() ? executable + ".exe" : executable;
     }
@@ -48,12 +57,20 @@ public class Environment {
         return new HashMap<String, String>(envVariables);
     }
 
+    /**
+     * @deprecated keytool isn't used, returns the path given to the deprecated constructor
+     */
+    @Deprecated
     public String getKeytool() {
-        return quoteIfWindows(keytool);
+        return keytool == null ? null : quoteIfWindows(keytool);
     }
 
+    /**
+     * @deprecated jarsigner isn't used, returns the path given to the deprecated constructor
+     */
+    @Deprecated
     public String getJarsigner() {
-        return quoteIfWindows(jarsigner);
+        return jarsigner == null ? null : quoteIfWindows(jarsigner);
     }
 
     public String getAdb() {
@@ -15,26 +15,12 @@ public class EnvironmentInitializer {
     public static Environment initialize(AndroidConfiguration configuration) throws CalabashException {
         String javaHome = null;
         String androidHome = findAndroidHome(configuration);
-        String keytool = findExecutableFromPath(KEYTOOL);
-        String jarsigner = findExecutableFromPath(JARSIGNER);
-        if (keytool == null || jarsigner == null) {
-            CalabashLogger.info("Finding executables relative to " + ENV_JAVA_HOME);
+        // keystore generation and signing run in process, the gem finds any other JDK tool it runs from JAVA_HOME
+        if (findExecutableFromPath(KEYTOOL) == null || findExecutableFromPath(JARSIGNER) == null) {
+            CalabashLogger.info("Finding " + ENV_JAVA_HOME + " for the JDK tools");
             javaHome = findJavaHome(configuration);
-
-            if (javaHome == null) {
-                throw new CalabashException(ENV_JAVA_HOME + " is not set");
-            }
-            File bin = new File(javaHome, "bin");
-            keytool = getPathIfExists(new File(bin, KEYTOOL));
-            jarsigner = getPathIfExists(new File(bin, JARSIGNER));
         }
-        return new Environment(androidHome, javaHome, keytool, jarsigner);
-    }
-
-    private static String getPathIfExists(File executable) throws CalabashException {
-        if (!executable.exists())
-            throw new CalabashException("Could not find " + executable.getName() + ". Ensure JDK is installed");
-        return executable.getAbsolutePath();
+        return new Environment(androidHome, javaHome);
     }
 
     private static String findExecutableFromPath(String execName) {
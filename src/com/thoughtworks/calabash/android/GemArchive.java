@@ -0,0 +1,146 @@
+package com.thoughtworks.calabash.android;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import static com.thoughtworks.calabash.android.CalabashLogger.info;
+
+/**
+ * The bundled gems kept as a single archive on disk. JRuby reads jruby.home and the gem sources straight from
+ * the archive, so nothing is unpacked before the runtime starts.
+ */
+public class GemArchive {
+    private static final String JRUBY_HOME = "jruby.home";
+    private static final String GEMS = "gems/";
+    private final File archive;
+    private List<String> gemNames;
+
+    public GemArchive(File archive) {
+        this.archive = archive;
+    }
+
+    /**
+     * Copies the zip resource from the classpath to <code>archive</code> unless a readable copy already exists.
+     * The archive keeps a .jar extension since JRuby only resolves paths inside jar files.
+     *
+     * @param resource classpath resource of the gems zip
+     * @param archive  where the archive is kept
+     * @return the archive
+     * @throws CalabashException
+     */
+    public static GemArchive fromBundle(String resource, File archive) throws CalabashException {
+        GemArchive gemArchive = new GemArchive(archive);
+        if (gemArchive.isValid())
+            return gemArchive;
+
+        InputStream stream = Thread.currentThread().getContextClassLoader().getResourceAsStream(resource);
+        if (stream == null)
+            throw new CalabashException(String.format("Can't find %s in the bundle. Make sure you are using the correct JAR file", resource));
+
+        File staging = new File(archive.getAbsolutePath() + ".staging-" + System.nanoTime());
+        try {
+            info("Copying gems archive to %s", archive.getAbsolutePath());
+            FileUtils.copyInputStreamToFile(stream, staging);
+            if (!staging.renameTo(archive) && !gemArchive.isValid())
+                throw new IOException("Can't move " + staging.getAbsolutePath() + " to " + archive.getAbsolutePath());
+            return gemArchive;
+        } catch (IOException e) {
+            throw new CalabashException("Failed to copy gems archive to " + archive.getAbsolutePath(), e);
+        } finally {
+            Utils.closeQuietly(stream);
+            FileUtils.deleteQuietly(staging);
+        }
+    }
+
+    public File getFile() {
+        return archive;
+    }
+
+    /**
+     * @return jruby.home inside the archive
+     */
+    public String getHomeDirectory() {
+        return pathInside(JRUBY_HOME);
+    }
+
+    /**
+     * @return the lib directory of every gem, inside the archive
+     * @throws CalabashException
+     */
+    public List<String> getLoadPaths() throws CalabashException {
+        List<String> loadPaths = new ArrayList<String>();
+        for (String gem : getGemNames()) {
+            loadPaths.add(pathInside(GEMS + gem + "/lib"));
+        }
+        if (loadPaths.isEmpty())
+            throw new CalabashException("Couldn't find any gems inside " + archive.getAbsolutePath());
+        return loadPaths;
+    }
+
+    /**
+     * @return directory names of the gems in the archive, eg: calabash-android-0.4.21
+     * @throws CalabashException
+     */
+    public synchronized List<String> getGemNames() throws CalabashException {
+        if (gemNames != null)
+            return gemNames;
+
+        ZipFile zip = null;
+        try {
+            zip = new ZipFile(archive);
+            TreeSet<String> names = new TreeSet<String>();
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                String name = entries.nextElement().getName();
+                if (!name.startsWith(GEMS))
+                    continue;
+                int end = name.indexOf('/', GEMS.length());
+                if (end > GEMS.length())
+                    names.add(name.substring(GEMS.length(), end));
+            }
+            gemNames = new ArrayList<String>(names);
+            return gemNames;
+        } catch (IOException e) {
+            throw new CalabashException("Failed to read gems archive " + archive.getAbsolutePath(), e);
+        } finally {
+            if (zip != null) {
+                try {
+                    zip.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    private boolean isValid() {
+        if (!archive.isFile())
+            return false;
+        ZipFile zip = null;
+        try {
+            zip = new ZipFile(archive);
+            return zip.getEntry(JRUBY_HOME + "/") != null || zip.getEntry(JRUBY_HOME + "/bin/jruby") != null;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            if (zip != null) {
+                try {
+                    zip.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    private String pathInside(String entry) {
+        return "file:" + archive.getAbsolutePath() + "!/" + entry;
+    }
+}
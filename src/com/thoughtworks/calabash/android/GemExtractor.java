@@ -0,0 +1,277 @@
+package com.thoughtworks.calabash.android;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import static com.thoughtworks.calabash.android.CalabashLogger.error;
+import static com.thoughtworks.calabash.android.CalabashLogger.info;
+
+/**
+ * Extracts the bundled gems into a directory shared by all the JVMs on the machine. Extraction is guarded by
+ * a file lock, happens in a staging directory that is renamed into place once complete, and is recorded in a
+ * manifest listing every file with its size and the CRC-32 of the content written. Startup only checks the manifest
+ * digest and the file sizes without taking the lock; the content is read back and checked against the CRCs under the
+ * lock, before deciding to extract again.
+ */
+public class GemExtractor {
+    public static final String MANIFEST = "extracted.manifest";
+    private static final String DIGEST_PREFIX = "digest ";
+    private static final int MAX_PENDING_WRITES = 64;
+    private static final Map<String, Object> jvmLocks = new HashMap<String, Object>();
+    private final File extractionDir;
+
+    public GemExtractor(File extractionDir) {
+        this.extractionDir = extractionDir;
+    }
+
+    /**
+     * Extracts the zip resource from the classpath unless a verified extraction already exists
+     *
+     * @param resource classpath resource of the gems zip
+     * @return the extraction directory
+     * @throws CalabashException
+     */
+    public File extract(final String resource) throws CalabashException {
+        return extract(new Callable<InputStream>() {
+            public InputStream call() throws Exception {
+                InputStream stream = Thread.currentThread().getContextClassLoader().getResourceAsStream(resource);
+                if (stream == null)
+                    throw new CalabashException(String.format("Can't find %s in the bundle. Make sure you are using the correct JAR file", resource));
+                return stream;
+            }
+        });
+    }
+
+    /**
+     * Extracts the zip opened by <code>zipStream</code> unless a verified extraction already exists
+     *
+     * @param zipStream opens the zip, only called when extraction is needed
+     * @return the extraction directory
+     * @throws CalabashException
+     */
+    public File extract(Callable<InputStream> zipStream) throws CalabashException {
+        if (isValid(false)) {
+            info("Gems already present in %s", extractionDir.getAbsolutePath());
+            return extractionDir;
+        }
+
+        File parent = extractionDir.getAbsoluteFile().getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs())
+            throw new CalabashException("Can't create gems extraction directory. " + parent.getAbsolutePath());
+
+        synchronized (jvmLockFor(extractionDir)) {
+            RandomAccessFile lockFile = null;
+            FileLock lock = null;
+            try {
+                lockFile = new RandomAccessFile(new File(parent, extractionDir.getName() + ".lock"), "rw");
+                FileChannel channel = lockFile.getChannel();
+                lock = channel.lock();
+                if (isValid(true)) {
+                    info("Gems extracted by another process in %s", extractionDir.getAbsolutePath());
+                    return extractionDir;
+                }
+                extractAndPublish(zipStream);
+                return extractionDir;
+            } catch (CalabashException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new CalabashException("Failed to extract gems to " + extractionDir.getAbsolutePath(), e);
+            } finally {
+                if (lock != null) {
+                    try {
+                        lock.release();
+                    } catch (IOException ignored) {
+                    }
+                }
+                Utils.closeQuietly(lockFile);
+            }
+        }
+    }
+
+    /**
+     * @return true if the extraction directory has a manifest and every file in it is present with the
+     * recorded size and content. Reads every extracted file.
+     */
+    public boolean isValid() {
+        return isValid(true);
+    }
+
+    /**
+     * @param verifyContent whether to read every file and compare its CRC-32, or only check the recorded sizes
+     */
+    private boolean isValid(boolean verifyContent) {
+        File manifest = new File(extractionDir, MANIFEST);
+        if (!manifest.isFile())
+            return false;
+
+        try {
+            List<String> lines = FileUtils.readLines(manifest, "UTF-8");
+            if (lines.isEmpty() || !lines.get(0).startsWith(DIGEST_PREFIX))
+                return false;
+            List<String> entries = lines.subList(1, lines.size());
+            if (!lines.get(0).substring(DIGEST_PREFIX.length()).equals(digest(entries)))
+                return false;
+
+            List<File> files = new ArrayList<File>();
+            List<Long> checksums = new ArrayList<Long>();
+            for (String entry : entries) {
+                String[] sizeChecksumAndName = entry.split("\t", 3);
+                File file = new File(extractionDir, sizeChecksumAndName[2]);
+                if (!file.isFile() || file.length() != Long.parseLong(sizeChecksumAndName[0]))
+                    return false;
+                files.add(file);
+                checksums.add(Long.parseLong(sizeChecksumAndName[1], 16));
+            }
+            if (!verifyContent)
+                return true;
+            // sizes are checked first, so that a truncated extraction is rejected without reading every file
+            for (int i = 0; i < files.size(); i++) {
+                if (crc(files.get(i)) != checksums.get(i)) {
+                    info("%s differs from the extracted gem file", files.get(i).getAbsolutePath());
+                    return false;
+                }
+            }
+            return true;
+        } catch (Exception e) {
+            error("Invalid gems manifest %s", e, manifest.getAbsolutePath());
+            return false;
+        }
+    }
+
+    private void extractAndPublish(Callable<InputStream> zipStream) throws Exception {
+        File parent = extractionDir.getAbsoluteFile().getParentFile();
+        File staging = new File(parent, extractionDir.getName() + ".staging-" + System.nanoTime());
+        long startTime = System.currentTimeMillis();
+        info("Extracting gems to %s", extractionDir.getAbsolutePath());
+        try {
+            List<String> entries = unzip(zipStream.call(), staging);
+            File jrubyExecutable = new File(staging, "jruby.home" + File.separator + "bin" + File.separator + "jruby");
+            if (jrubyExecutable.isFile() && !Utils.isWindows())
+                jrubyExecutable.setExecutable(true, false);
+            writeManifest(new File(staging, MANIFEST), entries);
+
+            if (extractionDir.exists()) {
+                File stale = new File(parent, extractionDir.getName() + ".stale-" + System.nanoTime());
+                if (!extractionDir.renameTo(stale))
+                    throw new IOException("Can't move invalid extraction " + extractionDir.getAbsolutePath() + " out of the way");
+                FileUtils.deleteQuietly(stale);
+            }
+            if (!staging.renameTo(extractionDir))
+                throw new IOException("Can't move " + staging.getAbsolutePath() + " to " + extractionDir.getAbsolutePath());
+            info("Extracted %d files in %d ms", entries.size(), System.currentTimeMillis() - startTime);
+        } finally {
+            FileUtils.deleteQuietly(staging);
+        }
+    }
+
+    /**
+     * Inflates the entries one after another from the stream, which can't be read out of order, and writes
+     * the files in parallel
+     */
+    private List<String> unzip(InputStream stream, final File destination) throws Exception {
+        ExecutorService writers = Executors.newFixedThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors()));
+        final Semaphore pendingWrites = new Semaphore(MAX_PENDING_WRITES);
+        List<Future<?>> writes = new ArrayList<Future<?>>();
+        List<String> entries = new ArrayList<String>();
+        ZipInputStream zip = new ZipInputStream(new BufferedInputStream(stream));
+        try {
+            ZipEntry entry;
+            while ((entry = zip.getNextEntry()) != null) {
+                final File file = new File(destination, entry.getName());
+                if (!file.getCanonicalPath().startsWith(destination.getCanonicalPath() + File.separator))
+                    throw new CalabashException("Invalid entry in gems zip " + entry.getName());
+                if (entry.isDirectory()) {
+                    file.mkdirs();
+                    continue;
+                }
+
+                final byte[] content = readFully(zip);
+                CRC32 crc = new CRC32();
+                crc.update(content);
+                entries.add(content.length + "\t" + Long.toHexString(crc.getValue()) + "\t" + entry.getName());
+                pendingWrites.acquire();
+                writes.add(writers.submit(new Callable<Void>() {
+                    public Void call() throws IOException {
+                        try {
+                            FileUtils.writeByteArrayToFile(file, content);
+                            return null;
+                        } finally {
+                            pendingWrites.release();
+                        }
+                    }
+                }));
+            }
+
+            for (Future<?> write : writes) {
+                write.get();
+            }
+            return entries;
+        } finally {
+            writers.shutdownNow();
+            Utils.closeQuietly(zip);
+        }
+    }
+
+    private byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[16 * 1024];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    private static long crc(File file) throws IOException {
+        CheckedInputStream in = new CheckedInputStream(new FileInputStream(file), new CRC32());
+        try {
+            byte[] buffer = new byte[16 * 1024];
+            while (in.read(buffer) != -1) {
+            }
+            return in.getChecksum().getValue();
+        } finally {
+            in.close();
+        }
+    }
+
+    private void writeManifest(File manifest, List<String> entries) throws Exception {
+        List<String> lines = new ArrayList<String>();
+        lines.add(DIGEST_PREFIX + digest(entries));
+        lines.addAll(entries);
+        FileUtils.writeLines(manifest, "UTF-8", lines, "\n");
+    }
+
+    private static String digest(List<String> entries) throws Exception {
+        MessageDigest digest = MessageDigest.getInstance("SHA-1");
+        for (String entry : entries) {
+            digest.update(entry.getBytes("UTF-8"));
+            digest.update((byte) '\n');
+        }
+        return Utils.toHex(digest.digest());
+    }
+
+    private static Object jvmLockFor(File directory) {
+        synchronized (jvmLocks) {
+            String key = directory.getAbsolutePath();
+            Object lock = jvmLocks.get(key);
+            if (lock == null) {
+                lock = new Object();
+                jvmLocks.put(key, lock);
+            }
+            return lock;
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package com.thoughtworks.calabash.android;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.thoughtworks.calabash.android.CalabashLogger.error;
+import static com.thoughtworks.calabash.android.CalabashLogger.info;
+
+/**
+ * Runs the jarsigner commands issued by calabash's resign and build steps with {@link ApkSigner}, so that
+ * signing doesn't launch a new JVM for every apk. Exposed to the ruby runtime, which hands it every command
+ * passed to <code>system</code>.
+ */
+public class InProcessJarsigner {
+    private static final String DEFAULT_SIGNATURE_ALGORITHM = "SHA256withRSA";
+    private static final String DEFAULT_DIGEST_ALGORITHM = "SHA-256";
+
+    /**
+     * @param commandLine the command, either as a single string or already split into arguments
+     * @return null if the command is not a jarsigner signing command, otherwise whether the apk was signed
+     */
+    public Boolean run(String[] commandLine) {
+        List<String> args = commandLine.length == 1 ? tokenize(commandLine[0]) : asList(commandLine);
+        if (args.isEmpty() || !isJarsigner(args.get(0)))
+            return null;
+
+        Map<String, String> options = new HashMap<String, String>();
+        List<String> positional = new ArrayList<String>();
+        for (int i = 1; i < args.size(); i++) {
+            String arg = args.get(i);
+            if (arg.equals("-verbose"))
+                continue;
+            if (!arg.startsWith("-")) {
+                positional.add(arg);
+            } else if (isSupportedOption(arg) && i + 1 < args.size()) {
+                options.put(arg, args.get(++i));
+            } else {
+                info("Unsupported jarsigner option %s, falling back to jarsigner", arg);
+                return null;
+            }
+        }
+        if (positional.size() != 2 || !options.containsKey("-keystore") || !options.containsKey("-storepass"))
+            return null;
+
+        File apk = new File(positional.get(0));
+        File signedApk = options.containsKey("-signedjar") ? new File(options.get("-signedjar")) : apk;
+        try {
+            ApkSigner signer = ApkSigner.fromKeystore(new File(options.get("-keystore")), options.get("-storepass"),
+                    positional.get(1), options.get("-keypass"),
+                    valueOrDefault(options.get("-sigalg"), DEFAULT_SIGNATURE_ALGORITHM),
+                    valueOrDefault(options.get("-digestalg"), DEFAULT_DIGEST_ALGORITHM),
+                    options.get("-sigfile"));
+            signer.sign(apk, signedApk);
+            return true;
+        } catch (CalabashException e) {
+            error("Signing in process failed", e);
+            return false;
+        }
+    }
+
+    static List<String> tokenize(String command) {
+        List<String> tokens = new ArrayList<String>();
+        StringBuilder token = null;
+        char quote = 0;
+        for (char c : command.toCharArray()) {
+            if (quote != 0) {
+                if (c == quote)
+                    quote = 0;
+                else
+                    token.append(c);
+            } else if (c == '"' || c == '\'') {
+                quote = c;
+                if (token == null)
+                    token = new StringBuilder();
+            } else if (Character.isWhitespace(c)) {
+                if (token != null)
+                    tokens.add(token.toString());
+                token = null;
+            } else {
+                if (token == null)
+                    token = new StringBuilder();
+                token.append(c);
+            }
+        }
+        if (token != null)
+            tokens.add(token.toString());
+        return tokens;
+    }
+
+    private boolean isJarsigner(String executable) {
+        String name = new File(executable).getName();
+        return name.equals("jarsigner") || name.equals("jarsigner.exe");
+    }
+
+    private boolean isSupportedOption(String option) {
+        return option.equals("-keystore") || option.equals("-storepass") || option.equals("-keypass")
+                || option.equals("-signedjar") || option.equals("-sigalg") || option.equals("-digestalg")
+                || option.equals("-sigfile") || option.equals("-storetype");
+    }
+
+    private List<String> asList(String[] commandLine) {
+        List<String> args = new ArrayList<String>();
+        for (String arg : commandLine) {
+            args.add(arg);
+        }
+        return args;
+    }
+
+    private String valueOrDefault(String value, String defaultValue) {
+        return value != null ? value : defaultValue;
+    }
+}
@@ -0,0 +1,85 @@
+package com.thoughtworks.calabash.android;
+
+import org.jruby.Ruby;
+import org.jruby.RubyArray;
+import org.jruby.RubyHash;
+import org.jruby.RubySymbol;
+import org.jruby.embed.ScriptingContainer;
+
+import java.util.Arrays;
+
+/**
+ * Calls the calabash operations mixed into the top level object directly with java arguments,
+ * without generating ruby source for each call.
+ */
+class OperationsDispatcher {
+    private final ScriptingContainer container;
+    private Object receiver;
+
+    public OperationsDispatcher(ScriptingContainer container) {
+        this.container = container;
+    }
+
+    /**
+     * Invokes <code>method</code> on the object extended with Calabash::Android::Operations
+     *
+     * @param method name of the ruby method
+     * @param args   java arguments, converted to their ruby counterparts
+     * @return result of the call converted the same way as ScriptingContainer#runScriptlet
+     */
+    public Object call(String method, Object... args) {
+        return container.callMethod(getReceiver(), method, args);
+    }
+
+    /**
+     * Invokes <code>method</code> with <code>first</code> followed by each element of <code>rest</code>,
+     * like a ruby splat
+     */
+    public Object callWithSplat(String method, Object first, Object[] rest) {
+        Object[] args = new Object[rest == null ? 1 : rest.length + 1];
+        args[0] = first;
+        if (rest != null)
+            System.arraycopy(rest, 0, args, 1, rest.length);
+        return call(method, args);
+    }
+
+    /**
+     * Invokes <code>method</code> on an arbitrary ruby object returned by an earlier call
+     */
+    public Object callOn(Object rubyObject, String method, Object... args) {
+        return container.callMethod(rubyObject, method, args);
+    }
+
+    public RubySymbol symbol(String name) {
+        return getRuntime().newSymbol(name);
+    }
+
+    /**
+     * Builds a ruby hash with symbol keys
+     *
+     * @param keysAndValues alternating key names and values
+     */
+    public RubyHash options(Object... keysAndValues) {
+        RubyHash hash = RubyHash.newHash(getRuntime());
+        for (int i = 0; i + 1 < keysAndValues.length; i += 2) {
+            hash.put(symbol(keysAndValues[i].toString()), keysAndValues[i + 1]);
+        }
+        return hash;
+    }
+
+    public RubyArray array(Object... values) {
+        RubyArray array = RubyArray.newArray(getRuntime());
+        array.addAll(Arrays.asList(values));
+        return array;
+    }
+
+    private Object getReceiver() {
+        if (receiver == null)
+            receiver = getRuntime().getTopSelf();
+        return receiver;
+    }
+
+    private Ruby getRuntime() {
+        return container.getProvider().getRuntime();
+    }
+}
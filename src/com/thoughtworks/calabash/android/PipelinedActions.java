@@ -0,0 +1,119 @@
+package com.thoughtworks.calabash.android;
+
+/**
+ * Queues actions on the device's {@link ActionPipeline} and returns immediately. Call {@link #barrier()}
+ * to wait for them, any read on the application waits as well.
+ * eg:
+ * <pre>
+ * application.async().enterText("john", "edittext id:'username'");
+ * application.async().touch("button text:'Login'");
+ * prepareReport();
+ * application.async().barrier();
+ * </pre>
+ */
+public class PipelinedActions {
+    private final ActionPipeline pipeline;
+    private final CalabashWrapper calabashWrapper;
+
+    public PipelinedActions(ActionPipeline pipeline, CalabashWrapper calabashWrapper) {
+        this.pipeline = pipeline;
+        this.calabashWrapper = calabashWrapper;
+    }
+
+    /**
+     * Waits until all the queued actions have finished
+     *
+     * @throws CalabashException the first failure among the queued actions
+     */
+    public void barrier() throws CalabashException {
+        pipeline.barrier();
+    }
+
+    public ActionHandle touch(final String query) {
+        return pipeline.submit("touch " + query, new ActionPipeline.Action() {
+            public void run() throws CalabashException {
+                calabashWrapper.touch(query);
+            }
+        });
+    }
+
+    public ActionHandle longPress(final String query) {
+        return pipeline.submit("long press " + query, new ActionPipeline.Action() {
+            public void run() throws CalabashException {
+                calabashWrapper.longPress(query);
+            }
+        });
+    }
+
+    public ActionHandle enterText(final String text, final String query) {
+        return pipeline.submit("enter text into " + query, new ActionPipeline.Action() {
+            public void run() throws CalabashException {
+                calabashWrapper.enterText(text, query);
+            }
+        });
+    }
+
+    public ActionHandle setChecked(final String query, final boolean checked) {
+        return pipeline.submit("set checked on " + query, new ActionPipeline.Action() {
+            public void run() throws CalabashException {
+                calabashWrapper.setChecked(query, checked);
+            }
+        });
+    }
+
+    public ActionHandle goBack() {
+        return pipeline.submit("go back", new ActionPipeline.Action() {
+            public void run() throws CalabashException {
+                calabashWrapper.performGoBack();
+            }
+        });
+    }
+
+    public ActionHandle pressEnterKey() {
+        return pipeline.submit("press enter key", new ActionPipeline.Action() {
+            public void run() throws CalabashException {
+                calabashWrapper.pressEnterKey();
+            }
+        });
+    }
+
+    public ActionHandle scrollDown() {
+        return pipeline.submit("scroll down", new ActionPipeline.Action() {
+            public void run() throws CalabashException {
+                calabashWrapper.scrollDown();
+            }
+        });
+    }
+
+    public ActionHandle scrollUp() {
+        return pipeline.submit("scroll up", new ActionPipeline.Action() {
+            public void run() throws CalabashException {
+                calabashWrapper.scrollUp();
+            }
+        });
+    }
+
+    public ActionHandle selectMenuItem(final String menuItem) {
+        return pipeline.submit("select menu item " + menuItem, new ActionPipeline.Action() {
+            public void run() throws CalabashException {
+                calabashWrapper.selectMenuItem(menuItem);
+            }
+        });
+    }
+
+    public ActionHandle drag(final int fromX, final int toX, final int fromY, final int toY, final int steps) {
+        return pipeline.submit("drag", new ActionPipeline.Action() {
+            public void run() throws CalabashException {
+                calabashWrapper.drag(fromX, toX, fromY, toY, steps);
+            }
+        });
+    }
+
+    public ActionHandle hideKeyboard() {
+        return pipeline.submit("hide keyboard", new ActionPipeline.Action() {
+            public void run() throws CalabashException {
+                calabashWrapper.hideKeyboard();
+            }
+        });
+    }
+}
@@ -0,0 +1,269 @@
+package com.thoughtworks.calabash.android;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+
+import static com.thoughtworks.calabash.android.CalabashLogger.error;
+import static com.thoughtworks.calabash.android.CalabashLogger.info;
+import static java.lang.String.format;
+
+/**
+ * Runs a command and reads its output and error streams on separate threads while it runs, so that a child
+ * writing more than the pipe buffer can't block. The streams are kept up to a limit; a {@link LineListener}
+ * receives every line, including the ones past the limit.
+ */
+public class ProcessRunner {
+    public static final int DEFAULT_MAX_BUFFERED_CHARS = 1024 * 1024;
+    private static final long POLL_INTERVAL_IN_MS = 10;
+    private static final long DRAIN_TIMEOUT_IN_MS = 2000;
+    private final String[] command;
+    private long timeoutInMs = 0;
+    private int maxBufferedChars = DEFAULT_MAX_BUFFERED_CHARS;
+    private LineListener lineListener;
+
+    /**
+     * Receives the lines as they are read. Called from the threads draining the streams.
+     */
+    public interface LineListener {
+        void onLine(String line, boolean fromErrorStream);
+    }
+
+    /**
+     * Outcome of a finished command
+     */
+    public static class Result {
+        private final int exitCode;
+        private final long durationInMs;
+        private final String output;
+        private final String error;
+        private final long outputSize;
+        private final boolean truncated;
+        private final boolean timedOut;
+
+        Result(int exitCode, long durationInMs, String output, String error, long outputSize, boolean truncated, boolean timedOut) {
+            this.exitCode = exitCode;
+            this.durationInMs = durationInMs;
+            this.output = output;
+            this.error = error;
+            this.outputSize = outputSize;
+            this.truncated = truncated;
+            this.timedOut = timedOut;
+        }
+
+        /**
+         * @return exit code, -1 if the command timed out
+         */
+        public int getExitCode() {
+            return exitCode;
+        }
+
+        public long getDurationInMs() {
+            return durationInMs;
+        }
+
+        /**
+         * @return the output stream, one line per line of output
+         */
+        public String getOutput() {
+            return output;
+        }
+
+        /**
+         * @return the error stream, one line per line of output
+         */
+        public String getError() {
+            return error;
+        }
+
+        /**
+         * @return number of characters the command wrote to both streams, including the ones not kept
+         */
+        public long getOutputSize() {
+            return outputSize;
+        }
+
+        /**
+         * @return true if the streams were longer than the limit and only their beginning was kept
+         */
+        public boolean isTruncated() {
+            return truncated;
+        }
+
+        public boolean isTimedOut() {
+            return timedOut;
+        }
+
+        public boolean isSuccess() {
+            return !timedOut && exitCode == 0;
+        }
+    }
+
+    private static class StreamDrainer extends Thread {
+        private final BufferedReader reader;
+        private final boolean errorStream;
+        private final int maxChars;
+        private final LineListener listener;
+        private final StringBuilder buffer = new StringBuilder();
+        private long size = 0;
+        private boolean truncated = false;
+
+        StreamDrainer(InputStream stream, boolean errorStream, int maxChars, LineListener listener) {
+            super(errorStream ? "calabash-process-stderr" : "calabash-process-stdout");
+            setDaemon(true);
+            this.reader = new BufferedReader(new InputStreamReader(stream));
+            this.errorStream = errorStream;
+            this.maxChars = maxChars;
+            this.listener = listener;
+        }
+
+        @Override
+        public void run() {
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    append(line);
+                    if (listener != null)
+                        listener.onLine(line, errorStream);
+                }
+            } catch (IOException ignored) {
+                // stream closed when the process is destroyed
+            } finally {
+                Utils.closeQuietly(reader);
+            }
+        }
+
+        private synchronized void append(String line) {
+            size += line.length() + 1;
+            if (buffer.length() + line.length() + 1 > maxChars) {
+                truncated = true;
+                return;
+            }
+            buffer.append(line).append('\n');
+        }
+
+        synchronized String getContent() {
+            return buffer.toString();
+        }
+
+        synchronized long getSize() {
+            return size;
+        }
+
+        synchronized boolean isTruncated() {
+            return truncated;
+        }
+    }
+
+    public ProcessRunner(String... command) {
+        this.command = command;
+    }
+
+    /**
+     * @param timeoutInMs time after which the command is killed, 0 to wait until it ends. Default 0.
+     */
+    public void setTimeout(long timeoutInMs) {
+        this.timeoutInMs = timeoutInMs;
+    }
+
+    /**
+     * @param maxBufferedChars characters of each stream kept in the result. Default 1M.
+     */
+    public void setMaxBufferedChars(int maxBufferedChars) {
+        this.maxBufferedChars = maxBufferedChars;
+    }
+
+    public void setLineListener(LineListener lineListener) {
+        this.lineListener = lineListener;
+    }
+
+    /**
+     * Runs the command and waits for it to end or time out
+     *
+     * @return the result, also when the command fails or times out
+     * @throws CalabashException when the command can't be started
+     */
+    public Result run() throws CalabashException {
+        long startTime = System.currentTimeMillis();
+        Process process = launch();
+        StreamDrainer output = new StreamDrainer(process.getInputStream(), false, maxBufferedChars, lineListener);
+        StreamDrainer error = new StreamDrainer(process.getErrorStream(), true, maxBufferedChars, lineListener);
+        output.start();
+        error.start();
+
+        boolean timedOut = false;
+        int exitCode = -1;
+        try {
+            timedOut = !awaitExit(process, output, error);
+            if (timedOut) {
+                error("Command %s timed out after %d ms, killing it", Utils.getStringFromArray(command), timeoutInMs);
+                process.destroy();
+                output.join(DRAIN_TIMEOUT_IN_MS);
+                error.join(DRAIN_TIMEOUT_IN_MS);
+            } else {
+                exitCode = process.waitFor();
+            }
+        } catch (InterruptedException e) {
+            process.destroy();
+            Thread.currentThread().interrupt();
+            throw new CalabashException(format("Interrupted while executing %s", Utils.getStringFromArray(command)), e);
+        }
+
+        Result result = new Result(exitCode, System.currentTimeMillis() - startTime, output.getContent(), error.getContent(),
+                output.getSize() + error.getSize(), output.isTruncated() || error.isTruncated(), timedOut);
+        info("Command exited with %d in %d ms, %d chars of output", result.getExitCode(), result.getDurationInMs(), result.getOutputSize());
+        return result;
+    }
+
+    /**
+     * Starts the command without waiting for it. Its streams are drained in the background and passed to the line
+     * listener, if any, so a long running child like the emulator doesn't block on a full pipe.
+     *
+     * @return the running process
+     * @throws CalabashException when the command can't be started
+     */
+    public Process start() throws CalabashException {
+        Process process = launch();
+        new StreamDrainer(process.getInputStream(), false, 0, lineListener).start();
+        new StreamDrainer(process.getErrorStream(), true, 0, lineListener).start();
+        return process;
+    }
+
+    private boolean awaitExit(Process process, StreamDrainer output, StreamDrainer error) throws InterruptedException {
+        if (timeoutInMs <= 0) {
+            process.waitFor();
+        } else {
+            long deadline = System.currentTimeMillis() + timeoutInMs;
+            while (!hasExited(process)) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0)
+                    return false;
+                Thread.sleep(Math.min(POLL_INTERVAL_IN_MS, remaining));
+            }
+        }
+        // the streams end right after the exit unless a child of the process inherited them
+        output.join(DRAIN_TIMEOUT_IN_MS);
+        error.join(DRAIN_TIMEOUT_IN_MS);
+        return true;
+    }
+
+    private boolean hasExited(Process process) {
+        try {
+            process.exitValue();
+            return true;
+        } catch (IllegalThreadStateException e) {
+            return false;
+        }
+    }
+
+    private Process launch() throws CalabashException {
+        info("Executing command");
+        info(Utils.getStringFromArray(command));
+        try {
+            return new ProcessBuilder(command).start();
+        } catch (IOException e) {
+            throw new CalabashException(format("Failed to execute command %s, %s", Utils.getStringFromArray(command), e.getMessage()), e);
+        }
+    }
+}
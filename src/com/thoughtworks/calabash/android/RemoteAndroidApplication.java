@@ -0,0 +1,267 @@
+package com.thoughtworks.calabash.android;
+
+import org.codehaus.jackson.map.ObjectMapper;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static java.lang.String.format;
+
+/**
+ * Client for {@link DriverDaemon}. Forwards the application operations to a session the daemon keeps warm, so a test
+ * JVM starts in milliseconds instead of booting JRuby and the test server. Elements are returned as their property
+ * maps and addressed by query, eg: <code>touch("button index:0")</code>.
+ * <p/>
+ * This is deliberately a smaller API than {@link AndroidApplication}: there are no {@link UIElement} or
+ * {@link UIElements} proxies on the client side, so tests written against them have to address the elements by
+ * query instead.
+ */
+public class RemoteAndroidApplication {
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final Socket socket;
+    private final BufferedReader reader;
+    private final Writer writer;
+    private final String session;
+
+    private RemoteAndroidApplication(Socket socket, Map<String, Object> openRequest) throws CalabashException {
+        this.socket = socket;
+        try {
+            this.reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+            this.writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8"));
+        } catch (IOException e) {
+            throw new CalabashException("Could not connect to the driver daemon. " + e.getMessage(), e);
+        }
+        try {
+            this.session = Utils.toString(send(openRequest));
+        } catch (OperationTimedoutException e) {
+            throw new CalabashException(e.getMessage());
+        }
+    }
+
+    /**
+     * Connects to the daemon and opens a session for the apk on the configured device, reusing the session
+     * if the daemon already has one for the same apk and configuration. The token is read from
+     * {@link DriverDaemon#getTokenFile(int)}.
+     *
+     * @param port          port the daemon listens on
+     * @param apkPath       path of the .apk file
+     * @param configuration serial, device name, android home, java home and reinstall flag are sent to the daemon
+     * @throws CalabashException
+     */
+    public static RemoteAndroidApplication connect(int port, String apkPath, AndroidConfiguration configuration) throws CalabashException {
+        return connect(port, DriverDaemon.getTokenFile(port), apkPath, configuration);
+    }
+
+    /**
+     * @param tokenFile file the daemon wrote its token to
+     * @see #connect(int, String, AndroidConfiguration)
+     */
+    public static RemoteAndroidApplication connect(int port, File tokenFile, String apkPath, AndroidConfiguration configuration) throws CalabashException {
+        Map<String, Object> request = new HashMap<String, Object>();
+        request.put("command", DriverDaemon.OPEN);
+        request.put("token", readToken(tokenFile));
+        request.put("apk", new File(apkPath).getAbsolutePath());
+        request.put("serial", configuration.getSerial());
+        request.put("deviceName", configuration.getDeviceName());
+        request.put("androidHome", configuration.getAndroidHome());
+        request.put("javaHome", configuration.getJavaHome());
+        request.put("reinstall", configuration.shouldReinstallApp());
+        Socket socket;
+        try {
+            socket = new Socket(InetAddress.getByName("127.0.0.1"), port);
+        } catch (IOException e) {
+            throw new CalabashException(format("Could not connect to the driver daemon on port %d. %s", port, e.getMessage()), e);
+        }
+        try {
+            return new RemoteAndroidApplication(socket, request);
+        } catch (CalabashException e) {
+            Utils.closeQuietly(socket);
+            throw e;
+        }
+    }
+
+    private static String readToken(File tokenFile) throws CalabashException {
+        InputStream in = null;
+        try {
+            in = new FileInputStream(tokenFile);
+            return Utils.toString(in).trim();
+        } catch (IOException e) {
+            throw new CalabashException(format("Could not read the driver daemon token from %s. %s", tokenFile.getAbsolutePath(), e.getMessage()), e);
+        } finally {
+            Utils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * @param query calabash query
+     * @return properties of each matching element
+     * @throws CalabashException
+     */
+    @SuppressWarnings("unchecked")
+    public List<Map<String, Object>> query(String query) throws CalabashException {
+        Object result = call("query", query);
+        return result instanceof List ? (List<Map<String, Object>>) result : new ArrayList<Map<String, Object>>();
+    }
+
+    public boolean elementExists(String query) throws CalabashException {
+        return Boolean.TRUE.equals(call("elementExists", query));
+    }
+
+    public void touch(String query) throws CalabashException {
+        call("touch", query);
+    }
+
+    public void longPress(String query) throws CalabashException {
+        call("longPress", query);
+    }
+
+    public void enterText(String query, String text) throws CalabashException {
+        call("enterText", query, text);
+    }
+
+    public void setChecked(String query, boolean checked) throws CalabashException {
+        call("setChecked", query, checked);
+    }
+
+    public Object getProperty(String query, String selector) throws CalabashException {
+        return call("getProperty", query, selector);
+    }
+
+    public String getCurrentActivity() throws CalabashException {
+        return Utils.toString(call("getCurrentActivity"));
+    }
+
+    public void waitForActivity(String activityName, int timeoutInSec) throws CalabashException, OperationTimedoutException {
+        callWithTimeout("waitForActivity", activityName, timeoutInSec);
+    }
+
+    public void waitForElementWithId(String id, int timeoutInSec) throws CalabashException, OperationTimedoutException {
+        callWithTimeout("waitForElementWithId", id, timeoutInSec);
+    }
+
+    public void goBack() throws CalabashException {
+        call("goBack");
+    }
+
+    public void pressEnterKey() throws CalabashException {
+        call("pressEnterKey");
+    }
+
+    public void scrollDown() throws CalabashException {
+        call("scrollDown");
+    }
+
+    public void scrollUp() throws CalabashException {
+        call("scrollUp");
+    }
+
+    public void hideKeyboard() throws CalabashException {
+        call("hideKeyboard");
+    }
+
+    public void selectMenuItem(String menuItem) throws CalabashException {
+        call("selectMenuItem", menuItem);
+    }
+
+    public void swipe(Direction direction) throws CalabashException {
+        call("swipe", direction.name());
+    }
+
+    public void drag(int fromX, int toX, int fromY, int toY, int steps) throws CalabashException {
+        call("drag", fromX, toX, fromY, toY, steps);
+    }
+
+    /**
+     * Takes a screenshot. The daemon writes the file, so <code>dir</code> has to be on the same machine.
+     */
+    public void takeScreenshot(File dir, String fileName) throws CalabashException {
+        call("takeScreenshot", dir.getAbsolutePath(), fileName);
+    }
+
+    @SuppressWarnings("unchecked")
+    public Map<String, String> getSharedPreferences(String preferenceName) throws CalabashException {
+        Object result = call("getSharedPreferences", preferenceName);
+        return result instanceof Map ? (Map<String, String>) result : new HashMap<String, String>();
+    }
+
+    public void setGPSCoordinates(double latitude, double longitude) throws CalabashException {
+        call("setGPSCoordinates", latitude, longitude);
+    }
+
+    public void setGPSLocation(String location) throws CalabashException {
+        call("setGPSLocation", location);
+    }
+
+    public Object execute(String calabashCommand) throws CalabashException {
+        return call("execute", calabashCommand);
+    }
+
+    /**
+     * Closes the connection. The daemon keeps the session for the next client.
+     */
+    public void close() {
+        Utils.closeQuietly(socket);
+    }
+
+    /**
+     * Detaches from the session on the daemon and closes the connection. The daemon stops the session unless
+     * other clients still use it.
+     *
+     * @throws CalabashException
+     */
+    public void dispose() throws CalabashException {
+        try {
+            call(DriverDaemon.DISPOSE);
+        } finally {
+            close();
+        }
+    }
+
+    public String getSession() {
+        return session;
+    }
+
+    private Object call(String command, Object... args) throws CalabashException {
+        try {
+            return callWithTimeout(command, args);
+        } catch (OperationTimedoutException e) {
+            throw new CalabashException(e.getMessage());
+        }
+    }
+
+    private Object callWithTimeout(String command, Object... args) throws CalabashException, OperationTimedoutException {
+        Map<String, Object> request = new HashMap<String, Object>();
+        request.put("command", command);
+        request.put("session", session);
+        request.put("args", Arrays.asList(args));
+        return send(request);
+    }
+
+    private synchronized Object send(Map<String, Object> request) throws CalabashException, OperationTimedoutException {
+        Map<?, ?> response;
+        try {
+            writer.write(mapper.writeValueAsString(request));
+            writer.write('\n');
+            writer.flush();
+            String line = reader.readLine();
+            if (line == null)
+                throw new CalabashException("Driver daemon closed the connection");
+            response = mapper.readValue(line, Map.class);
+        } catch (IOException e) {
+            throw new CalabashException(format("Request %s to the driver daemon failed. %s", request.get("command"), e.getMessage()), e);
+        }
+        if (response.containsKey("error")) {
+            String message = Utils.toString(response.get("error"));
+            if (Boolean.TRUE.equals(response.get("timedOut")))
+                throw new OperationTimedoutException(message);
+            throw new CalabashException(message);
+        }
+        return response.get("result");
+    }
+}
@@ -0,0 +1,355 @@
+package com.thoughtworks.calabash.android;
+
+import org.jruby.RubyInstanceConfig;
+import org.jruby.embed.LocalContextScope;
+import org.jruby.embed.LocalVariableBehavior;
+import org.jruby.embed.ScriptingContainer;
+import org.jruby.runtime.Constants;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import static com.thoughtworks.calabash.android.CalabashLogger.error;
+import static com.thoughtworks.calabash.android.CalabashLogger.info;
+import static com.thoughtworks.calabash.android.CalabashLogger.warn;
+import static java.lang.String.format;
+
+/**
+ * Hands out scripting containers for a gems directory. Every container owns a separate ruby runtime, so
+ * each device session can run on its own thread. Released containers are reset and kept for the next
+ * session instead of booting a new runtime.
+ * <p/>
+ * Containers are handed out warm, with calabash-android already required. When enabled, the pool also
+ * boots a spare container in the background whenever it runs out of idle ones, so the next session
+ * doesn't wait for JRuby to start.
+ */
+public class ScriptingContainerPool {
+    public static final int DEFAULT_MAX_IDLE = 4;
+    private static final String WARM_UP_SCRIPT = "require 'calabash-android'\n$cajInitialEnv = ENV.to_hash\n";
+    private static final String RESET_SCRIPT = "@default_device = nil\n@cajScreenshotCallback = nil\n$cajJarsigner = nil\nENV.replace($cajInitialEnv) if $cajInitialEnv\n";
+    private static final String JIT_CODE_CACHE_PROPERTY = "jruby.jit.codeCache";
+    private static final Map<String, ScriptingContainerPool> pools = new HashMap<String, ScriptingContainerPool>();
+
+    private final File rbScriptsPath;
+    private final GemArchive archive;
+    private final LinkedList<ScriptingContainer> idle = new LinkedList<ScriptingContainer>();
+    private int maxIdle = DEFAULT_MAX_IDLE;
+    private boolean keepWarmSpare = false;
+    private boolean compileRubySources = false;
+    private FutureTask<ScriptingContainer> warming;
+
+    private ScriptingContainerPool(File rbScriptsPath, GemArchive archive) {
+        this.rbScriptsPath = rbScriptsPath;
+        this.archive = archive;
+    }
+
+    /**
+     * Gets the JVM wide pool for the gems extracted at <code>rbScriptsPath</code>
+     *
+     * @param rbScriptsPath directory containing jruby.home and gems
+     * @return the pool
+     */
+    public static ScriptingContainerPool forGems(File rbScriptsPath) {
+        synchronized (pools) {
+            String key = rbScriptsPath.getAbsolutePath();
+            ScriptingContainerPool pool = pools.get(key);
+            if (pool == null) {
+                pool = new ScriptingContainerPool(rbScriptsPath, null);
+                pools.put(key, pool);
+            }
+            return pool;
+        }
+    }
+
+    /**
+     * Gets the JVM wide pool for the gems read straight from <code>archive</code>
+     *
+     * @param archive archive containing jruby.home and gems
+     * @return the pool
+     */
+    public static ScriptingContainerPool forArchive(GemArchive archive) {
+        synchronized (pools) {
+            String key = archive.getFile().getAbsolutePath();
+            ScriptingContainerPool pool = pools.get(key);
+            if (pool == null) {
+                pool = new ScriptingContainerPool(archive.getFile(), archive);
+                pools.put(key, pool);
+            }
+            return pool;
+        }
+    }
+
+    /**
+     * Gets an idle container or creates a new one if none is available
+     *
+     * @return container for exclusive use until it is released
+     * @throws CalabashException
+     */
+    public ScriptingContainer acquire() throws CalabashException {
+        ScriptingContainer container = null;
+        FutureTask<ScriptingContainer> warmUp = null;
+        synchronized (this) {
+            if (!idle.isEmpty()) {
+                info("Reusing an idle ruby runtime");
+                container = idle.removeFirst();
+            } else if (warming != null) {
+                warmUp = warming;
+                warming = null;
+            }
+        }
+
+        if (warmUp != null) {
+            info("Waiting for the ruby runtime being warmed up");
+            container = await(warmUp);
+        }
+        if (container == null)
+            container = create();
+
+        if (shouldKeepWarmSpare())
+            prewarm();
+        return container;
+    }
+
+    /**
+     * Starts booting a container in the background unless an idle one is already available. Can be called
+     * early, eg: before the test classes run, to take JRuby's startup off the critical path.
+     */
+    public synchronized void prewarm() {
+        if (!idle.isEmpty() || warming != null)
+            return;
+
+        warming = new FutureTask<ScriptingContainer>(new Callable<ScriptingContainer>() {
+            public ScriptingContainer call() throws Exception {
+                return create();
+            }
+        });
+        Thread thread = new Thread(warming, "calabash-runtime-warmup");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Resets the container and keeps it for the next session. The container is terminated if the pool
+     * already has enough idle containers or if it cannot be reset.
+     *
+     * @param container container obtained from {@link #acquire()}
+     */
+    public void release(ScriptingContainer container) {
+        try {
+            container.runScriptlet(RESET_SCRIPT);
+            container.clear();
+        } catch (Exception e) {
+            error("Failed to reset ruby runtime, discarding it", e);
+            terminate(container);
+            return;
+        }
+
+        synchronized (this) {
+            if (idle.size() < maxIdle) {
+                idle.addLast(container);
+                return;
+            }
+        }
+        terminate(container);
+    }
+
+    /**
+     * Terminates all the idle containers
+     */
+    public void shutdown() {
+        List<ScriptingContainer> containers;
+        FutureTask<ScriptingContainer> warmUp;
+        synchronized (this) {
+            containers = new ArrayList<ScriptingContainer>(idle);
+            idle.clear();
+            warmUp = warming;
+            warming = null;
+        }
+        if (warmUp != null) {
+            ScriptingContainer container = await(warmUp);
+            if (container != null)
+                containers.add(container);
+        }
+        for (ScriptingContainer container : containers) {
+            terminate(container);
+        }
+    }
+
+    public synchronized int getIdleCount() {
+        return idle.size();
+    }
+
+    public synchronized void setMaxIdle(int maxIdle) {
+        this.maxIdle = maxIdle;
+    }
+
+    /**
+     * Set true to boot a spare container in the background when the pool runs out of idle ones.
+     * Default value false.
+     *
+     * @param keepWarmSpare
+     */
+    public synchronized void setKeepWarmSpare(boolean keepWarmSpare) {
+        this.keepWarmSpare = keepWarmSpare;
+    }
+
+    /**
+     * Set true to compile the ruby methods to JVM bytecode on their first call and keep the generated classes
+     * in a code cache inside the gems directory, keyed by the JRuby version. Later runs load the cached classes
+     * instead of warming the methods up through the interpreter again. Idle containers and the warm spare are
+     * discarded when the setting changes, so only containers booted in the new mode are handed out.
+     * Default value false.
+     * <p/>
+     * JRuby reads the location of the code cache once per JVM, before it creates its first runtime, and uses it
+     * for every runtime afterwards. The cache directory of the first pool compiling ruby sources is used by the
+     * whole JVM, unless JRuby was already started with another one, see {@link #isCodeCacheInUse()}.
+     *
+     * @param compileRubySources
+     */
+    public void setCompileRubySources(boolean compileRubySources) {
+        if (compileRubySources)
+            useCodeCache(getCodeCacheDirectory());
+        synchronized (this) {
+            if (this.compileRubySources == compileRubySources)
+                return;
+            this.compileRubySources = compileRubySources;
+        }
+        shutdown();
+    }
+
+    /**
+     * @return true if JRuby caches the compiled ruby sources in {@link #getCodeCacheDirectory()}
+     */
+    public boolean isCodeCacheInUse() {
+        return getCodeCacheDirectory().getAbsolutePath().equals(RubyInstanceConfig.JIT_CODE_CACHE);
+    }
+
+    /**
+     * @return directory holding the compiled ruby sources
+     */
+    public File getCodeCacheDirectory() {
+        if (archive != null)
+            return new File(rbScriptsPath.getParentFile(), rbScriptsPath.getName() + "-jit-cache-" + Constants.VERSION);
+        return new File(rbScriptsPath, "jit-cache-" + Constants.VERSION);
+    }
+
+    private synchronized boolean shouldCompileRubySources() {
+        return compileRubySources;
+    }
+
+    private synchronized boolean shouldKeepWarmSpare() {
+        return keepWarmSpare;
+    }
+
+    private ScriptingContainer await(FutureTask<ScriptingContainer> warmUp) {
+        try {
+            return warmUp.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            error("Failed to warm up ruby runtime", e.getCause());
+        }
+        return null;
+    }
+
+    private ScriptingContainer create() throws CalabashException {
+        info("Creating ruby runtime for %s", rbScriptsPath.getAbsolutePath());
+        ScriptingContainer container = shouldCompileRubySources() ? newCompilingContainer() : newContainer();
+        if (archive != null) {
+            container.setHomeDirectory(archive.getHomeDirectory());
+            container.getLoadPaths().addAll(archive.getLoadPaths());
+        } else {
+            container.setHomeDirectory(new File(rbScriptsPath, "jruby.home").getAbsolutePath());
+            container.getLoadPaths().addAll(getLoadPaths());
+        }
+        container.setEnvironment(new HashMap<String, String>(System.getenv()));
+        container.setErrorWriter(new StringWriter());
+        try {
+            long startTime = System.currentTimeMillis();
+            container.runScriptlet(WARM_UP_SCRIPT);
+            info("Ruby runtime warmed up in %d ms", System.currentTimeMillis() - startTime);
+        } catch (Exception e) {
+            error("Failed to load calabash-android while warming up the ruby runtime", e);
+        }
+        return container;
+    }
+
+    private ScriptingContainer newContainer() {
+        return new ScriptingContainer(LocalContextScope.SINGLETHREAD, LocalVariableBehavior.PERSISTENT);
+    }
+
+    private ScriptingContainer newCompilingContainer() throws CalabashException {
+        File codeCache = getCodeCacheDirectory();
+        if (isCodeCacheInUse()) {
+            if (!codeCache.isDirectory() && !codeCache.mkdirs())
+                throw new CalabashException("Can't create code cache directory. " + codeCache.getAbsolutePath());
+            info("Using compiled ruby code cache at %s", codeCache.getAbsolutePath());
+        }
+
+        ScriptingContainer container = newContainer();
+        container.setCompileMode(RubyInstanceConfig.CompileMode.JIT);
+        container.setJitThreshold(0);
+        return container;
+    }
+
+    /**
+     * Sets the JVM wide code cache property unless it is already set, then has JRuby read it
+     *
+     * @return true if JRuby uses the directory as its code cache
+     */
+    private static boolean useCodeCache(File codeCache) {
+        String path = codeCache.getAbsolutePath();
+        synchronized (ScriptingContainerPool.class) {
+            if (System.getProperty(JIT_CODE_CACHE_PROPERTY) == null)
+                System.setProperty(JIT_CODE_CACHE_PROPERTY, path);
+        }
+        String inUse = RubyInstanceConfig.JIT_CODE_CACHE;
+        if (path.equals(inUse))
+            return true;
+        if (inUse == null)
+            warn(format("JRuby was started without a code cache, compiled ruby sources are not cached in %s", path));
+        else
+            warn(format("JRuby caches compiled ruby sources in %s for the whole JVM, not in %s", inUse, path));
+        return false;
+    }
+
+    private List<String> getLoadPaths() throws CalabashException {
+        File gemsDir = new File(rbScriptsPath, "gems");
+        ArrayList<String> loadPaths = new ArrayList<String>();
+        File[] gems = gemsDir.listFiles(new FileFilter() {
+
+            public boolean accept(File arg0) {
+                return arg0.isDirectory();
+            }
+        });
+
+        if (gems == null || gems.length == 0)
+            throw new CalabashException("Couldn't find any gems inside " + gemsDir.getAbsolutePath());
+
+        for (File gem : gems) {
+            File libPath = new File(gem, "lib");
+            loadPaths.add(libPath.getAbsolutePath());
+        }
+
+        return loadPaths;
+    }
+
+    private void terminate(ScriptingContainer container) {
+        try {
+            container.clear();
+            container.getProvider().getRuntime().tearDown(true);
+            container.terminate();
+        } catch (Throwable e) {
+            error("Failed to terminate ruby runtime. ", e);
+        }
+    }
+}
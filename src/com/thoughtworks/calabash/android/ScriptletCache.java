@@ -0,0 +1,72 @@
+package com.thoughtworks.calabash.android;
+
+import org.jruby.embed.EmbedEvalUnit;
+import org.jruby.embed.ScriptingContainer;
+import org.jruby.javasupport.JavaEmbedUtils;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Parses each distinct ruby snippet once and evaluates the parsed unit on every later call.
+ * Call specific values should be passed through container variables instead of being formatted
+ * into the snippet, otherwise every call ends up as a new cache entry.
+ * <p/>
+ * A parsed unit only has room for the persistent local variables that existed when it was parsed. JRuby fails
+ * with an ArrayIndexOutOfBoundsException when such a unit is run after another variable was put, so the cache
+ * is dropped whenever the container's variables change.
+ */
+class ScriptletCache {
+    public static final int DEFAULT_CAPACITY = 256;
+    private final ScriptingContainer container;
+    private final Map<String, EmbedEvalUnit> units;
+    private Set<Object> variableNames = new HashSet<Object>();
+
+    public ScriptletCache(ScriptingContainer container) {
+        this(container, DEFAULT_CAPACITY);
+    }
+
+    public ScriptletCache(ScriptingContainer container, final int capacity) {
+        this.container = container;
+        this.units = new LinkedHashMap<String, EmbedEvalUnit>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, EmbedEvalUnit> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Evaluates the script with the current values of the container variables
+     *
+     * @param script ruby snippet
+     * @return result of the evaluation converted the same way as ScriptingContainer#runScriptlet
+     */
+    public Object run(String script) {
+        clearIfVariablesChanged();
+        EmbedEvalUnit unit = units.get(script);
+        if (unit == null) {
+            unit = container.parse(script);
+            units.put(script, unit);
+        }
+        return JavaEmbedUtils.rubyToJava(unit.run());
+    }
+
+    public int size() {
+        return units.size();
+    }
+
+    public void clear() {
+        units.clear();
+    }
+
+    private void clearIfVariablesChanged() {
+        Map<?, ?> variables = container.getVarMap();
+        if (variables.keySet().equals(variableNames))
+            return;
+        units.clear();
+        variableNames = new HashSet<Object>(variables.keySet());
+    }
+}
@@ -0,0 +1,130 @@
+package com.thoughtworks.calabash.android;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.security.MessageDigest;
+
+import static com.thoughtworks.calabash.android.CalabashLogger.error;
+import static com.thoughtworks.calabash.android.CalabashLogger.info;
+
+/**
+ * Keeps resigned applications and their test servers in a directory shared between workspaces. Entries
+ * are keyed by the digest of the application, the digest of the keystore used for signing and the calabash
+ * version, so an unchanged application never has to be resigned and rebuilt.
+ */
+public class SetupCache {
+    private static final String APP = "app.apk";
+    private static final String TEST_SERVERS = "test_servers";
+    private static final String ALIAS_SUFFIX = ".alias";
+    private final File cacheDirectory;
+
+    public SetupCache(File cacheDirectory) {
+        this.cacheDirectory = cacheDirectory;
+    }
+
+    /**
+     * @param apk             the application
+     * @param keystore        keystore used to sign the application, can be null
+     * @param calabashVersion version of calabash-android building the test server
+     * @return key of the cache entry for this combination
+     * @throws CalabashException
+     */
+    public static String key(File apk, File keystore, String calabashVersion) throws CalabashException {
+        String keystoreDigest = keystore != null && keystore.isFile() ? Utils.digest(keystore, "SHA-1") : "";
+        return key(Utils.digest(apk, "SHA-1"), keystoreDigest, calabashVersion);
+    }
+
+    private static String key(String apkDigest, String keystoreDigest, String calabashVersion) throws CalabashException {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            digest.update((apkDigest + "|" + keystoreDigest + "|" + calabashVersion).getBytes("UTF-8"));
+            return Utils.toHex(digest.digest());
+        } catch (Exception e) {
+            throw new CalabashException("Failed to compute setup cache key", e);
+        }
+    }
+
+    /**
+     * Copies the cached resigned application over <code>apk</code> and the cached test servers into
+     * <code>testServersDir</code>
+     *
+     * @return true if an entry was found and restored, false otherwise
+     */
+    public boolean restore(String key, File apk, File testServersDir) {
+        File entry = findEntry(key);
+        if (entry == null) {
+            info("No setup cache entry for %s", apk.getAbsolutePath());
+            return false;
+        }
+
+        try {
+            FileUtils.copyFile(new File(entry, APP), apk);
+            FileUtils.copyDirectory(new File(entry, TEST_SERVERS), testServersDir);
+            info("Restored setup of %s from %s", apk.getAbsolutePath(), entry.getAbsolutePath());
+            return true;
+        } catch (IOException e) {
+            error("Failed to restore setup from %s", e, entry.getAbsolutePath());
+            return false;
+        }
+    }
+
+    /**
+     * Stores the resigned application and its test servers. The entry is also reachable with the key of the
+     * resigned application, so a workspace that already holds the resigned application hits the cache too.
+     *
+     * @param key            key computed from the application before it was resigned
+     * @param resignedKey    key computed from the resigned application
+     * @param apk            the resigned application
+     * @param testServersDir directory holding the test servers, only the ones built for <code>apk</code> are stored
+     */
+    public void store(String key, String resignedKey, File apk, File testServersDir) {
+        File entry = new File(cacheDirectory, key);
+        if (entry.isDirectory())
+            return;
+
+        File staging = new File(cacheDirectory, key + ".tmp-" + System.nanoTime());
+        try {
+            final String apkChecksum = Utils.digest(apk, "MD5");
+            FileUtils.copyFile(apk, new File(staging, APP));
+            FileUtils.copyDirectory(testServersDir, new File(staging, TEST_SERVERS), new FileFilter() {
+                public boolean accept(File file) {
+                    return file.getName().startsWith(apkChecksum) && file.getName().endsWith(".apk");
+                }
+            });
+            if (!staging.renameTo(entry) && !entry.isDirectory())
+                throw new IOException("Could not move " + staging.getAbsolutePath() + " to " + entry.getAbsolutePath());
+            if (resignedKey != null && !resignedKey.equals(key))
+                FileUtils.writeStringToFile(new File(cacheDirectory, resignedKey + ALIAS_SUFFIX), key, "UTF-8");
+            info("Stored setup of %s in %s", apk.getAbsolutePath(), entry.getAbsolutePath());
+        } catch (Exception e) {
+            error("Failed to store setup in cache %s", e, cacheDirectory.getAbsolutePath());
+        } finally {
+            FileUtils.deleteQuietly(staging);
+        }
+    }
+
+    private File findEntry(String key) {
+        File entry = new File(cacheDirectory, key);
+        if (isComplete(entry))
+            return entry;
+
+        File alias = new File(cacheDirectory, key + ALIAS_SUFFIX);
+        if (!alias.isFile())
+            return null;
+        try {
+            entry = new File(cacheDirectory, FileUtils.readFileToString(alias, "UTF-8").trim());
+            return isComplete(entry) ? entry : null;
+        } catch (IOException e) {
+            error("Failed to read setup cache alias %s", e, alias.getAbsolutePath());
+            return null;
+        }
+    }
+
+    private boolean isComplete(File entry) {
+        File[] testServers = new File(entry, TEST_SERVERS).listFiles();
+        return new File(entry, APP).isFile() && testServers != null && testServers.length > 0;
+    }
+}
@@ -0,0 +1,105 @@
+package com.thoughtworks.calabash.android;
+
+import org.codehaus.jackson.map.ObjectMapper;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static com.thoughtworks.calabash.android.CalabashLogger.info;
+
+/**
+ * Durations of the phases of creating, setting up and starting an {@link AndroidRunner}. Phases running in the
+ * background, eg: the emulator boot, overlap with the others, so the durations can add up to more than
+ * {@link #getElapsedInMs()}. A phase recorded again replaces the earlier duration.
+ */
+public class StartupTimings {
+    public static final String GEM_EXTRACTION = "gemExtraction";
+    public static final String ENVIRONMENT_DISCOVERY = "environmentDiscovery";
+    public static final String CONTAINER_INIT = "containerInit";
+    public static final String KEYSTORE_CHECK = "keystoreCheck";
+    public static final String SETUP_CACHE_RESTORE = "setupCacheRestore";
+    public static final String RESIGN = "resign";
+    public static final String BUILD = "build";
+    public static final String WARM_UP = "warmUp";
+    public static final String DEVICE_DISCOVERY = "deviceDiscovery";
+    public static final String EMULATOR_BOOT = "emulatorBoot";
+    public static final String DEVICE_WAIT = "deviceWait";
+    public static final String INSTALL = "install";
+    public static final String SERVER_START = "serverStart";
+    public static final String FILE_NAME = "startup-timings.json";
+
+    private final long createdAt = System.currentTimeMillis();
+    private final long createdAtNanos = System.nanoTime();
+    private final Map<String, Long> durations = new LinkedHashMap<String, Long>();
+    private long elapsedInMs;
+
+    /**
+     * Records the duration of a phase that started at <code>startNanos</code> and ends now
+     *
+     * @param phase      name of the phase, eg: {@link #RESIGN}
+     * @param startNanos value of System.nanoTime() when the phase started
+     */
+    public void record(String phase, long startNanos) {
+        long durationInMs = (System.nanoTime() - startNanos) / 1000000;
+        synchronized (this) {
+            durations.remove(phase);
+            durations.put(phase, durationInMs);
+            elapsedInMs = (System.nanoTime() - createdAtNanos) / 1000000;
+        }
+        info("Startup phase %s took %d ms", phase, durationInMs);
+    }
+
+    /**
+     * @param phase name of the phase
+     * @return duration of the phase in milliseconds, null if it didn't run
+     */
+    public synchronized Long getDurationInMs(String phase) {
+        return durations.get(phase);
+    }
+
+    /**
+     * @return durations in milliseconds by phase, in the order the phases ended
+     */
+    public synchronized Map<String, Long> getDurationsInMs() {
+        return new LinkedHashMap<String, Long>(durations);
+    }
+
+    /**
+     * @return wall clock time from the creation of the runner to the end of the last recorded phase
+     */
+    public synchronized long getElapsedInMs() {
+        return elapsedInMs;
+    }
+
+    /**
+     * @return epoch milliseconds when the runner was created
+     */
+    public long getCreatedAt() {
+        return createdAt;
+    }
+
+    /**
+     * Writes the timings as json, eg: <code>{"createdAt":1408000000000,"elapsedInMs":41250,"phases":{"gemExtraction":830,...}}</code>
+     *
+     * @param file file to write, replaced if it exists
+     * @throws CalabashException
+     */
+    public void writeTo(File file) throws CalabashException {
+        Map<String, Object> json = new LinkedHashMap<String, Object>();
+        json.put("createdAt", createdAt);
+        json.put("elapsedInMs", getElapsedInMs());
+        json.put("phases", getDurationsInMs());
+        try {
+            new ObjectMapper().writeValue(file, json);
+        } catch (IOException e) {
+            throw new CalabashException("Could not write startup timings to " + file.getAbsolutePath(), e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return getDurationsInMs().toString();
+    }
+}
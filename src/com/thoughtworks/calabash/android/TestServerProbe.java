@@ -0,0 +1,46 @@
+package com.thoughtworks.calabash.android;
+
+import static com.thoughtworks.calabash.android.CalabashLogger.info;
+
+/**
+ * Decides whether a test server left running by an earlier run can be attached to instead of starting a new one
+ */
+class TestServerProbe {
+    private final CalabashHttpClient client;
+    private final AndroidBridge androidBridge;
+    private final String calabashVersion;
+
+    /**
+     * @param calabashVersion version of the bundled calabash gem
+     */
+    public TestServerProbe(CalabashHttpClient client, AndroidBridge androidBridge, String calabashVersion) {
+        this.client = client;
+        this.androidBridge = androidBridge;
+        this.calabashVersion = calabashVersion;
+    }
+
+    /**
+     * @return true if the server answers the ping, reports the calabash version and the app process is running
+     * @throws CalabashException when the processes on the device can't be listed
+     */
+    public boolean isRunning(String packageName, String serial) throws CalabashException {
+        if (!client.ping())
+            return false;
+        String serverVersion;
+        try {
+            serverVersion = client.getServerVersion();
+        } catch (CalabashException e) {
+            info("Could not get the version of the running test server. %s", e.getMessage());
+            return false;
+        }
+        if (!calabashVersion.equals(serverVersion)) {
+            info("Running test server version %s doesn't match calabash %s", serverVersion, calabashVersion);
+            return false;
+        }
+        if (!androidBridge.isProcessRunning(packageName, serial)) {
+            info("Running test server doesn't belong to %s", packageName);
+            return false;
+        }
+        return true;
+    }
+}
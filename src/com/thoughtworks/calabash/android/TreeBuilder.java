@@ -2,8 +2,6 @@ package com.thoughtworks.calabash.android;
 
 import org.codehaus.jackson.JsonNode;
 import org.codehaus.jackson.map.ObjectMapper;
-import org.jruby.RubyArray;
-import org.jruby.RubyHash;
 
 import java.io.IOException;
 import java.net.MalformedURLException;
@@ -21,7 +19,7 @@ public class TreeBuilder {
 
     public TreeBuilder(CalabashWrapper calabashWrapper) {
         this.calabashWrapper = calabashWrapper;
-        this.calabashHttpClient = new CalabashHttpClient(calabashWrapper);
+        this.calabashHttpClient = calabashWrapper.getHttpClient();
         this.treeNodeBuilder = new TreeNodeBuilder(calabashWrapper);
     }
 
@@ -35,16 +33,15 @@ public class TreeBuilder {
         Set<UIElement> inspectedElements = new HashSet<UIElement>();
         String elementQuery = root.getQuery();
         String descendantQuery = elementQuery + " descendant *";
-        RubyArray descendants = calabashWrapper.query(descendantQuery);
-        return getTreeNodes(descendants, root, descendantQuery, inspectedElements).get(0);
+        UIElements descendants = new UIElements(calabashWrapper.query(descendantQuery), descendantQuery, calabashWrapper);
+        return getTreeNodes(descendants, root, inspectedElements).get(0);
     }
 
-    private List<TreeNode> getTreeNodes(RubyArray allElements, UIElement root, String baseQuery, Set<UIElement> inspectedElements) throws CalabashException {
+    private List<TreeNode> getTreeNodes(UIElements allElements, UIElement root, Set<UIElement> inspectedElements) throws CalabashException {
         List<TreeNode> roots = new ArrayList<TreeNode>();
         for (int i = allElements.size() - 1; i >= 0; i--) {
-            final String query = String.format(baseQuery + " index:%d", i);
-            RubyHash rubyElement = (RubyHash) allElements.get(i);
-            UIElement currentElement = new UIElement(rubyElement, query, calabashWrapper);
+            UIElement currentElement = allElements.get(i);
+            String query = currentElement.getQuery();
             List<UIElement> uiElements = new ArrayList<UIElement>();
             if (inspectedElements.contains(currentElement))
                 continue;
@@ -63,8 +60,7 @@ public class TreeBuilder {
 
     private List<UIElement> getAllAncestors(String query) throws CalabashException {
         String parentQuery = query + " parent *";
-        RubyArray ancestors = calabashWrapper.query(parentQuery);
-        return convertToList(ancestors, parentQuery);
+        return new UIElements(calabashWrapper.query(parentQuery), parentQuery, calabashWrapper);
     }
 
     private List<UIElement> getAncestorsWithRoot(String query, UIElement root) throws CalabashException {
@@ -85,15 +81,6 @@ public class TreeBuilder {
         return finalElements;
     }
 
-    private List<UIElement> convertToList(RubyArray ancestors, String baseQuery) {
-        List<UIElement> uiElements = new ArrayList<UIElement>();
-        for (int i = 0; i < ancestors.size(); i++) {
-            UIElement uiElement = new UIElement((RubyHash) ancestors.get(i), baseQuery + " index:" + i, calabashWrapper);
-            uiElements.add(uiElement);
-        }
-        return uiElements;
-    }
-
     public void merge(List<UIElement> elements, List<TreeNode> roots) {
         Collections.reverse(elements);
         if (roots.isEmpty()) {
@@ -172,6 +159,8 @@ public class TreeBuilder {
             error("malformed url", e);
         } catch (IOException e) {
             error("exception while fetching view hierarchy", e);
+        } catch (CalabashException e) {
+            error("exception while fetching view hierarchy", e);
         }
         info("Done fetching view hierarchy");
         return treeNodes;
@@ -4,7 +4,6 @@
 package com.thoughtworks.calabash.android;
 
 import org.joda.time.DateTime;
-import org.jruby.RubyArray;
 import org.jruby.RubyHash;
 
 import java.util.ArrayList;
@@ -16,16 +15,19 @@ import static com.thoughtworks.calabash.android.CalabashLogger.error;
 import static java.lang.Double.parseDouble;
 
 /**
- * Represents an UI element.
+ * Represents an UI element. Properties of elements backed by a ruby hash are converted to java only when
+ * they are first read.
  */
 public class UIElement implements AndroidElementAction {
 
     private final Map<Object, Object> data;
     private final String query;
     private final CalabashWrapper calabashWrapper;
+    private RubyHash source;
 
     public UIElement(RubyHash data, String query, CalabashWrapper calabashWrapper) {
-        this.data = (Map<Object, Object>) Utils.toJavaHash(data);
+        this.data = new HashMap<Object, Object>();
+        this.source = data;
         this.query = query;
         this.calabashWrapper = calabashWrapper;
     }
@@ -36,13 +38,47 @@ public class UIElement implements AndroidElementAction {
         this.calabashWrapper = calabashWrapper;
     }
 
+    /**
+     * Converts all the remaining properties to java at once, so that the element no longer refers to
+     * the ruby runtime
+     *
+     * @return this element
+     */
+    public UIElement materialize() {
+        if (source == null)
+            return this;
+        for (Object rubyKey : source.keySet()) {
+            Object javaKey = Utils.toJavaObject(rubyKey);
+            if (!data.containsKey(javaKey))
+                data.put(javaKey, Utils.toJavaObject(source.get(rubyKey)));
+        }
+        source = null;
+        return this;
+    }
+
+    /**
+     * @return all the properties of the element converted to java
+     */
+    Map<Object, Object> getProperties() {
+        materialize();
+        return new HashMap<Object, Object>(data);
+    }
+
+    private Object get(String key) {
+        if (source == null || data.containsKey(key))
+            return data.get(key);
+        Object value = Utils.toJavaObject(source.get(key));
+        data.put(key, value);
+        return value;
+    }
+
     /**
      * Get element's class
      *
      * @return the class property
      */
     public String getElementClass() {
-        return Utils.toString(data.get("class"));
+        return Utils.toString(get("class"));
     }
 
     /**
@@ -51,7 +87,7 @@ public class UIElement implements AndroidElementAction {
      * @return the id property
      */
     public String getId() {
-        return Utils.toString(data.get("id"));
+        return Utils.toString(get("id"));
     }
 
     /**
@@ -60,7 +96,7 @@ public class UIElement implements AndroidElementAction {
      * @return the text property
      */
     public String getValue() {
-        return Utils.toString(data.get("value"));
+        return Utils.toString(get("value"));
     }
 
     /**
@@ -69,7 +105,7 @@ public class UIElement implements AndroidElementAction {
      * @return the text property
      */
     public String getTextContent() {
-        return Utils.toString(data.get("textContent"));
+        return Utils.toString(get("textContent"));
     }
 
     /**
@@ -78,7 +114,7 @@ public class UIElement implements AndroidElementAction {
      * @return the text property
      */
     public String getText() {
-        return Utils.toString(data.get("text"));
+        return Utils.toString(get("text"));
     }
 
     /**
@@ -107,7 +143,7 @@ public class UIElement implements AndroidElementAction {
      * @return the isEnabled property
      */
     public boolean isEnabled() {
-        return Boolean.parseBoolean(Utils.toString(data.get("enabled")));
+        return Boolean.parseBoolean(Utils.toString(get("enabled")));
     }
 
     /**
@@ -120,7 +156,7 @@ public class UIElement implements AndroidElementAction {
     }
 
     private String getElementProperty(String property) throws CalabashException {
-        Object description = data.get(property);
+        Object description = get(property);
         if (description == null) {
             description = getProperty(property);
         }
@@ -142,21 +178,21 @@ public class UIElement implements AndroidElementAction {
      * @return the rectangle
      */
     public Rect getRect() {
-        Map<String, String> rect;
+        Map<?, ?> rect;
         try {
-            rect = (Map<String, String>) data.get("rect");
+            rect = (Map<?, ?>) get("rect");
             if (rect == null)
                 return null;
         } catch (Exception e) {
             return null;
         }
 
-        return new Rect(parseDouble(rect.get("x")),
-                parseDouble(rect.get("y")),
-                parseDouble(rect.get("width")),
-                parseDouble(rect.get("height")),
-                parseDouble(rect.get("center_x")),
-                parseDouble(rect.get("center_y")));
+        return new Rect(parseDouble(Utils.toString(rect.get("x"))),
+                parseDouble(Utils.toString(rect.get("y"))),
+                parseDouble(Utils.toString(rect.get("width"))),
+                parseDouble(Utils.toString(rect.get("height"))),
+                parseDouble(Utils.toString(rect.get("center_x"))),
+                parseDouble(Utils.toString(rect.get("center_y"))));
     }
 
     /**
@@ -167,8 +203,7 @@ public class UIElement implements AndroidElementAction {
      */
     public UIElements children() throws CalabashException {
         String q = query + " child *";
-        RubyArray result = calabashWrapper.query(q);
-        return new UIElements(result, q, calabashWrapper);
+        return new UIElements(calabashWrapper.query(q), q, calabashWrapper);
     }
 
     /**
@@ -202,8 +237,8 @@ public class UIElement implements AndroidElementAction {
      * @throws CalabashException
      */
     public Object getProperty(String selector) throws CalabashException {
-        RubyArray rubyArray = calabashWrapper.query(this.getQuery(), selector);
-        Object value = Utils.toJavaObject(rubyArray.get(0));
+        List<?> results = calabashWrapper.query(this.getQuery(), selector);
+        Object value = Utils.toJavaObject(results.get(0));
         if (value != null && value.toString().toLowerCase().contains("no accessor")) {
             return null;
         }
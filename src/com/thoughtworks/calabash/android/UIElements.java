@@ -3,10 +3,11 @@
  */
 package com.thoughtworks.calabash.android;
 
-import org.jruby.RubyArray;
 import org.jruby.RubyHash;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -21,7 +22,7 @@ public final class UIElements extends ArrayList<UIElement> implements AndroidEle
     public UIElements() {
     }
 
-    public UIElements(RubyArray elements, String query, CalabashWrapper wrapper)
+    public UIElements(List<?> elements, String query, CalabashWrapper wrapper)
             throws CalabashException {
         query = query.trim();
         Pattern pattern = Pattern.compile("^.+index:[0-9]+$");
@@ -30,11 +31,14 @@ public final class UIElements extends ArrayList<UIElement> implements AndroidEle
 
         for (int i = 0; i < elements.size(); i++) {
             try {
-                RubyHash object = (RubyHash) elements.get(i);
+                Object object = elements.get(i);
                 String q = query;
                 if (!indexedQuery)
                     q += " index:" + i;
-                this.add(new UIElement(object, q, wrapper));
+                if (object instanceof RubyHash)
+                    this.add(new UIElement((RubyHash) object, q, wrapper));
+                else
+                    this.add(new UIElement((HashMap<Object, Object>) object, q, wrapper));
             } catch (Exception e) {
                 throw new CalabashException("Unsupported result format.\n" + elements.toString(), e);
             }
@@ -55,6 +59,19 @@ public final class UIElements extends ArrayList<UIElement> implements AndroidEle
         return this.get(0);
     }
 
+    /**
+     * Converts the properties of all the elements to java at once
+     *
+     * @return this list
+     * @see UIElement#materialize()
+     */
+    public UIElements materialize() {
+        for (UIElement element : this) {
+            element.materialize();
+        }
+        return this;
+    }
+
     private void ensureCollectionIsNotEmpty() throws CalabashException {
         if (this.size() == 0) {
             throw new CalabashException("Cannot perform action on an empty list");
@@ -0,0 +1,87 @@
+package com.thoughtworks.calabash.android;
+
+import static com.thoughtworks.calabash.android.CalabashLogger.info;
+
+/**
+ * Waits until the view hierarchy stops changing after an action, by comparing consecutive view dumps
+ * from the test server. Gives up when the ceiling is reached.
+ */
+public class UISettleDetector {
+    public static final long DEFAULT_SAMPLE_INTERVAL_IN_MS = 50;
+    public static final int DEFAULT_STABLE_SAMPLES = 2;
+    private final CalabashHttpClient httpClient;
+    private final long ceilingInMs;
+    private final long sampleIntervalInMs;
+    private final int stableSamples;
+    private long lastSettleTimeInMs = -1;
+
+    public UISettleDetector(CalabashHttpClient httpClient, long ceilingInMs) {
+        this(httpClient, ceilingInMs, DEFAULT_SAMPLE_INTERVAL_IN_MS, DEFAULT_STABLE_SAMPLES);
+    }
+
+    public UISettleDetector(CalabashHttpClient httpClient, long ceilingInMs, long sampleIntervalInMs, int stableSamples) {
+        this.httpClient = httpClient;
+        this.ceilingInMs = ceilingInMs;
+        this.sampleIntervalInMs = sampleIntervalInMs;
+        this.stableSamples = Math.max(2, stableSamples);
+    }
+
+    /**
+     * Blocks until <code>stableSamples</code> consecutive view dumps are identical or the ceiling elapses. The
+     * first dump is taken one sample interval after the call, so that the action has a chance to start changing
+     * the UI. A dump which can't be fetched doesn't count as a stable sample, and each dump only waits for the
+     * test server until the ceiling.
+     *
+     * @return time taken to settle in milliseconds
+     */
+    public long waitForSettle() {
+        long startTime = System.currentTimeMillis();
+        String previous = null;
+        int identical = 0;
+        boolean settled = false;
+        while (System.currentTimeMillis() - startTime < ceilingInMs) {
+            try {
+                Thread.sleep(sampleIntervalInMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            long remaining = ceilingInMs - (System.currentTimeMillis() - startTime);
+            if (remaining <= 0)
+                break;
+            String current = sampleViewDump((int) remaining);
+            if (current == null)
+                identical = 0;
+            else
+                identical = current.equals(previous) ? identical + 1 : 1;
+            previous = current;
+            if (identical >= stableSamples) {
+                settled = true;
+                break;
+            }
+        }
+
+        lastSettleTimeInMs = System.currentTimeMillis() - startTime;
+        if (settled)
+            info("UI settled in %d ms", lastSettleTimeInMs);
+        else
+            info("UI did not settle within %d ms", ceilingInMs);
+        return lastSettleTimeInMs;
+    }
+
+    /**
+     * @return time taken by the last settle in milliseconds, -1 if there was none yet
+     */
+    public long getLastSettleTimeInMs() {
+        return lastSettleTimeInMs;
+    }
+
+    private String sampleViewDump(int timeoutInMs) {
+        try {
+            return httpClient.getViewDump(timeoutInMs);
+        } catch (CalabashException e) {
+            info("Could not sample the view hierarchy. %s", e.getMessage());
+            return null;
+        }
+    }
+}
@@ -8,9 +8,14 @@ import org.jruby.RubyHash;
 import org.jruby.RubyObject;
 
 import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
 
 final class Utils {
@@ -84,62 +89,63 @@ final class Utils {
     }
 
     public static String runCommand(String[] command, String onExceptionMessage) throws CalabashException {
-        int exitCode;
+        ProcessRunner.Result result;
         try {
-            Process process = executeCommand(command);
-            exitCode = process.waitFor();
-            String error = toString(process.getErrorStream());
-            String output = toString(process.getInputStream());
-            CalabashLogger.info(output);
-
-            if (exitCode == 0) {
-                return output;
-            } else {
-                CalabashLogger.error("Executing command failed");
-                CalabashLogger.info(output);
-                CalabashLogger.error(error);
-                throw new CalabashException(onExceptionMessage);
-            }
-        } catch (Exception e) {
+            result = new ProcessRunner(command).run();
+        } catch (CalabashException e) {
             throw new CalabashException(onExceptionMessage);
         }
+        String output = joinLines(result.getOutput());
+        CalabashLogger.info(output);
+        if (result.isSuccess())
+            return output;
+
+        CalabashLogger.error("Executing command failed");
+        CalabashLogger.error(joinLines(result.getError()));
+        throw new CalabashException(onExceptionMessage);
     }
 
     public static String runCommand(String[] command) throws CalabashException {
-        Process process;
-        try {
-            process = executeCommand(command);
-            process.waitFor();
-            String error = toString(process.getErrorStream());
-            String output = toString(process.getInputStream());
-            CalabashLogger.info(output);
-            CalabashLogger.error(error);
-            return output;
-        } catch (Exception e) {
-            throw new CalabashException(String.format("Failed to execute command %s, %s", getStringFromArray(command), e.getMessage()), e);
-        }
+        ProcessRunner.Result result = new ProcessRunner(command).run();
+        String output = joinLines(result.getOutput());
+        CalabashLogger.info(output);
+        CalabashLogger.error(joinLines(result.getError()));
+        return output;
     }
 
     public static Process runCommandInBackGround(String[] command, String onExceptionMessage) throws CalabashException {
         try {
-            return executeCommand(command);
-        } catch (Exception e) {
+            return new ProcessRunner(command).start();
+        } catch (CalabashException e) {
             throw new CalabashException(onExceptionMessage);
         }
-
     }
 
-    private static Process executeCommand(String[] command) throws Exception {
-        String cmd = getStringFromArray(command);
-        CalabashLogger.info("Executing command");
-        CalabashLogger.info(cmd);
-        return Runtime.getRuntime().exec(command);
+    /**
+     * The output of commands used to be read line by line without the line separators, which the parsing of
+     * the adb output relies on
+     */
+    private static String joinLines(String output) {
+        return output.replace("\n", "");
     }
 
     public static String getStringFromArray(String[] command) {
         return Arrays.toString(command).replaceAll("\\[|,|]", "");
     }
 
+    /**
+     * Joins with spaces, keeping the arguments as they are, unlike {@link #getStringFromArray(String[])}
+     */
+    public static String join(String[] command) {
+        StringBuilder joined = new StringBuilder();
+        for (String arg : command) {
+            if (joined.length() > 0)
+                joined.append(' ');
+            joined.append(arg);
+        }
+        return joined.toString();
+    }
+
     public static String toString(InputStream in) throws CalabashException {
         BufferedReader br = new BufferedReader(new InputStreamReader(in));
         StringBuilder sb = new StringBuilder();
@@ -168,4 +174,63 @@ final class Utils {
     public static String toString(Object object) {
         return object != null ? object.toString() : "";
     }
+
+    /**
+     * @param file      file to digest
+     * @param algorithm digest algorithm, eg: MD5, SHA-1
+     * @return hex encoded digest of the file contents
+     */
+    public static String digest(File file, String algorithm) throws CalabashException {
+        InputStream in = null;
+        try {
+            MessageDigest digest = MessageDigest.getInstance(algorithm);
+            in = new FileInputStream(file);
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+            return toHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new CalabashException("Unsupported digest algorithm " + algorithm, e);
+        } catch (IOException e) {
+            throw new CalabashException("Failed to read " + file.getAbsolutePath(), e);
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    public static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    public static String toBase64(byte[] bytes) {
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        StringBuilder base64 = new StringBuilder((bytes.length + 2) / 3 * 4);
+        for (int i = 0; i < bytes.length; i += 3) {
+            int remaining = Math.min(3, bytes.length - i);
+            int block = (bytes[i] & 0xff) << 16;
+            if (remaining > 1)
+                block |= (bytes[i + 1] & 0xff) << 8;
+            if (remaining > 2)
+                block |= bytes[i + 2] & 0xff;
+            for (int j = 0; j < 4; j++) {
+                base64.append(j <= remaining ? alphabet.charAt((block >> (18 - 6 * j)) & 0x3f) : '=');
+            }
+        }
+        return base64.toString();
+    }
+
+    public static void closeQuietly(Closeable closeable) {
+        if (closeable == null)
+            return;
+        try {
+            closeable.close();
+        } catch (IOException ignored) {
+        }
+    }
 }
@@ -1,18 +1,21 @@
 package com.thoughtworks.calabash.android;
 
-import org.jruby.RubyArray;
 import org.jruby.RubyHash;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 
 import static com.thoughtworks.calabash.android.CalabashLogger.warn;
 
 public class WebElements extends ArrayList<UIElement> {
-    public WebElements(RubyArray elementsArray, String query, CalabashWrapper calabashWrapper) {
+    public WebElements(List<?> elements, String query, CalabashWrapper calabashWrapper) {
         query = query.trim();
-        for (Object element : elementsArray) {
-            RubyHash object = (RubyHash) element;
-            this.add(new UIElement(object, query, calabashWrapper));
+        for (Object element : elements) {
+            if (element instanceof RubyHash)
+                this.add(new UIElement((RubyHash) element, query, calabashWrapper));
+            else
+                this.add(new UIElement((HashMap<Object, Object>) element, query, calabashWrapper));
         }
     }
 
@@ -0,0 +1,96 @@
+package com.thoughtworks.calabash.android;
+
+import org.jruby.RubyArray;
+import org.jruby.RubyHash;
+import org.jruby.embed.LocalContextScope;
+import org.jruby.embed.LocalVariableBehavior;
+import org.jruby.embed.ScriptingContainer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Lives in the sources' package since OperationsDispatcher is package private; the public classes only call it
+ * with the real calabash-android gem loaded.
+ */
+public class OperationsDispatcherTest {
+    private ScriptingContainer container;
+    private OperationsDispatcher operations;
+
+    @Before
+    public void setUp() {
+        container = new ScriptingContainer(LocalContextScope.SINGLETHREAD, LocalVariableBehavior.PERSISTENT);
+        // stands in for Calabash::Android::Operations, extended into the top level object the same way
+        container.runScriptlet("module FakeOperations\n" +
+                "  def echo(*args)\n    args\n  end\n" +
+                "  def ruby_classes(*args)\n    args.map { |arg| arg.class.name }\n  end\n" +
+                "  def option(options, key)\n    options[key]\n  end\n" +
+                "  def default_device\n    Struct.new(:default_server_port).new(34777)\n  end\n" +
+                "end\n" +
+                "extend FakeOperations\n");
+        operations = new OperationsDispatcher(container);
+    }
+
+    @After
+    public void tearDown() {
+        container.terminate();
+    }
+
+    @Test
+    public void shouldCallOperationWithJavaArguments() {
+        final Object result = operations.call("echo", "button", 5, true);
+
+        assertEquals(Arrays.asList("button", 5L, true), result);
+    }
+
+    @Test
+    public void shouldConvertJavaArgumentsToRubyObjects() {
+        final Object result = operations.call("ruby_classes", "text", 5, 1.5, true, operations.symbol("getYear"));
+
+        assertEquals(Arrays.asList("String", "Fixnum", "Float", "TrueClass", "Symbol"), result);
+    }
+
+    @Test
+    public void shouldSplatRemainingArguments() {
+        assertEquals(Arrays.asList("button", "text", 1L), operations.callWithSplat("echo", "button", new Object[]{"text", 1}));
+        assertEquals(Arrays.asList("button"), operations.callWithSplat("echo", "button", null));
+        assertEquals(Arrays.asList("button"), operations.callWithSplat("echo", "button", new Object[0]));
+    }
+
+    @Test
+    public void shouldBuildHashWithSymbolKeys() {
+        final RubyHash options = operations.options("prefix", "/tmp/", "name", "shot");
+
+        assertEquals("/tmp/", operations.call("option", options, operations.symbol("prefix")));
+        assertEquals("shot", operations.call("option", options, operations.symbol("name")));
+    }
+
+    @Test
+    public void shouldBuildRubyArray() {
+        final RubyArray array = operations.array("button", "edittext");
+
+        assertEquals(Arrays.asList("String", "String"), operations.call("ruby_classes", array.toArray()));
+        assertEquals(Arrays.asList("Array"), operations.call("ruby_classes", array));
+    }
+
+    @Test
+    public void shouldCallMethodOnReturnedRubyObject() {
+        final Object device = operations.call("default_device");
+
+        assertEquals(34777L, operations.callOn(device, "default_server_port"));
+    }
+
+    @Test
+    public void shouldReturnRubyArrayForQueryResults() {
+        final Object result = operations.call("echo", "a", "b");
+
+        assertTrue(result instanceof RubyArray);
+        assertEquals(2, ((List<?>) result).size());
+    }
+}
@@ -0,0 +1,62 @@
+package com.thoughtworks.calabash.android;
+
+import org.jruby.embed.LocalContextScope;
+import org.jruby.embed.LocalVariableBehavior;
+import org.jruby.embed.ScriptingContainer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Kept next to the sources rather than in the unit package: ScriptletCache is package private and can't be
+ * reached through the public API without booting calabash-android.
+ */
+public class ScriptletCacheTest {
+    private ScriptingContainer container;
+    private ScriptletCache scriptlets;
+
+    @Before
+    public void setUp() {
+        container = new ScriptingContainer(LocalContextScope.SINGLETHREAD, LocalVariableBehavior.PERSISTENT);
+        scriptlets = new ScriptletCache(container);
+    }
+
+    @After
+    public void tearDown() {
+        container.terminate();
+    }
+
+    @Test
+    public void shouldReuseParsedScriptWithNewValues() {
+        container.put("cajValue", 1);
+        assertEquals(2L, scriptlets.run("cajValue + 1"));
+
+        container.put("cajValue", 41);
+        assertEquals(42L, scriptlets.run("cajValue + 1"));
+        assertEquals(1, scriptlets.size());
+    }
+
+    @Test
+    public void shouldRunCachedScriptAfterNewVariableIsPut() {
+        // same sequence as queryAll followed by waitFor followed by queryAll
+        container.put("cajQueries", new String[]{"button"});
+        assertEquals(1L, scriptlets.run("cajQueries.size"));
+        container.put("cajWaitTimeout", 10);
+        container.put("cajWaitRetryFrequency", 1);
+        assertEquals(10L, scriptlets.run("cajWaitTimeout"));
+
+        assertEquals(1L, scriptlets.run("cajQueries.size"));
+    }
+
+    @Test
+    public void shouldRunCachedScriptTwiceAfterNewVariableIsPut() {
+        container.put("cajDirectory", "/tmp");
+        assertEquals("/tmp", scriptlets.run("cajDirectory"));
+        container.put("cajEnv", "value");
+
+        assertEquals("/tmp", scriptlets.run("cajDirectory"));
+        assertEquals("/tmp", scriptlets.run("cajDirectory"));
+    }
+}
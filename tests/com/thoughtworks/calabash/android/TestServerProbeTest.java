@@ -0,0 +1,74 @@
+package com.thoughtworks.calabash.android;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+/**
+ * In the sources' package because TestServerProbe is package private; through CalabashWrapper it only runs
+ * while starting an app on a device.
+ */
+public class TestServerProbeTest {
+    private static final String VERSION = "0.4.21";
+    private static final String PACKAGE = "com.example";
+    private static final String SERIAL = "emulator-5554";
+    @Mock
+    private CalabashHttpClient client;
+    @Mock
+    private AndroidBridge androidBridge;
+    private TestServerProbe probe;
+
+    @Before
+    public void setUp() throws Exception {
+        initMocks(this);
+        when(client.ping()).thenReturn(true);
+        when(client.getServerVersion()).thenReturn(VERSION);
+        when(androidBridge.isProcessRunning(PACKAGE, SERIAL)).thenReturn(true);
+        probe = new TestServerProbe(client, androidBridge, VERSION);
+    }
+
+    @Test
+    public void shouldAttachWhenServerAnswersWithCalabashVersionForRunningApp() throws Exception {
+        assertTrue(probe.isRunning(PACKAGE, SERIAL));
+    }
+
+    @Test
+    public void shouldStartServerWhenPingFails() throws Exception {
+        when(client.ping()).thenReturn(false);
+
+        assertFalse(probe.isRunning(PACKAGE, SERIAL));
+        verify(client, never()).getServerVersion();
+        verify(androidBridge, never()).isProcessRunning(anyString(), anyString());
+    }
+
+    @Test
+    public void shouldStartServerWhenVersionDiffers() throws Exception {
+        when(client.getServerVersion()).thenReturn("0.4.20");
+
+        assertFalse(probe.isRunning(PACKAGE, SERIAL));
+        verify(androidBridge, never()).isProcessRunning(anyString(), anyString());
+    }
+
+    @Test
+    public void shouldFallBackToStartingServerWhenVersionCannotBeRead() throws Exception {
+        when(client.getServerVersion()).thenThrow(new CalabashException("Request to test server / failed"));
+
+        assertFalse(probe.isRunning(PACKAGE, SERIAL));
+        verify(androidBridge, never()).isProcessRunning(anyString(), anyString());
+    }
+
+    @Test
+    public void shouldStartServerWhenAppProcessIsNotRunning() throws Exception {
+        when(androidBridge.isProcessRunning(PACKAGE, SERIAL)).thenReturn(false);
+
+        assertFalse(probe.isRunning(PACKAGE, SERIAL));
+    }
+}
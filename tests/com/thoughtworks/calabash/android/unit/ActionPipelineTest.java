@@ -0,0 +1,83 @@
+package com.thoughtworks.calabash.android.unit;
+
+import com.thoughtworks.calabash.android.ActionHandle;
+import com.thoughtworks.calabash.android.ActionPipeline;
+import com.thoughtworks.calabash.android.CalabashException;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ActionPipelineTest {
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+    private final ActionPipeline pipeline = new ActionPipeline("test-actions");
+
+    @After
+    public void tearDown() {
+        pipeline.shutdown();
+    }
+
+    @Test
+    public void shouldRunActionsInOrderWithoutBlockingTheCaller() throws Exception {
+        final List<Integer> executed = Collections.synchronizedList(new ArrayList<Integer>());
+        final CountDownLatch release = new CountDownLatch(1);
+        pipeline.submit("first", new ActionPipeline.Action() {
+            public void run() throws CalabashException {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new CalabashException("interrupted");
+                }
+                executed.add(1);
+            }
+        });
+        final ActionHandle second = pipeline.submit("second", new ActionPipeline.Action() {
+            public void run() {
+                executed.add(2);
+            }
+        });
+
+        assertFalse(second.isDone());
+        assertTrue(pipeline.hasPendingActions());
+        release.countDown();
+        pipeline.barrier();
+
+        assertEquals(Arrays.asList(1, 2), executed);
+        assertTrue(second.isDone());
+    }
+
+    @Test
+    public void shouldSkipRemainingActionsAndReportTheFailureAtTheBarrier() throws Exception {
+        expectedException.expect(CalabashException.class);
+        expectedException.expectMessage("no such button");
+        final List<String> executed = Collections.synchronizedList(new ArrayList<String>());
+        pipeline.submit("touch button", new ActionPipeline.Action() {
+            public void run() throws CalabashException {
+                throw new CalabashException("no such button");
+            }
+        });
+        final ActionHandle skipped = pipeline.submit("go back", new ActionPipeline.Action() {
+            public void run() {
+                executed.add("go back");
+            }
+        });
+
+        try {
+            pipeline.barrier();
+        } finally {
+            assertTrue(skipped.isDone());
+            assertTrue(executed.isEmpty());
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package com.thoughtworks.calabash.android.unit;
+
+import com.thoughtworks.calabash.android.AdbClient;
+import com.thoughtworks.calabash.android.CalabashException;
+import com.thoughtworks.calabash.android.Device;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class AdbClientTest {
+    private ServerSocket server;
+    private final List<String> requests = Collections.synchronizedList(new ArrayList<String>());
+    private AdbClient adbClient;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new ServerSocket(0);
+        final Thread thread = new Thread(new Runnable() {
+            public void run() {
+                serve();
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        adbClient = new AdbClient("127.0.0.1", server.getLocalPort());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.close();
+    }
+
+    @Test
+    public void shouldListDevices() throws Exception {
+        final List<Device> devices = adbClient.getDevices();
+
+        assertEquals(2, devices.size());
+        assertEquals("emulator-5554", devices.get(0).getSerial());
+        assertEquals("device", devices.get(0).getState());
+        assertEquals("0123456789", devices.get(1).getSerial());
+        assertEquals("offline", devices.get(1).getState());
+    }
+
+    @Test
+    public void shouldRunShellCommandOnDevice() throws Exception {
+        final String output = adbClient.shell("emulator-5554", "pm", "path", "com.example");
+
+        assertEquals("package:/data/app/com.example-1.apk\n", output);
+        assertEquals(Arrays.asList("host:transport:emulator-5554", "shell:pm path com.example"), requests);
+    }
+
+    @Test
+    public void shouldReportFailureMessage() throws Exception {
+        try {
+            adbClient.shell("missing", "getprop");
+            fail("should fail for unknown device");
+        } catch (CalabashException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("device 'missing' not found"));
+        }
+    }
+
+    @Test(expected = CalabashException.class)
+    public void shouldFailWhenServerIsNotRunning() throws Exception {
+        server.close();
+        new AdbClient("127.0.0.1", server.getLocalPort()).getDevices();
+    }
+
+    private void serve() {
+        while (!server.isClosed()) {
+            try {
+                final Socket socket = server.accept();
+                try {
+                    handle(socket);
+                } finally {
+                    socket.close();
+                }
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private void handle(Socket socket) throws IOException {
+        final DataInputStream in = new DataInputStream(socket.getInputStream());
+        final OutputStream out = socket.getOutputStream();
+        while (true) {
+            final byte[] length = new byte[4];
+            in.readFully(length);
+            final byte[] payload = new byte[Integer.parseInt(new String(length, "US-ASCII"), 16)];
+            in.readFully(payload);
+            final String request = new String(payload, "UTF-8");
+            requests.add(request);
+
+            if (request.equals("host:devices")) {
+                reply(out, "OKAY", "emulator-5554\tdevice\n0123456789\toffline\n");
+                return;
+            } else if (request.equals("host:transport:missing")) {
+                reply(out, "FAIL", "device 'missing' not found");
+                return;
+            } else if (request.startsWith("host:transport:")) {
+                out.write("OKAY".getBytes("US-ASCII"));
+            } else if (request.startsWith("shell:")) {
+                out.write("OKAY".getBytes("US-ASCII"));
+                out.write("package:/data/app/com.example-1.apk\r\n".getBytes("UTF-8"));
+                return;
+            } else {
+                reply(out, "FAIL", "unknown request");
+                return;
+            }
+        }
+    }
+
+    private void reply(OutputStream out, String status, String message) throws IOException {
+        final byte[] bytes = message.getBytes("UTF-8");
+        out.write(status.getBytes("US-ASCII"));
+        out.write(String.format("%04x", bytes.length).getBytes("US-ASCII"));
+        out.write(bytes);
+    }
+}
@@ -0,0 +1,196 @@
+package com.thoughtworks.calabash.android.unit;
+
+import com.thoughtworks.calabash.android.AdbClient;
+import com.thoughtworks.calabash.android.AdbShellSession;
+import com.thoughtworks.calabash.android.CalabashException;
+import com.thoughtworks.calabash.android.ProcessRunner;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+public class AdbShellSessionTest {
+    private ServerSocket server;
+    private final List<String> requests = Collections.synchronizedList(new ArrayList<String>());
+    private volatile boolean echoInput;
+    private AdbShellSession session;
+
+    @Before
+    public void setUp() throws Exception {
+        assumeTrue(!System.getProperty("os.name").toLowerCase().contains("win"));
+        server = new ServerSocket(0);
+        final Thread thread = new Thread(new Runnable() {
+            public void run() {
+                serve();
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        session = AdbShellSession.forDevice(new AdbClient("127.0.0.1", server.getLocalPort()), "emulator-5554");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (session != null)
+            session.close();
+        if (server != null)
+            server.close();
+    }
+
+    @Test
+    public void shouldRunCommandsInOneShell() throws Exception {
+        assertEquals("hello\n", session.execute("echo", "hello"));
+        assertEquals("one\ntwo\n", session.execute("echo one; echo two"));
+
+        assertEquals(1, Collections.frequency(requests, "shell:sh"));
+    }
+
+    @Test
+    public void shouldReportExitStatusOfEachCommand() throws Exception {
+        final ProcessRunner.Result failed = session.run(AdbShellSession.DEFAULT_TIMEOUT_IN_MS, "echo failing; (exit 4)");
+        final ProcessRunner.Result succeeded = session.run(AdbShellSession.DEFAULT_TIMEOUT_IN_MS, "echo", "done");
+
+        assertEquals(4, failed.getExitCode());
+        assertEquals("failing\n", failed.getOutput());
+        assertTrue(succeeded.isSuccess());
+        assertEquals("done\n", succeeded.getOutput());
+    }
+
+    @Test
+    public void shouldIgnoreCommandLineEchoedByTerminal() throws Exception {
+        echoInput = true;
+
+        assertEquals("hello\n", session.execute("echo", "hello"));
+        assertEquals("stopped\n", session.execute("echo", "stopped"));
+    }
+
+    @Test
+    public void shouldKeepOutputWithoutTrailingNewline() throws Exception {
+        assertEquals("abc", session.execute("printf", "abc"));
+        assertEquals("next\n", session.execute("echo", "next"));
+    }
+
+    @Test
+    public void shouldReopenShellAfterItExits() throws Exception {
+        try {
+            session.execute("exit");
+            fail("should fail when the shell exits");
+        } catch (CalabashException e) {
+            assertFalse(session.isOpen());
+        }
+
+        assertEquals("again\n", session.execute("echo", "again"));
+        assertEquals(2, Collections.frequency(requests, "shell:sh"));
+    }
+
+    @Test
+    public void shouldCloseShellWhenCommandTimesOut() throws Exception {
+        try {
+            session.execute(200, "sleep", "5");
+            fail("should time out");
+        } catch (CalabashException e) {
+            assertFalse(session.isOpen());
+        }
+    }
+
+    @Test
+    public void shouldShareSessionPerDevice() throws Exception {
+        final AdbClient adbClient = new AdbClient("127.0.0.1", server.getLocalPort());
+
+        assertSame(session, AdbShellSession.forDevice(adbClient, "emulator-5554"));
+        assertNotSame(session, AdbShellSession.forDevice(adbClient, "emulator-5556"));
+    }
+
+    private void serve() {
+        while (!server.isClosed()) {
+            try {
+                final Socket socket = server.accept();
+                final Thread thread = new Thread(new Runnable() {
+                    public void run() {
+                        try {
+                            handle(socket);
+                        } catch (IOException ignored) {
+                        } finally {
+                            try {
+                                socket.close();
+                            } catch (IOException ignored) {
+                            }
+                        }
+                    }
+                });
+                thread.setDaemon(true);
+                thread.start();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private void handle(Socket socket) throws IOException {
+        final DataInputStream in = new DataInputStream(socket.getInputStream());
+        final OutputStream out = socket.getOutputStream();
+        while (true) {
+            final byte[] length = new byte[4];
+            in.readFully(length);
+            final byte[] payload = new byte[Integer.parseInt(new String(length, "US-ASCII"), 16)];
+            in.readFully(payload);
+            final String request = new String(payload, "UTF-8");
+            requests.add(request);
+            out.write("OKAY".getBytes("US-ASCII"));
+            if (request.equals("shell:sh")) {
+                pipeToShell(in, out);
+                return;
+            }
+        }
+    }
+
+    private void pipeToShell(final InputStream in, final OutputStream out) throws IOException {
+        final Process process = new ProcessBuilder("sh").redirectErrorStream(true).start();
+        final Thread input = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    int b;
+                    while ((b = in.read()) != -1) {
+                        if (echoInput)
+                            writeToSocket(out, b == '\n' ? "\r\n".getBytes() : new byte[]{(byte) b});
+                        process.getOutputStream().write(b);
+                        if (b == '\n')
+                            process.getOutputStream().flush();
+                    }
+                } catch (IOException ignored) {
+                } finally {
+                    process.destroy();
+                }
+            }
+        });
+        input.setDaemon(true);
+        input.start();
+
+        final InputStream output = process.getInputStream();
+        final byte[] buffer = new byte[1024];
+        int read;
+        while ((read = output.read(buffer)) != -1) {
+            final byte[] bytes = new byte[read];
+            System.arraycopy(buffer, 0, bytes, 0, read);
+            writeToSocket(out, bytes);
+        }
+    }
+
+    private void writeToSocket(OutputStream out, byte[] bytes) throws IOException {
+        synchronized (out) {
+            out.write(bytes);
+            out.flush();
+        }
+    }
+}
@@ -0,0 +1,360 @@
+package com.thoughtworks.calabash.android.unit;
+
+import com.thoughtworks.calabash.android.AdbClient;
+import com.thoughtworks.calabash.android.AndroidBridge;
+import com.thoughtworks.calabash.android.AndroidConfiguration;
+import com.thoughtworks.calabash.android.CalabashException;
+import com.thoughtworks.calabash.android.Environment;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.MessageDigest;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Runs the bridge against a stand-in adb server whose device shell is a local sh, with fake android commands
+ * ahead of the system ones on the path
+ */
+public class AndroidBridgeTest {
+    private static final String SERIAL = "emulator-5554";
+    private static final String PACKAGE = "com.example";
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+    private ServerSocket server;
+    private File bin;
+    private File installedApk;
+    private Environment environment;
+    private AndroidBridge androidBridge;
+    private volatile boolean refuseLongLivedShell;
+
+    @Before
+    public void setUp() throws Exception {
+        assumeTrue(!System.getProperty("os.name").toLowerCase().contains("win"));
+        bin = temporaryFolder.newFolder("bin");
+        installedApk = temporaryFolder.newFile("base.apk");
+        FileUtils.writeStringToFile(installedApk, "installed apk");
+        addCommand("pm", "if [ \"$2\" = \"" + PACKAGE + "\" ]; then echo \"package:" + installedApk.getAbsolutePath() + "\"; fi");
+
+        server = new ServerSocket(0);
+        final Thread thread = new Thread(new Runnable() {
+            public void run() {
+                serve();
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        environment = mock(Environment.class);
+        androidBridge = new AndroidBridge(environment, new AdbClient("127.0.0.1", server.getLocalPort()));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (server != null)
+            server.close();
+    }
+
+    @Test
+    public void shouldGetChecksumOfInstalledApk() throws Exception {
+        assertEquals(md5(installedApk), androidBridge.getInstalledApkChecksum(PACKAGE, SERIAL));
+    }
+
+    @Test
+    public void shouldSkipInstallWhenInstalledApkMatches() throws Exception {
+        assertTrue(androidBridge.isInstalled(PACKAGE, md5(installedApk), SERIAL));
+        assertTrue(androidBridge.isInstalled(PACKAGE, md5(installedApk).toUpperCase(), SERIAL));
+    }
+
+    @Test
+    public void shouldInstallWhenInstalledApkDiffers() throws Exception {
+        final File localApk = temporaryFolder.newFile("local.apk");
+        FileUtils.writeStringToFile(localApk, "rebuilt apk");
+
+        assertFalse(androidBridge.isInstalled(PACKAGE, md5(localApk), SERIAL));
+    }
+
+    @Test
+    public void shouldInstallWhenPackageIsNotInstalled() throws Exception {
+        assertNull(androidBridge.getInstalledApkChecksum("com.other", SERIAL));
+        assertFalse(androidBridge.isInstalled("com.other", md5(installedApk), SERIAL));
+    }
+
+    @Test
+    public void shouldInstallWhenDeviceHasNoMd5sum() throws Exception {
+        addCommand("md5sum", "echo \"/system/bin/sh: md5sum: not found\"\nexit 127");
+
+        assertNull(androidBridge.getInstalledApkChecksum(PACKAGE, SERIAL));
+        assertFalse(androidBridge.isInstalled(PACKAGE, md5(installedApk), SERIAL));
+    }
+
+    @Test
+    public void shouldKillEmulatorWhenLaunchIsCancelled() throws Exception {
+        final File pidFile = new File(temporaryFolder.getRoot(), "emulator.pid");
+        when(environment.getEmulator()).thenReturn(fakeEmulator(pidFile).getAbsolutePath());
+        final FutureTask<String> launch = launchInBackground("Nexus_5_API_19", null);
+        final String pid = awaitPid(pidFile);
+
+        launch.cancel(true);
+        androidBridge.cancelEmulatorLaunch();
+
+        assertTrue(hasExited(pid));
+    }
+
+    @Test
+    public void shouldKillEmulatorStartedAfterLaunchWasCancelled() throws Exception {
+        final File pidFile = new File(temporaryFolder.getRoot(), "emulator.pid");
+        when(environment.getEmulator()).thenReturn(fakeEmulator(pidFile).getAbsolutePath());
+        androidBridge.cancelEmulatorLaunch();
+
+        try {
+            launchInBackground("Nexus_5_API_19", null).get();
+            fail("launch should have been cancelled");
+        } catch (ExecutionException e) {
+            assertEquals("Emulator launch cancelled", e.getCause().getMessage());
+        }
+        Thread.sleep(500);
+        assertTrue(!pidFile.exists() || hasExited(FileUtils.readFileToString(pidFile).trim()));
+    }
+
+    @Test
+    public void shouldNotKillDeviceItDidNotLaunch() throws Exception {
+        final File pidFile = new File(temporaryFolder.getRoot(), "emulator.pid");
+        final Process running = new ProcessBuilder(fakeEmulator(pidFile).getAbsolutePath()).start();
+        try {
+            final String pid = awaitPid(pidFile);
+            assertEquals(SERIAL, launchInBackground(null, SERIAL).get());
+            androidBridge.cancelEmulatorLaunch();
+
+            assertFalse(hasExited(pid));
+        } finally {
+            running.destroy();
+        }
+    }
+
+    private FutureTask<String> launchInBackground(String deviceName, String serial) {
+        final AndroidConfiguration configuration = new AndroidConfiguration();
+        configuration.setDeviceName(deviceName);
+        configuration.setSerial(serial);
+        final FutureTask<String> launch = new FutureTask<String>(new Callable<String>() {
+            public String call() throws CalabashException {
+                return androidBridge.launchEmulator(configuration);
+            }
+        });
+        final Thread thread = new Thread(launch);
+        thread.setDaemon(true);
+        thread.start();
+        return launch;
+    }
+
+    private File fakeEmulator(File pidFile) throws IOException {
+        addCommand("emulator", "echo $$ > " + pidFile.getAbsolutePath() + "\nexec sleep 30");
+        return new File(bin, "emulator");
+    }
+
+    private String awaitPid(File pidFile) throws Exception {
+        final long deadline = System.currentTimeMillis() + 10000;
+        while (System.currentTimeMillis() < deadline) {
+            if (pidFile.isFile() && FileUtils.readFileToString(pidFile).trim().length() > 0)
+                return FileUtils.readFileToString(pidFile).trim();
+            Thread.sleep(50);
+        }
+        throw new AssertionError("emulator was not started");
+    }
+
+    private boolean hasExited(String pid) throws Exception {
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (System.currentTimeMillis() < deadline) {
+            if (new ProcessBuilder("kill", "-0", pid).start().waitFor() != 0)
+                return true;
+            Thread.sleep(50);
+        }
+        return false;
+    }
+
+    @Test
+    public void shouldFindProcessInMultiLinePsOutput() throws Exception {
+        addCommand("ps", "echo \"USER     PID   PPID  VSIZE  RSS     WCHAN    PC         NAME\"\n" +
+                "echo \"root      1     0     560    404   c00b9e44 0000f5ac S /init\"\n" +
+                "echo \"u0_a46    1234  52    198764 28456 ffffffff 00000000 S " + PACKAGE + "\"\n" +
+                "echo \"u0_a47    1240  52    198764 28456 ffffffff 00000000 S " + PACKAGE + ".test\"");
+
+        assertTrue(androidBridge.isProcessRunning(PACKAGE, SERIAL));
+        assertFalse(androidBridge.isProcessRunning("com.other", SERIAL));
+    }
+
+    @Test
+    public void shouldListAllProcessesWhenPlainPsShowsOnlyTheShell() throws Exception {
+        addCommand("ps", "echo \"USER           PID  PPID     VSZ    RSS WCHAN            ADDR S NAME\"\n" +
+                "echo \"shell         4321  4300   10796   3064 0                   0 S sh\"\n" +
+                "if [ \"$1\" = \"-A\" ]; then echo \"u0_a46        1234   52  198764  28456 0                   0 S " + PACKAGE + "\"; fi");
+
+        assertTrue(androidBridge.isProcessRunning(PACKAGE, SERIAL));
+    }
+
+    @Test
+    public void shouldFailWhenCommandExitsWithNonZeroStatus() throws Exception {
+        addCommand("input", "echo \"Error: unknown command\"\nexit 3");
+
+        try {
+            androidBridge.unlockKeyguard(SERIAL);
+            fail("should fail on the exit status");
+        } catch (CalabashException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("Exit status 3: Error: unknown command"));
+        }
+    }
+
+    @Test
+    public void shouldNotRunCommandAgainWhenShellFailsWhileRunningIt() throws Exception {
+        final File runs = new File(temporaryFolder.getRoot(), "runs");
+        addCommand("input", "echo ran >> " + runs.getAbsolutePath() + "\nkill -9 $PPID");
+
+        try {
+            androidBridge.unlockKeyguard(SERIAL);
+            fail("should fail when the shell dies");
+        } catch (CalabashException e) {
+            assertEquals("ran\n", FileUtils.readFileToString(runs));
+        }
+    }
+
+    @Test
+    public void shouldRunOneOffShellWhenLongLivedShellCannotBeOpened() throws Exception {
+        refuseLongLivedShell = true;
+
+        assertEquals(md5(installedApk), androidBridge.getInstalledApkChecksum(PACKAGE, SERIAL));
+        assertNull(androidBridge.getInstalledApkChecksum("com.other", SERIAL));
+        addCommand("md5sum", "exit 127");
+        assertNull(androidBridge.getInstalledApkChecksum(PACKAGE, SERIAL));
+    }
+
+    private void addCommand(String name, String script) throws IOException {
+        final File command = new File(bin, name);
+        FileUtils.writeStringToFile(command, "#!/bin/sh\n" + script + "\n");
+        assertTrue(command.setExecutable(true));
+    }
+
+    private String md5(File file) throws Exception {
+        final byte[] digest = MessageDigest.getInstance("MD5").digest(FileUtils.readFileToByteArray(file));
+        return String.format("%032x", new BigInteger(1, digest));
+    }
+
+    private void serve() {
+        while (!server.isClosed()) {
+            try {
+                final Socket socket = server.accept();
+                final Thread thread = new Thread(new Runnable() {
+                    public void run() {
+                        try {
+                            handle(socket);
+                        } catch (IOException ignored) {
+                        } finally {
+                            try {
+                                socket.close();
+                            } catch (IOException ignored) {
+                            }
+                        }
+                    }
+                });
+                thread.setDaemon(true);
+                thread.start();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private void handle(Socket socket) throws IOException {
+        final DataInputStream in = new DataInputStream(socket.getInputStream());
+        final OutputStream out = socket.getOutputStream();
+        while (true) {
+            final byte[] length = new byte[4];
+            in.readFully(length);
+            final byte[] payload = new byte[Integer.parseInt(new String(length, "US-ASCII"), 16)];
+            in.readFully(payload);
+            final String request = new String(payload, "UTF-8");
+            if (!(refuseLongLivedShell && request.equals("shell:sh")))
+                out.write("OKAY".getBytes("US-ASCII"));
+            if (request.startsWith("host:track-devices")) {
+                final String devices = SERIAL + "\tdevice\n";
+                out.write((String.format("%04x", devices.length()) + devices).getBytes("US-ASCII"));
+                out.flush();
+                // keeps the connection open like the adb server does
+                in.read();
+                return;
+            }
+            if (request.equals("shell:sh")) {
+                if (refuseLongLivedShell) {
+                    final String message = "closed";
+                    out.write(("FAIL" + String.format("%04x", message.length()) + message).getBytes("US-ASCII"));
+                    out.flush();
+                    return;
+                }
+                pipeToShell(in, out);
+                return;
+            }
+            if (request.startsWith("shell:")) {
+                runOneOffShell(request.substring("shell:".length()), out);
+                return;
+            }
+        }
+    }
+
+    private void runOneOffShell(String command, OutputStream out) throws IOException {
+        final ProcessBuilder builder = new ProcessBuilder("sh", "-c", command).redirectErrorStream(true);
+        builder.environment().put("PATH", bin.getAbsolutePath() + File.pathSeparator + System.getenv("PATH"));
+        final InputStream output = builder.start().getInputStream();
+        final byte[] buffer = new byte[1024];
+        int read;
+        while ((read = output.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        out.flush();
+    }
+
+    private void pipeToShell(final InputStream in, final OutputStream out) throws IOException {
+        final ProcessBuilder builder = new ProcessBuilder("sh").redirectErrorStream(true);
+        builder.environment().put("PATH", bin.getAbsolutePath() + File.pathSeparator + System.getenv("PATH"));
+        final Process process = builder.start();
+        final Thread input = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    int b;
+                    while ((b = in.read()) != -1) {
+                        process.getOutputStream().write(b);
+                        if (b == '\n')
+                            process.getOutputStream().flush();
+                    }
+                } catch (IOException ignored) {
+                } finally {
+                    process.destroy();
+                }
+            }
+        });
+        input.setDaemon(true);
+        input.start();
+
+        final InputStream output = process.getInputStream();
+        final byte[] buffer = new byte[1024];
+        int read;
+        while ((read = output.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+            out.flush();
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package com.thoughtworks.calabash.android.unit;
+
+import com.thoughtworks.calabash.android.ApkInfo;
+import com.thoughtworks.calabash.android.CalabashException;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.util.Enumeration;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.*;
+
+public class ApkInfoTest {
+    private static final File APK = new File("tests/resources/AndroidTestApplication.apk");
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void shouldReadPackageAndLauncherActivityFromManifest() throws Exception {
+        final ApkInfo apkInfo = ApkInfo.of(APK);
+
+        assertEquals("com.example.AndroidTestApplication", apkInfo.getPackageName());
+        assertEquals("com.example.AndroidTestApplication.MyActivity", apkInfo.getLauncherActivity());
+    }
+
+    @Test
+    public void shouldNameTestServerAfterApkChecksum() throws Exception {
+        final File apk = temporaryFolder.newFile("app.apk");
+        FileUtils.copyFile(APK, apk);
+
+        final File testServer = ApkInfo.of(apk).getTestServer(new File("test_servers"), "0.4.21");
+
+        assertEquals(new File("test_servers", md5(apk) + "_0.4.21.apk"), testServer);
+    }
+
+    @Test
+    public void shouldReadAgainWhenApkChanges() throws Exception {
+        final File apk = temporaryFolder.newFile("app.apk");
+        FileUtils.copyFile(APK, apk);
+        final ApkInfo original = ApkInfo.of(apk);
+        assertSame(original, ApkInfo.of(apk));
+
+        resign(apk);
+
+        final ApkInfo changed = ApkInfo.of(apk);
+        assertNotSame(original, changed);
+        assertFalse(original.getMd5().equals(changed.getMd5()));
+        assertEquals(original.getPackageName(), changed.getPackageName());
+    }
+
+    @Test(expected = CalabashException.class)
+    public void shouldFailWhenThereIsNoManifest() throws Exception {
+        final File apk = temporaryFolder.newFile("empty.apk");
+        final ZipOutputStream out = new ZipOutputStream(new FileOutputStream(apk));
+        out.putNextEntry(new ZipEntry("classes.dex"));
+        out.write(1);
+        out.close();
+
+        ApkInfo.of(apk);
+    }
+
+    private void resign(File apk) throws Exception {
+        final ZipFile original = new ZipFile(APK);
+        final ZipOutputStream out = new ZipOutputStream(new FileOutputStream(apk));
+        try {
+            final Enumeration<? extends ZipEntry> entries = original.entries();
+            while (entries.hasMoreElements()) {
+                final ZipEntry entry = entries.nextElement();
+                out.putNextEntry(new ZipEntry(entry.getName()));
+                IOUtils.copy(original.getInputStream(entry), out);
+            }
+            out.putNextEntry(new ZipEntry("META-INF/RESIGNED.SF"));
+            out.write("Signature-Version: 1.0".getBytes("UTF-8"));
+        } finally {
+            out.close();
+            original.close();
+        }
+        apk.setLastModified(apk.lastModified() + 2000);
+    }
+
+    private String md5(File file) throws Exception {
+        final byte[] digest = MessageDigest.getInstance("MD5").digest(FileUtils.readFileToByteArray(file));
+        return String.format("%032x", new BigInteger(1, digest));
+    }
+}
@@ -0,0 +1,223 @@
+package com.thoughtworks.calabash.android.unit;
+
+import com.thoughtworks.calabash.android.ApkSigner;
+import com.thoughtworks.calabash.android.DebugKeystore;
+import com.thoughtworks.calabash.android.InProcessJarsigner;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.xml.bind.DatatypeConverter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.Signature;
+import java.security.interfaces.RSAPublicKey;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.*;
+
+public class ApkSignerTest {
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void shouldGenerateDebugKeystore() throws Exception {
+        final File keystore = new File(temporaryFolder.getRoot(), "debug.keystore");
+        DebugKeystore.generate(keystore);
+
+        final KeyStore store = KeyStore.getInstance("JKS");
+        final FileInputStream in = new FileInputStream(keystore);
+        try {
+            store.load(in, "android".toCharArray());
+        } finally {
+            in.close();
+        }
+        assertNotNull(store.getKey("androiddebugkey", "android".toCharArray()));
+        final X509Certificate certificate = (X509Certificate) store.getCertificate("androiddebugkey");
+        certificate.verify(certificate.getPublicKey());
+        assertEquals("CN=AndroidDebug, O=Android, C=US", certificate.getSubjectX500Principal().getName().replace(",", ", "));
+    }
+
+    @Test
+    public void shouldSignApkReplacingExistingSignature() throws Exception {
+        final File keystore = new File(temporaryFolder.getRoot(), "debug.keystore");
+        DebugKeystore.generate(keystore);
+        final File apk = createApk(temporaryFolder.newFile("app.apk"));
+        final File signedApk = new File(temporaryFolder.getRoot(), "signed.apk");
+
+        ApkSigner.fromKeystore(keystore, "android", "androiddebugkey", null, "SHA256withRSA", "SHA-256", null).sign(apk, signedApk);
+
+        assertSigned(signedApk, "ANDROIDD");
+    }
+
+    @Test
+    public void shouldSignInPlaceForJarsignerCommand() throws Exception {
+        final File keystore = new File(temporaryFolder.getRoot(), "debug.keystore");
+        DebugKeystore.generate(keystore);
+        final File apk = createApk(temporaryFolder.newFile("app with space.apk"));
+        final String command = String.format("jarsigner -sigalg SHA256withRSA -digestalg SHA-256 -storepass android -keystore \"%s\" \"%s\" androiddebugkey",
+                keystore.getAbsolutePath(), apk.getAbsolutePath());
+
+        assertEquals(Boolean.TRUE, new InProcessJarsigner().run(new String[]{command}));
+        assertSigned(apk, "ANDROIDD");
+    }
+
+    /**
+     * calabash signs with MD5withRSA and SHA1 digests, which current JDKs no longer accept when verifying jars,
+     * so the digests and the signature are checked one by one
+     */
+    @Test
+    public void shouldSignWithAlgorithmsCalabashPassesToJarsigner() throws Exception {
+        final File keystore = new File(temporaryFolder.getRoot(), "debug.keystore");
+        DebugKeystore.generate(keystore);
+        final File apk = createApk(temporaryFolder.newFile("app.apk"));
+        final File signedApk = new File(temporaryFolder.getRoot(), "signed.apk");
+        final String command = String.format("jarsigner -sigfile CERT -sigalg MD5withRSA -digestalg SHA1 -signedjar \"%s\" -storepass android -keystore \"%s\" \"%s\" androiddebugkey",
+                signedApk.getAbsolutePath(), keystore.getAbsolutePath(), apk.getAbsolutePath());
+
+        assertEquals(Boolean.TRUE, new InProcessJarsigner().run(new String[]{command}));
+
+        final ZipFile zip = new ZipFile(signedApk);
+        try {
+            final byte[] manifestBytes = read(zip, "META-INF/MANIFEST.MF");
+            final Manifest manifest = new Manifest(new ByteArrayInputStream(manifestBytes));
+            for (String name : new String[]{"AndroidManifest.xml", "classes.dex", "res/a-very-long-resource-name-that-needs-to-be-wrapped-across-several-manifest-lines.xml"}) {
+                assertEquals(sha1(read(zip, name)), manifest.getAttributes(name).getValue("SHA1-Digest"));
+            }
+            final byte[] signatureFile = read(zip, "META-INF/CERT.SF");
+            assertEquals(sha1(manifestBytes), new Manifest(new ByteArrayInputStream(signatureFile)).getMainAttributes().getValue("SHA1-Digest-Manifest"));
+
+            final X509Certificate certificate = (X509Certificate) loadKeystore(keystore).getCertificate("androiddebugkey");
+            final byte[] signatureBlock = read(zip, "META-INF/CERT.RSA");
+            assertTrue(indexOf(signatureBlock, new byte[]{0x06, 0x08, 0x2a, (byte) 0x86, 0x48, (byte) 0x86, (byte) 0xf7, 0x0d, 0x02, 0x05}) >= 0);
+            final Signature signature = Signature.getInstance("MD5withRSA");
+            signature.initVerify(certificate.getPublicKey());
+            signature.update(signatureFile);
+            assertTrue(signature.verify(encryptedDigest(signatureBlock, (RSAPublicKey) certificate.getPublicKey())));
+        } finally {
+            zip.close();
+        }
+    }
+
+    @Test
+    public void shouldIgnoreCommandsOtherThanSigning() throws Exception {
+        final InProcessJarsigner jarsigner = new InProcessJarsigner();
+
+        assertNull(jarsigner.run(new String[]{"adb", "install", "app.apk"}));
+        assertNull(jarsigner.run(new String[]{"jarsigner -verify app.apk"}));
+    }
+
+    private void assertSigned(File apk, String signatureFileName) throws Exception {
+        final JarFile jar = new JarFile(apk, true);
+        try {
+            assertNotNull(jar.getEntry("META-INF/" + signatureFileName + ".SF"));
+            assertNull(jar.getEntry("META-INF/OLD.RSA"));
+            final Enumeration<JarEntry> entries = jar.entries();
+            int signedEntries = 0;
+            while (entries.hasMoreElements()) {
+                final JarEntry entry = entries.nextElement();
+                final InputStream in = jar.getInputStream(entry);
+                while (in.read() != -1) {
+                }
+                in.close();
+                if (entry.isDirectory() || entry.getName().startsWith("META-INF/"))
+                    continue;
+                assertNotNull(entry.getName() + " is not signed", entry.getCodeSigners());
+                signedEntries++;
+            }
+            assertEquals(3, signedEntries);
+        } finally {
+            jar.close();
+        }
+    }
+
+    private KeyStore loadKeystore(File keystore) throws Exception {
+        final KeyStore store = KeyStore.getInstance("JKS");
+        final FileInputStream in = new FileInputStream(keystore);
+        try {
+            store.load(in, "android".toCharArray());
+        } finally {
+            in.close();
+        }
+        return store;
+    }
+
+    private byte[] read(ZipFile zip, String name) throws Exception {
+        final InputStream in = zip.getInputStream(zip.getEntry(name));
+        try {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            int b;
+            while ((b = in.read()) != -1) {
+                out.write(b);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    private String sha1(byte[] content) throws Exception {
+        return DatatypeConverter.printBase64Binary(MessageDigest.getInstance("SHA-1").digest(content));
+    }
+
+    /**
+     * The signature is the last octet string of the block as long as the key's modulus
+     */
+    private byte[] encryptedDigest(byte[] signatureBlock, RSAPublicKey key) {
+        final int length = (key.getModulus().bitLength() + 7) / 8;
+        final byte[] header = length > 255
+                ? new byte[]{0x04, (byte) 0x82, (byte) (length >> 8), (byte) length}
+                : new byte[]{0x04, (byte) 0x81, (byte) length};
+        int start = -1;
+        for (int from = 0; (from = indexOf(signatureBlock, header, from)) >= 0; from++) {
+            start = from + header.length;
+        }
+        assertTrue(start >= 0 && start + length <= signatureBlock.length);
+        return Arrays.copyOfRange(signatureBlock, start, start + length);
+    }
+
+    private int indexOf(byte[] bytes, byte[] pattern) {
+        return indexOf(bytes, pattern, 0);
+    }
+
+    private int indexOf(byte[] bytes, byte[] pattern, int from) {
+        for (int i = from; i <= bytes.length - pattern.length; i++) {
+            if (Arrays.equals(pattern, Arrays.copyOfRange(bytes, i, i + pattern.length)))
+                return i;
+        }
+        return -1;
+    }
+
+    private File createApk(File apk) throws Exception {
+        final ZipOutputStream out = new ZipOutputStream(new FileOutputStream(apk));
+        try {
+            write(out, "AndroidManifest.xml", "manifest");
+            write(out, "classes.dex", "classes");
+            write(out, "res/a-very-long-resource-name-that-needs-to-be-wrapped-across-several-manifest-lines.xml", "resource");
+            write(out, "META-INF/OLD.RSA", "old signature");
+        } finally {
+            out.close();
+        }
+        return apk;
+    }
+
+    private void write(ZipOutputStream out, String name, String content) throws Exception {
+        out.putNextEntry(new ZipEntry(name));
+        out.write(content.getBytes("UTF-8"));
+        out.closeEntry();
+    }
+}
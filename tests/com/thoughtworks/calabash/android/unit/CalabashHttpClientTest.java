@@ -1,15 +1,25 @@
 package com.thoughtworks.calabash.android.unit;
 
 import com.github.tomakehurst.wiremock.junit.WireMockRule;
+import com.thoughtworks.calabash.android.ActionResult;
+import com.thoughtworks.calabash.android.CalabashException;
 import com.thoughtworks.calabash.android.CalabashHttpClient;
 import com.thoughtworks.calabash.android.CalabashWrapper;
 import org.junit.Before;
+import org.junit.BeforeClass;
 import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.ExpectedException;
 import org.mockito.Mock;
 
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
 import static com.github.tomakehurst.wiremock.client.WireMock.*;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.when;
 import static org.mockito.MockitoAnnotations.initMocks;
 
@@ -18,9 +28,17 @@ public class CalabashHttpClientTest {
     public static final int DEFAULT_PORT = 34776;
     @Rule
     public WireMockRule wireMockRule = new WireMockRule(DEFAULT_PORT);
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
     @Mock
     public CalabashWrapper calabashWrapper;
 
+    @BeforeClass
+    public static void disableKeepAlive() {
+        // the server is restarted for every test, a pooled connection to the previous one would never be answered
+        System.setProperty("http.keepAlive", "false");
+    }
+
     @Before
     public void setUp() throws Exception {
         initMocks(this);
@@ -28,7 +46,7 @@ public class CalabashHttpClientTest {
     }
 
     @Test
-    public void shouldFetchViewDump() {
+    public void shouldFetchViewDump() throws CalabashException {
         final String expectedBody = "{\"foo\":\"bar\"}";
         stubFor(get(urlEqualTo("/dump"))
                 .willReturn(aResponse()
@@ -44,19 +62,155 @@ public class CalabashHttpClientTest {
     }
 
     @Test
-    public void shouldFetchEmptyIfNotSuccess() {
-        final String expectedBody = "{}";
+    public void shouldFailViewDumpIfNotSuccess() throws CalabashException {
+        expectedException.expect(CalabashException.class);
+        expectedException.expectMessage("Could not fetch view dump");
         stubFor(get(urlEqualTo("/dump"))
                 .willReturn(aResponse()
                         .withStatus(500)
                         .withHeader("Content-Type", "application/json;charset=utf-8")
                 ));
 
+        new CalabashHttpClient(calabashWrapper).getViewDump();
+    }
+
+    @Test
+    public void shouldQueryElements() throws CalabashException {
+        stubFor(post(urlEqualTo("/map"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "application/json;charset=utf-8")
+                        .withBody("{\"outcome\":\"SUCCESS\",\"results\":[{\"id\":\"button\",\"rect\":{\"center_x\":185.5,\"center_y\":210.0}}]}")));
+
         final CalabashHttpClient calabashHttpClient = new CalabashHttpClient(calabashWrapper);
-        final String actualBody = calabashHttpClient.getViewDump();
+        final List<Object> results = calabashHttpClient.query("button");
 
-        assertEquals(expectedBody, actualBody);
+        assertEquals(1, results.size());
+        assertEquals("button", ((Map) results.get(0)).get("id"));
+        verify(postRequestedFor(urlEqualTo("/map")).withRequestBody(containing("\"query\":\"button\"")));
+    }
+
+    @Test
+    public void shouldFailQueryIfOutcomeIsNotSuccess() throws CalabashException {
+        expectedException.expect(CalabashException.class);
+        expectedException.expectMessage("Failed to execute 'button'. invalid query");
+        stubFor(post(urlEqualTo("/map"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "application/json;charset=utf-8")
+                        .withBody("{\"outcome\":\"FAILURE\",\"reason\":\"invalid query\"}")));
 
+        new CalabashHttpClient(calabashWrapper).query("button");
     }
 
+    @Test
+    public void shouldPerformAction() throws CalabashException {
+        stubFor(post(urlEqualTo("/"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "application/json;charset=utf-8")
+                        .withBody("{\"success\":true,\"message\":\"MyActivity\",\"bonusInformation\":[\"info\"]}")));
+
+        final ActionResult result = new CalabashHttpClient(calabashWrapper).performAction("get_activity_name");
+
+        assertTrue(result.isSuccess());
+        assertEquals("MyActivity", result.getMessage());
+        assertEquals("info", result.getBonusInformation().get(0));
+        verify(postRequestedFor(urlEqualTo("/")).withRequestBody(containing("\"command\":\"get_activity_name\"")));
+    }
+
+    @Test
+    public void shouldCheckElementExistence() throws CalabashException {
+        stubFor(post(urlEqualTo("/map"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "application/json;charset=utf-8")
+                        .withBody("{\"outcome\":\"SUCCESS\",\"results\":[]}")));
+
+        assertFalse(new CalabashHttpClient(calabashWrapper).elementExists("button"));
+    }
+
+    @Test
+    public void shouldPingRunningTestServer() {
+        stubFor(get(urlEqualTo("/ping"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withBody("pong")));
+
+        assertTrue(new CalabashHttpClient(calabashWrapper).ping());
+    }
+
+    @Test
+    public void shouldNotPingWhenTestServerFails() {
+        stubFor(get(urlEqualTo("/ping"))
+                .willReturn(aResponse()
+                        .withStatus(500)));
+
+        assertFalse(new CalabashHttpClient(calabashWrapper).ping());
+    }
+
+    @Test
+    public void shouldGetTestServerVersion() throws CalabashException {
+        stubFor(post(urlEqualTo("/"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "application/json;charset=utf-8")
+                        .withBody("{\"success\":true,\"message\":\"0.4.21\",\"bonusInformation\":[]}")));
+
+        assertEquals("0.4.21", new CalabashHttpClient(calabashWrapper).getServerVersion());
+        verify(postRequestedFor(urlEqualTo("/")).withRequestBody(containing("\"command\":\"version\"")));
+    }
+
+    @Test
+    public void shouldQueryAllInTheGivenOrder() throws CalabashException {
+        stubFor(post(urlEqualTo("/map"))
+                .withRequestBody(containing("\"query\":\"button\""))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "application/json;charset=utf-8")
+                        .withBody("{\"outcome\":\"SUCCESS\",\"results\":[{\"class\":\"android.widget.Button\"}]}")));
+        stubFor(post(urlEqualTo("/map"))
+                .withRequestBody(containing("\"query\":\"edittext\""))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "application/json;charset=utf-8")
+                        .withBody("{\"outcome\":\"SUCCESS\",\"results\":[]}")));
+
+        final List<List<Object>> results = new CalabashHttpClient(calabashWrapper).queryAll(Arrays.asList("button", "edittext"));
+
+        assertEquals(2, results.size());
+        assertEquals("android.widget.Button", ((Map) results.get(0).get(0)).get("class"));
+        assertTrue(results.get(1).isEmpty());
+        verify(2, postRequestedFor(urlEqualTo("/map")));
+    }
+
+    @Test
+    public void shouldFailRequestWhenTestServerDoesNotAnswerInTime() throws CalabashException {
+        expectedException.expect(CalabashException.class);
+        expectedException.expectMessage("Request to test server / failed");
+        stubFor(post(urlEqualTo("/"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withFixedDelay(2000)
+                        .withBody("{\"success\":true,\"message\":\"0.4.21\",\"bonusInformation\":[]}")));
+
+        final CalabashHttpClient calabashHttpClient = new CalabashHttpClient(calabashWrapper);
+        calabashHttpClient.setRequestTimeout(200);
+        calabashHttpClient.getServerVersion();
+    }
+
+    @Test
+    public void shouldStopWaitingForViewDumpAfterTimeout() throws CalabashException {
+        expectedException.expect(CalabashException.class);
+        expectedException.expectMessage("Could not fetch view dump");
+        stubFor(get(urlEqualTo("/dump"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withFixedDelay(2000)
+                        .withBody("{\"foo\":\"bar\"}")));
+
+        final CalabashHttpClient calabashHttpClient = new CalabashHttpClient(calabashWrapper);
+        calabashHttpClient.setRequestTimeout(200);
+        calabashHttpClient.getViewDump();
+    }
 }
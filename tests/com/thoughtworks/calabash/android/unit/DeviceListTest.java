@@ -1,8 +1,11 @@
 package com.thoughtworks.calabash.android.unit;
 
+import com.thoughtworks.calabash.android.Device;
 import com.thoughtworks.calabash.android.DeviceList;
 import org.junit.Test;
 
+import java.util.Arrays;
+
 import static org.junit.Assert.assertEquals;
 
 public class DeviceListTest {
@@ -32,4 +35,12 @@ public class DeviceListTest {
         assertEquals(0, deviceList.size());
 
     }
+
+    @Test
+    public void shouldCreateDeviceListFromDevices() {
+        DeviceList deviceList = new DeviceList(Arrays.asList(new Device("emulator-5554", "device")));
+
+        assertEquals(1, deviceList.size());
+        assertEquals("emulator-5554", deviceList.get(0).getSerial());
+    }
 }
@@ -0,0 +1,225 @@
+package com.thoughtworks.calabash.android.unit;
+
+import com.thoughtworks.calabash.android.AdbClient;
+import com.thoughtworks.calabash.android.CalabashException;
+import com.thoughtworks.calabash.android.Device;
+import com.thoughtworks.calabash.android.DeviceRegistry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class DeviceRegistryTest {
+    private static final String CLOSE = "close";
+    private ServerSocket server;
+    private final BlockingQueue<String> updates = new LinkedBlockingQueue<String>();
+    private final List<String> requests = Collections.synchronizedList(new ArrayList<String>());
+    private volatile boolean detailsSupported = true;
+    private DeviceRegistry registry;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new ServerSocket(0);
+        final Thread thread = new Thread(new Runnable() {
+            public void run() {
+                serve();
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (registry != null)
+            registry.stop();
+        server.close();
+    }
+
+    @Test
+    public void shouldListDevicesWithDetails() throws Exception {
+        updates.add("emulator-5554          device product:sdk_x86 model:Nexus_5 device:generic_x86\n0123456789 offline\n");
+        registry = startRegistry();
+
+        final List<Device> devices = registry.getDevices();
+
+        assertEquals(2, devices.size());
+        assertEquals("emulator-5554", devices.get(0).getSerial());
+        assertEquals("device", devices.get(0).getState());
+        assertEquals("Nexus_5", devices.get(0).getProperty("model"));
+        assertEquals("offline", devices.get(1).getState());
+        assertTrue(registry.isTracking());
+        assertTrue(registry.getStateChangedAt("emulator-5554") > 0);
+    }
+
+    @Test
+    public void shouldTrackWithoutDetailsWhenServerDoesNotSupportThem() throws Exception {
+        detailsSupported = false;
+        updates.add("emulator-5554\tdevice\n");
+        registry = startRegistry();
+
+        assertEquals("device", registry.getDevice("emulator-5554").getState());
+        assertEquals(Arrays.asList("host:track-devices-l", "host:track-devices"), requests);
+    }
+
+    @Test
+    public void shouldNotifyListeners() throws Exception {
+        final BlockingQueue<String> events = new LinkedBlockingQueue<String>();
+        updates.add("");
+        registry = startRegistry();
+        registry.addListener(new DeviceRegistry.Listener() {
+            public void attached(Device device) {
+                events.add("attached " + device.getSerial() + " " + device.getState());
+            }
+
+            public void stateChanged(Device device, String previousState) {
+                events.add(device.getSerial() + " " + previousState + " -> " + device.getState());
+            }
+
+            public void detached(Device device) {
+                events.add("detached " + device.getSerial());
+            }
+        });
+        registry.getDevices();
+
+        updates.add("emulator-5554\toffline\n");
+        updates.add("emulator-5554\tdevice\n");
+        updates.add("");
+
+        assertEquals("attached emulator-5554 offline", events.poll(2, TimeUnit.SECONDS));
+        assertEquals("emulator-5554 offline -> device", events.poll(2, TimeUnit.SECONDS));
+        assertEquals("detached emulator-5554", events.poll(2, TimeUnit.SECONDS));
+        assertEquals(-1, registry.getStateChangedAt("emulator-5554"));
+    }
+
+    @Test
+    public void shouldWaitUntilDeviceReachesState() throws Exception {
+        updates.add("emulator-5554\toffline\n");
+        registry = startRegistry();
+        registry.getDevices();
+
+        pushLater("emulator-5554\tdevice\n");
+        final Device device = registry.awaitState("emulator-5554", "device", 5000);
+
+        assertEquals("device", device.getState());
+    }
+
+    @Test(expected = CalabashException.class)
+    public void shouldTimeOutWaitingForState() throws Exception {
+        updates.add("emulator-5554\toffline\n");
+        registry = startRegistry();
+
+        registry.awaitState("emulator-5554", "device", 200);
+    }
+
+    @Test
+    public void shouldWaitForNewDevice() throws Exception {
+        updates.add("emulator-5554\tdevice\n");
+        registry = startRegistry();
+        registry.getDevices();
+
+        pushLater("emulator-5554\tdevice\nemulator-5556\toffline\n");
+        final Device device = registry.awaitNewDevice(Arrays.asList("emulator-5554"), 5000);
+
+        assertEquals("emulator-5556", device.getSerial());
+    }
+
+    @Test
+    public void shouldResyncAfterServerClosesConnection() throws Exception {
+        updates.add("emulator-5554\tdevice\n");
+        registry = startRegistry();
+        registry.getDevices();
+
+        updates.add(CLOSE);
+        updates.add("emulator-5556\tdevice\n");
+
+        assertEquals("emulator-5556", registry.awaitState("emulator-5556", "device", 5000).getSerial());
+        assertNull(registry.getDevice("emulator-5554"));
+    }
+
+    @Test(expected = CalabashException.class)
+    public void shouldFailWhenServerIsNotRunning() throws Exception {
+        server.close();
+        registry = DeviceRegistry.forServer(new AdbClient("127.0.0.1", server.getLocalPort()));
+
+        registry.getDevices();
+    }
+
+    private DeviceRegistry startRegistry() {
+        return DeviceRegistry.forServer(new AdbClient("127.0.0.1", server.getLocalPort()));
+    }
+
+    private void pushLater(final String update) {
+        final Thread thread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException ignored) {
+                }
+                updates.add(update);
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void serve() {
+        while (!server.isClosed()) {
+            try {
+                final Socket socket = server.accept();
+                try {
+                    handle(socket);
+                } finally {
+                    socket.close();
+                }
+            } catch (Exception ignored) {
+            }
+        }
+    }
+
+    private void handle(Socket socket) throws IOException, InterruptedException {
+        final DataInputStream in = new DataInputStream(socket.getInputStream());
+        final OutputStream out = socket.getOutputStream();
+        final byte[] length = new byte[4];
+        in.readFully(length);
+        final byte[] payload = new byte[Integer.parseInt(new String(length, "US-ASCII"), 16)];
+        in.readFully(payload);
+        final String request = new String(payload, "UTF-8");
+        requests.add(request);
+
+        if (request.equals("host:track-devices-l") && !detailsSupported) {
+            write(out, "FAIL", "unknown host service");
+            return;
+        }
+        out.write("OKAY".getBytes("US-ASCII"));
+        while (!server.isClosed()) {
+            final String update = updates.poll(100, TimeUnit.MILLISECONDS);
+            if (CLOSE.equals(update))
+                return;
+            if (update != null)
+                write(out, "", update);
+        }
+    }
+
+    private void write(OutputStream out, String status, String message) throws IOException {
+        final byte[] bytes = message.getBytes("UTF-8");
+        out.write(status.getBytes("US-ASCII"));
+        out.write(String.format("%04x", bytes.length).getBytes("US-ASCII"));
+        out.write(bytes);
+        out.flush();
+    }
+}
@@ -0,0 +1,248 @@
+package com.thoughtworks.calabash.android.unit;
+
+import com.thoughtworks.calabash.android.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.*;
+
+public class DriverDaemonTest {
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+    private AndroidRunner runner;
+    private AndroidApplication application;
+    private CalabashWrapper wrapper;
+    private DriverDaemon.RunnerFactory factory;
+    private DriverDaemon daemon;
+    private File tokenFile;
+
+    @Before
+    public void setUp() throws Exception {
+        runner = mock(AndroidRunner.class);
+        application = mock(AndroidApplication.class);
+        wrapper = mock(CalabashWrapper.class);
+        factory = mock(DriverDaemon.RunnerFactory.class);
+        when(factory.create(anyString(), any(AndroidConfiguration.class))).thenReturn(runner);
+        when(runner.start()).thenReturn(application);
+        tokenFile = new File(temporaryFolder.getRoot(), "daemon.token");
+        daemon = new DriverDaemon(0, tokenFile, factory);
+        daemon.start();
+    }
+
+    @After
+    public void tearDown() {
+        daemon.stop();
+    }
+
+    @Test
+    public void shouldReuseSessionAcrossClients() throws Exception {
+        final RemoteAndroidApplication first = connect("app.apk", configuration("emulator-5554"));
+        first.close();
+        final RemoteAndroidApplication second = connect("app.apk", configuration("emulator-5554"));
+        second.close();
+
+        assertEquals(first.getSession(), second.getSession());
+        assertEquals(1, daemon.getSessionCount());
+        verify(factory, times(1)).create(anyString(), any(AndroidConfiguration.class));
+        verify(runner, times(1)).start();
+    }
+
+    @Test
+    public void shouldKeepSeparateSessionsPerDevice() throws Exception {
+        connect("app.apk", configuration("emulator-5554")).close();
+        connect("app.apk", configuration("emulator-5556")).close();
+
+        assertEquals(2, daemon.getSessionCount());
+    }
+
+    @Test
+    public void shouldForwardQueriesAndActions() throws Exception {
+        final HashMap<Object, Object> button = new HashMap<Object, Object>();
+        button.put("id", "login");
+        button.put("enabled", true);
+        final UIElements elements = new UIElements(Arrays.asList(button), "button", wrapper);
+        when(application.query("button")).thenReturn(elements);
+        final RemoteAndroidApplication remote = connect("app.apk", configuration("emulator-5554"));
+
+        final List<Map<String, Object>> result = remote.query("button");
+        remote.touch("button");
+        remote.goBack();
+        remote.close();
+
+        assertEquals(1, result.size());
+        assertEquals("login", result.get(0).get("id"));
+        assertEquals(true, result.get(0).get("enabled"));
+        verify(wrapper).touch("button index:0");
+        verify(application).goBack();
+    }
+
+    @Test
+    public void shouldReportFailuresAndTimeouts() throws Exception {
+        doThrow(new OperationTimedoutException("timed out")).when(application).waitForActivity("MainActivity", 1);
+        doThrow(new CalabashException("no menu")).when(application).selectMenuItem("missing");
+        final RemoteAndroidApplication remote = connect("app.apk", configuration("emulator-5554"));
+
+        try {
+            remote.waitForActivity("MainActivity", 1);
+            fail("should time out");
+        } catch (OperationTimedoutException e) {
+            assertEquals("timed out", e.getMessage());
+        }
+        try {
+            remote.selectMenuItem("missing");
+            fail("should fail");
+        } catch (CalabashException e) {
+            assertEquals("no menu", e.getMessage());
+        }
+        remote.close();
+    }
+
+    @Test
+    public void shouldDisposeRunnerWhenSessionIsDisposed() throws Exception {
+        connect("app.apk", configuration("emulator-5554")).dispose();
+
+        assertEquals(0, daemon.getSessionCount());
+        verify(runner).dispose();
+    }
+
+    @Test
+    public void shouldRestartSessionWhenApkChanges() throws Exception {
+        final File apk = temporaryFolder.newFile("app.apk");
+        connect(apk.getPath(), configuration("emulator-5554")).close();
+        connect(apk.getPath(), configuration("emulator-5554")).close();
+        final FileOutputStream out = new FileOutputStream(apk);
+        out.write("rebuilt".getBytes("UTF-8"));
+        out.close();
+        apk.setLastModified(apk.lastModified() + 2000);
+        connect(apk.getPath(), configuration("emulator-5554")).close();
+
+        assertEquals(1, daemon.getSessionCount());
+        verify(factory, times(2)).create(anyString(), any(AndroidConfiguration.class));
+        verify(runner, times(1)).dispose();
+    }
+
+    @Test
+    public void shouldRestartSessionWhenConfigurationChanges() throws Exception {
+        connect("app.apk", configuration("emulator-5554")).close();
+        final AndroidConfiguration reinstall = configuration("emulator-5554");
+        reinstall.setShouldReinstallApp(true);
+        connect("app.apk", reinstall).close();
+
+        assertEquals(1, daemon.getSessionCount());
+        verify(factory, times(2)).create(anyString(), any(AndroidConfiguration.class));
+        verify(runner, times(1)).dispose();
+    }
+
+    @Test
+    public void shouldNotRestartSessionOtherClientsUse() throws Exception {
+        final RemoteAndroidApplication first = connect("app.apk", configuration("emulator-5554"));
+        final RemoteAndroidApplication second = connect("app.apk", configuration("emulator-5554"));
+        final AndroidConfiguration reinstall = configuration("emulator-5554");
+        reinstall.setShouldReinstallApp(true);
+
+        try {
+            connect("app.apk", reinstall);
+            fail("should not restart a session other clients use");
+        } catch (CalabashException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("used by 2 other clients"));
+        }
+        first.goBack();
+        second.dispose();
+        first.dispose();
+
+        verify(factory, times(1)).create(anyString(), any(AndroidConfiguration.class));
+        verify(application).goBack();
+        verify(runner, times(1)).dispose();
+        assertEquals(0, daemon.getSessionCount());
+    }
+
+    @Test
+    public void shouldKeepSessionWhileOtherClientsUseIt() throws Exception {
+        final RemoteAndroidApplication first = connect("app.apk", configuration("emulator-5554"));
+        final RemoteAndroidApplication second = connect("app.apk", configuration("emulator-5554"));
+
+        first.dispose();
+        second.goBack();
+
+        assertEquals(1, daemon.getSessionCount());
+        verify(runner, never()).dispose();
+        verify(application).goBack();
+
+        second.dispose();
+
+        assertEquals(0, daemon.getSessionCount());
+        verify(runner).dispose();
+    }
+
+    @Test
+    public void shouldRejectClientsWithoutTheToken() throws Exception {
+        final File wrongToken = temporaryFolder.newFile("wrong.token");
+        final FileOutputStream out = new FileOutputStream(wrongToken);
+        out.write("guessed".getBytes("UTF-8"));
+        out.close();
+
+        try {
+            RemoteAndroidApplication.connect(daemon.getPort(), wrongToken, "app.apk", configuration("emulator-5554"));
+            fail("should reject the token");
+        } catch (CalabashException e) {
+            assertEquals("Invalid driver daemon token", e.getMessage());
+        }
+        assertEquals(0, daemon.getSessionCount());
+        verify(factory, never()).create(anyString(), any(AndroidConfiguration.class));
+    }
+
+    @Test
+    public void shouldNotServeSessionsOpenedByOtherConnections() throws Exception {
+        final RemoteAndroidApplication remote = connect("app.apk", configuration("emulator-5554"));
+        final Socket socket = new Socket(InetAddress.getByName("127.0.0.1"), daemon.getPort());
+        try {
+            final Writer writer = new OutputStreamWriter(socket.getOutputStream(), "UTF-8");
+            writer.write("{\"command\":\"execute\",\"session\":\"" + remote.getSession().replace("\\", "\\\\") + "\",\"args\":[\"performAction('kill')\"]}\n");
+            writer.flush();
+            final String response = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8")).readLine();
+
+            assertTrue(response, response.contains("on this connection. Open one first"));
+            verify(application, never()).execute(anyString());
+        } finally {
+            socket.close();
+            remote.close();
+        }
+    }
+
+    @Test
+    public void shouldWriteTokenOnlyTheUserCanRead() throws Exception {
+        assertTrue(tokenFile.length() > 0);
+        assertEquals(EnumSet.of(PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE), Files.getPosixFilePermissions(tokenFile.toPath()));
+
+        daemon.stop();
+
+        assertFalse(tokenFile.exists());
+    }
+
+    private RemoteAndroidApplication connect(String apk, AndroidConfiguration configuration) throws CalabashException {
+        return RemoteAndroidApplication.connect(daemon.getPort(), tokenFile, apk, configuration);
+    }
+
+    private AndroidConfiguration configuration(String serial) {
+        final AndroidConfiguration configuration = new AndroidConfiguration();
+        configuration.setSerial(serial);
+        return configuration;
+    }
+}
@@ -0,0 +1,226 @@
+package com.thoughtworks.calabash.android.unit;
+
+import com.thoughtworks.calabash.android.CalabashException;
+import com.thoughtworks.calabash.android.EmulatorConsole;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class EmulatorConsoleTest {
+    private final List<FakeConsole> consoles = new ArrayList<FakeConsole>();
+
+    @After
+    public void tearDown() throws Exception {
+        for (FakeConsole console : consoles) {
+            EmulatorConsole.evict(console.serial());
+            console.server.close();
+        }
+    }
+
+    @Test
+    public void shouldFindEmulatorRunningAvd() throws Exception {
+        final FakeConsole nexus = startConsole("Nexus_5", false, false);
+        final FakeConsole pixel = startConsole("Pixel_2", false, false);
+
+        final String serial = EmulatorConsole.findSerialOfAvd("Pixel_2", Arrays.asList(nexus.serial(), "0123456789", pixel.serial()));
+
+        assertEquals(pixel.serial(), serial);
+    }
+
+    @Test
+    public void shouldNotWaitForWedgedConsole() throws Exception {
+        final FakeConsole wedged = startConsole("Wedged", false, true);
+        final FakeConsole pixel = startConsole("Pixel_2", false, false);
+
+        final long startTime = System.currentTimeMillis();
+        final String serial = EmulatorConsole.findSerialOfAvd("Pixel_2", Arrays.asList(wedged.serial(), pixel.serial()));
+
+        assertEquals(pixel.serial(), serial);
+        assertTrue(System.currentTimeMillis() - startTime < 1000);
+    }
+
+    @Test
+    public void shouldReturnNullWhenNoEmulatorRunsAvd() throws Exception {
+        final FakeConsole wedged = startConsole("Wedged", false, true);
+        final FakeConsole nexus = startConsole("Nexus_5", false, false);
+
+        assertNull(EmulatorConsole.findSerialOfAvd("Pixel_2", Arrays.asList(wedged.serial(), nexus.serial())));
+    }
+
+    @Test
+    public void shouldEvictConsoleWhichFailedToAnswer() throws Exception {
+        final FakeConsole console = startConsole("Pixel_2", false, false);
+        console.avdNameFails = true;
+
+        assertNull(EmulatorConsole.findSerialOfAvd("Pixel_2", Arrays.asList(console.serial())));
+        console.avdNameFails = false;
+
+        assertEquals(console.serial(), EmulatorConsole.findSerialOfAvd("Pixel_2", Arrays.asList(console.serial())));
+        assertEquals(2, console.connections.get());
+    }
+
+    @Test
+    public void shouldAuthenticateWithTokenFromHomeDirectory() throws Exception {
+        final File home = File.createTempFile("home", "");
+        home.delete();
+        home.mkdir();
+        final FileWriter writer = new FileWriter(new File(home, EmulatorConsole.AUTH_TOKEN_FILE));
+        writer.write("s3cret\n");
+        writer.close();
+        final String userHome = System.getProperty("user.home");
+        System.setProperty("user.home", home.getAbsolutePath());
+        try {
+            final FakeConsole console = startConsole("Nexus_5", true, false);
+
+            assertEquals("Nexus_5", EmulatorConsole.forSerial(console.serial()).getAvdName());
+            assertEquals(Arrays.asList("auth s3cret", "avd name"), console.commands);
+        } finally {
+            System.setProperty("user.home", userHome);
+        }
+    }
+
+    @Test
+    public void shouldReuseConnectionAndCacheAvdName() throws Exception {
+        final FakeConsole console = startConsole("Nexus_5", false, false);
+        final EmulatorConsole emulatorConsole = EmulatorConsole.forSerial(console.serial());
+
+        assertEquals("Nexus_5", emulatorConsole.getAvdName());
+        assertEquals("Nexus_5", EmulatorConsole.forSerial(console.serial()).getAvdName());
+        assertEquals("", emulatorConsole.command("ping"));
+
+        assertEquals(1, console.connections.get());
+        assertEquals(Arrays.asList("avd name", "ping"), console.commands);
+    }
+
+    @Test
+    public void shouldForgetAvdNameWhenEvicted() throws Exception {
+        final FakeConsole console = startConsole("Nexus_5", false, false);
+        EmulatorConsole.forSerial(console.serial()).getAvdName();
+
+        EmulatorConsole.evict(console.serial());
+        EmulatorConsole.forSerial(console.serial()).getAvdName();
+
+        assertEquals(2, console.connections.get());
+        assertEquals(Arrays.asList("avd name", "avd name"), console.commands);
+    }
+
+    @Test
+    public void shouldReportFailedCommand() throws Exception {
+        final FakeConsole console = startConsole("Nexus_5", false, false);
+
+        try {
+            EmulatorConsole.forSerial(console.serial()).command("unknown");
+            fail("should fail for unknown command");
+        } catch (CalabashException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("unknown command"));
+        }
+    }
+
+    @Test(expected = CalabashException.class)
+    public void shouldRejectSerialOfPhysicalDevice() throws Exception {
+        EmulatorConsole.forSerial("0123456789");
+    }
+
+    private FakeConsole startConsole(String avdName, boolean authRequired, boolean wedged) throws IOException {
+        final FakeConsole console = new FakeConsole(avdName, authRequired, wedged);
+        consoles.add(console);
+        final Thread thread = new Thread(console);
+        thread.setDaemon(true);
+        thread.start();
+        return console;
+    }
+
+    private static class FakeConsole implements Runnable {
+        private final ServerSocket server = new ServerSocket(0);
+        private final String avdName;
+        private final boolean authRequired;
+        private final boolean wedged;
+        private final AtomicInteger connections = new AtomicInteger();
+        private final List<String> commands = Collections.synchronizedList(new ArrayList<String>());
+        private volatile boolean avdNameFails;
+
+        private FakeConsole(String avdName, boolean authRequired, boolean wedged) throws IOException {
+            this.avdName = avdName;
+            this.authRequired = authRequired;
+            this.wedged = wedged;
+        }
+
+        private String serial() {
+            return "emulator-" + server.getLocalPort();
+        }
+
+        public void run() {
+            while (!server.isClosed()) {
+                try {
+                    final Socket socket = server.accept();
+                    connections.incrementAndGet();
+                    final Thread thread = new Thread(new Runnable() {
+                        public void run() {
+                            try {
+                                handle(socket);
+                            } catch (Exception ignored) {
+                            } finally {
+                                try {
+                                    socket.close();
+                                } catch (IOException ignored) {
+                                }
+                            }
+                        }
+                    });
+                    thread.setDaemon(true);
+                    thread.start();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+
+        private void handle(Socket socket) throws Exception {
+            if (wedged) {
+                Thread.sleep(10000);
+                return;
+            }
+            final BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+            final OutputStream out = socket.getOutputStream();
+            if (authRequired) {
+                write(out, "Android Console: Authentication required\r\nAndroid Console: type 'auth <auth_token>' to authenticate\r\nOK\r\n");
+                final String auth = in.readLine();
+                commands.add(auth);
+                write(out, "Android Console: type 'help' for a list of commands\r\nOK\r\n");
+            } else {
+                write(out, "Android Console: type 'help' for a list of commands\r\nOK\r\n");
+            }
+            String command;
+            while ((command = in.readLine()) != null) {
+                commands.add(command);
+                if (command.equals("avd name") && avdNameFails)
+                    write(out, "KO: avd name unavailable\r\n");
+                else if (command.equals("avd name"))
+                    write(out, avdName + "\r\nOK\r\n");
+                else if (command.equals("ping"))
+                    write(out, "OK\r\n");
+                else
+                    write(out, "KO: unknown command, try 'help'\r\n");
+            }
+        }
+
+        private void write(OutputStream out, String text) throws IOException {
+            out.write(text.getBytes("UTF-8"));
+            out.flush();
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package com.thoughtworks.calabash.android.unit;
+
+import com.thoughtworks.calabash.android.GemArchive;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.assertEquals;
+
+public class GemArchiveTest {
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void shouldResolveHomeAndLoadPathsInsideTheArchive() throws Exception {
+        final File archiveFile = new File(temporaryFolder.getRoot(), "calabash-android-gems-1.0.jar");
+        final ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(archiveFile));
+        zip.putNextEntry(new ZipEntry("jruby.home/bin/jruby"));
+        zip.putNextEntry(new ZipEntry("gems/calabash-android-0.4.21/lib/calabash-android.rb"));
+        zip.putNextEntry(new ZipEntry("gems/json-1.8.0/lib/json.rb"));
+        zip.close();
+        final GemArchive archive = new GemArchive(archiveFile);
+        final String prefix = "file:" + archiveFile.getAbsolutePath() + "!/";
+
+        assertEquals(prefix + "jruby.home", archive.getHomeDirectory());
+        assertEquals(Arrays.asList("calabash-android-0.4.21", "json-1.8.0"), archive.getGemNames());
+        assertEquals(Arrays.asList(prefix + "gems/calabash-android-0.4.21/lib", prefix + "gems/json-1.8.0/lib"), archive.getLoadPaths());
+    }
+}
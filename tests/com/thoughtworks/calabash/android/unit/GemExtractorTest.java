@@ -0,0 +1,126 @@
+package com.thoughtworks.calabash.android.unit;
+
+import com.thoughtworks.calabash.android.GemExtractor;
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class GemExtractorTest {
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+    private final AtomicInteger opened = new AtomicInteger();
+
+    @Test
+    public void shouldExtractAllEntriesAndWriteManifest() throws Exception {
+        final File gemsDir = new File(temporaryFolder.getRoot(), "calabash-android-gems-1.0");
+
+        new GemExtractor(gemsDir).extract(zip());
+
+        assertEquals("require 'calabash-android/operations'", FileUtils.readFileToString(new File(gemsDir, "gems/calabash-android-0.4.21/lib/calabash-android.rb")));
+        assertEquals("#!/bin/sh", FileUtils.readFileToString(new File(gemsDir, "jruby.home/bin/jruby")));
+        assertTrue(new File(gemsDir, GemExtractor.MANIFEST).isFile());
+        assertTrue(new GemExtractor(gemsDir).isValid());
+        assertEquals(1, temporaryFolder.getRoot().listFiles(new FileFilter() {
+            public boolean accept(File file) {
+                return file.isDirectory();
+            }
+        }).length);
+    }
+
+    @Test
+    public void shouldNotExtractAgainWhenExtractionIsValid() throws Exception {
+        final File gemsDir = new File(temporaryFolder.getRoot(), "calabash-android-gems-1.0");
+
+        new GemExtractor(gemsDir).extract(zip());
+        new GemExtractor(gemsDir).extract(zip());
+
+        assertEquals(1, opened.get());
+    }
+
+    @Test
+    public void shouldExtractAgainWhenAFileIsDamaged() throws Exception {
+        final File gemsDir = new File(temporaryFolder.getRoot(), "calabash-android-gems-1.0");
+        new GemExtractor(gemsDir).extract(zip());
+        final File gemFile = new File(gemsDir, "gems/calabash-android-0.4.21/lib/calabash-android.rb");
+        FileUtils.writeStringToFile(gemFile, "trunc");
+
+        assertFalse(new GemExtractor(gemsDir).isValid());
+        new GemExtractor(gemsDir).extract(zip());
+
+        assertEquals(2, opened.get());
+        assertEquals("require 'calabash-android/operations'", FileUtils.readFileToString(gemFile));
+    }
+
+    @Test
+    public void shouldOnlyCheckSizesWhenExtractionLooksComplete() throws Exception {
+        final File gemsDir = new File(temporaryFolder.getRoot(), "calabash-android-gems-1.0");
+        new GemExtractor(gemsDir).extract(zip());
+        final File gemFile = new File(gemsDir, "gems/calabash-android-0.4.21/lib/calabash-android.rb");
+        FileUtils.writeStringToFile(gemFile, "require 'calabash-android/operationz'");
+
+        assertFalse(new GemExtractor(gemsDir).isValid());
+        new GemExtractor(gemsDir).extract(zip());
+
+        assertEquals(1, opened.get());
+        assertEquals("require 'calabash-android/operationz'", FileUtils.readFileToString(gemFile));
+    }
+
+    @Test
+    public void shouldVerifyContentBeforeExtractingAgain() throws Exception {
+        final File gemsDir = new File(temporaryFolder.getRoot(), "calabash-android-gems-1.0");
+        new GemExtractor(gemsDir).extract(zip());
+        final File gemFile = new File(gemsDir, "gems/calabash-android-0.4.21/lib/calabash-android.rb");
+        FileUtils.writeStringToFile(gemFile, "require 'calabash-android/operationz'");
+        new File(gemsDir, "jruby.home/bin/jruby").delete();
+
+        new GemExtractor(gemsDir).extract(zip());
+
+        assertEquals(2, opened.get());
+        assertEquals("require 'calabash-android/operations'", FileUtils.readFileToString(gemFile));
+    }
+
+    @Test
+    public void shouldExtractAgainWhenManifestHasNoChecksums() throws Exception {
+        final File gemsDir = new File(temporaryFolder.getRoot(), "calabash-android-gems-1.0");
+        new GemExtractor(gemsDir).extract(zip());
+        final String sizeAndName = new File(gemsDir, "gems/calabash-android-0.4.21/lib/calabash-android.rb").length() + "\tgems/calabash-android-0.4.21/lib/calabash-android.rb";
+        final byte[] digest = MessageDigest.getInstance("SHA-1").digest((sizeAndName + "\n").getBytes("UTF-8"));
+        FileUtils.writeStringToFile(new File(gemsDir, GemExtractor.MANIFEST), String.format("digest %040x\n%s\n", new BigInteger(1, digest), sizeAndName));
+
+        assertFalse(new GemExtractor(gemsDir).isValid());
+    }
+
+    private Callable<InputStream> zip() throws Exception {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final ZipOutputStream zip = new ZipOutputStream(bytes);
+        zip.putNextEntry(new ZipEntry("gems/"));
+        zip.putNextEntry(new ZipEntry("gems/calabash-android-0.4.21/lib/calabash-android.rb"));
+        zip.write("require 'calabash-android/operations'".getBytes("UTF-8"));
+        zip.putNextEntry(new ZipEntry("jruby.home/bin/jruby"));
+        zip.write("#!/bin/sh".getBytes("UTF-8"));
+        zip.close();
+        return new Callable<InputStream>() {
+            public InputStream call() {
+                opened.incrementAndGet();
+                return new ByteArrayInputStream(bytes.toByteArray());
+            }
+        };
+    }
+}
@@ -0,0 +1,72 @@
+package com.thoughtworks.calabash.android.unit;
+
+import com.thoughtworks.calabash.android.ProcessRunner;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+public class ProcessRunnerTest {
+
+    @Before
+    public void setUp() {
+        assumeTrue(!System.getProperty("os.name").toLowerCase().contains("win"));
+    }
+
+    @Test(timeout = 30000)
+    public void shouldNotBlockOnOutputLargerThanThePipeBuffer() throws Exception {
+        final ProcessRunner.Result result = new ProcessRunner("sh", "-c", "i=0; while [ $i -lt 20000 ]; do echo line-$i; echo err-$i >&2; i=$((i+1)); done").run();
+
+        assertTrue(result.isSuccess());
+        assertFalse(result.isTruncated());
+        assertTrue(result.getOutput().startsWith("line-0\nline-1\n"));
+        assertTrue(result.getOutput().endsWith("line-19999\n"));
+        assertTrue(result.getError().endsWith("err-19999\n"));
+        assertEquals(result.getOutput().length() + result.getError().length(), result.getOutputSize());
+    }
+
+    @Test
+    public void shouldKeepOnlyTheBeginningOfLongOutputButPassEveryLineToTheListener() throws Exception {
+        final List<String> lines = Collections.synchronizedList(new ArrayList<String>());
+        final ProcessRunner runner = new ProcessRunner("sh", "-c", "for i in 1 2 3 4 5; do echo line-$i; done");
+        runner.setMaxBufferedChars(14);
+        runner.setLineListener(new ProcessRunner.LineListener() {
+            public void onLine(String line, boolean fromErrorStream) {
+                lines.add(line);
+            }
+        });
+
+        final ProcessRunner.Result result = runner.run();
+
+        assertEquals("line-1\nline-2\n", result.getOutput());
+        assertTrue(result.isTruncated());
+        assertEquals(35, result.getOutputSize());
+        assertEquals(5, lines.size());
+    }
+
+    @Test
+    public void shouldReportExitCodeAndErrorStream() throws Exception {
+        final ProcessRunner.Result result = new ProcessRunner("sh", "-c", "echo failed >&2; exit 3").run();
+
+        assertFalse(result.isSuccess());
+        assertEquals(3, result.getExitCode());
+        assertEquals("failed\n", result.getError());
+    }
+
+    @Test
+    public void shouldKillCommandOnTimeout() throws Exception {
+        final ProcessRunner runner = new ProcessRunner("sleep", "10");
+        runner.setTimeout(200);
+
+        final ProcessRunner.Result result = runner.run();
+
+        assertTrue(result.isTimedOut());
+        assertFalse(result.isSuccess());
+        assertTrue(result.getDurationInMs() < 5000);
+    }
+}
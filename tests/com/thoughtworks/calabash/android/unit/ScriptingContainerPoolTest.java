@@ -0,0 +1,182 @@
+package com.thoughtworks.calabash.android.unit;
+
+import com.thoughtworks.calabash.android.ScriptingContainerPool;
+import org.apache.commons.io.FileUtils;
+import org.jruby.embed.ScriptingContainer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ScriptingContainerPoolTest {
+    private static final String WARM_UP_THREAD = "calabash-runtime-warmup";
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+    private ScriptingContainerPool pool;
+
+    @Before
+    public void setUp() throws Exception {
+        pool = ScriptingContainerPool.forGems(createGemsDir("gems-dir"));
+    }
+
+    @After
+    public void tearDown() {
+        pool.shutdown();
+        System.clearProperty("jruby.jit.codeCache");
+    }
+
+    @Test
+    public void shouldReuseReleasedContainer() throws Exception {
+        final ScriptingContainer container = pool.acquire();
+
+        pool.release(container);
+
+        assertEquals(1, pool.getIdleCount());
+        assertSame(container, pool.acquire());
+        assertEquals(0, pool.getIdleCount());
+    }
+
+    @Test
+    public void shouldHandOutContainerWithCalabashLoaded() throws Exception {
+        final ScriptingContainer container = pool.acquire();
+
+        assertEquals(true, container.runScriptlet("$fakeCalabashLoaded"));
+    }
+
+    @Test
+    public void shouldResetContainerOnRelease() throws Exception {
+        final ScriptingContainer container = pool.acquire();
+        container.put("cajQueries", "button");
+        container.runScriptlet("@default_device = 'emulator-5554'\n$cajJarsigner = 'signer'\nENV['CAJ_POOL_TEST'] = 'set'");
+
+        pool.release(container);
+        final ScriptingContainer reused = pool.acquire();
+
+        assertSame(container, reused);
+        assertNull(reused.runScriptlet("@default_device"));
+        assertNull(reused.runScriptlet("$cajJarsigner"));
+        assertNull(reused.runScriptlet("ENV['CAJ_POOL_TEST']"));
+        assertTrue(reused.getVarMap().isEmpty());
+    }
+
+    @Test
+    public void shouldTerminateReleasedContainersBeyondMaxIdle() throws Exception {
+        pool.setMaxIdle(1);
+        final ScriptingContainer first = pool.acquire();
+        final ScriptingContainer second = pool.acquire();
+
+        pool.release(first);
+        pool.release(second);
+
+        assertEquals(1, pool.getIdleCount());
+        assertSame(first, pool.acquire());
+        assertNotSame(second, pool.acquire());
+    }
+
+    @Test
+    public void shouldShareOnePoolPerGemsDirectory() throws Exception {
+        final File gemsDir = temporaryFolder.newFolder("shared");
+
+        assertSame(ScriptingContainerPool.forGems(gemsDir), ScriptingContainerPool.forGems(new File(gemsDir.getAbsolutePath())));
+        assertNotSame(ScriptingContainerPool.forGems(gemsDir), ScriptingContainerPool.forGems(temporaryFolder.newFolder("other")));
+    }
+
+    @Test
+    public void shouldHandOverContainerWarmedInBackground() throws Exception {
+        pool.prewarm();
+        final ScriptingContainer container = pool.acquire();
+
+        assertEquals(WARM_UP_THREAD, container.runScriptlet("$fakeCalabashLoadedOn"));
+        assertEquals(0, pool.getIdleCount());
+    }
+
+    @Test
+    public void shouldWarmSpareForNextAcquire() throws Exception {
+        pool.setKeepWarmSpare(true);
+        final ScriptingContainer first = pool.acquire();
+        final ScriptingContainer second = pool.acquire();
+
+        assertEquals(Thread.currentThread().getName(), first.runScriptlet("$fakeCalabashLoadedOn"));
+        assertEquals(WARM_UP_THREAD, second.runScriptlet("$fakeCalabashLoadedOn"));
+    }
+
+    @Test
+    public void shouldNotWarmSpareByDefault() throws Exception {
+        pool.acquire();
+
+        final ScriptingContainer second = pool.acquire();
+
+        assertEquals(Thread.currentThread().getName(), second.runScriptlet("$fakeCalabashLoadedOn"));
+    }
+
+    @Test
+    public void shouldPreferIdleContainerOverWarmingOne() throws Exception {
+        final ScriptingContainer container = pool.acquire();
+        pool.release(container);
+
+        pool.prewarm();
+
+        assertSame(container, pool.acquire());
+    }
+
+    @Test
+    public void shouldSetCodeCacheBeforeJRubyStarts() throws Exception {
+        final ClassLoader loader = newJRubyClassLoader();
+        final Object isolatedPool = loader.loadClass(ScriptingContainerPool.class.getName()).getMethod("forGems", File.class).invoke(null, createGemsDir("compiled"));
+
+        isolatedPool.getClass().getMethod("setCompileRubySources", boolean.class).invoke(isolatedPool, true);
+
+        final File codeCache = (File) isolatedPool.getClass().getMethod("getCodeCacheDirectory").invoke(isolatedPool);
+        assertEquals(codeCache.getAbsolutePath(), loader.loadClass("org.jruby.RubyInstanceConfig").getField("JIT_CODE_CACHE").get(null));
+        assertEquals(true, isolatedPool.getClass().getMethod("isCodeCacheInUse").invoke(isolatedPool));
+    }
+
+    @Test
+    public void shouldNotUseCodeCacheWhenJRubyAlreadyStartedWithout() throws Exception {
+        final ClassLoader loader = newJRubyClassLoader();
+        Class.forName("org.jruby.RubyInstanceConfig", true, loader);
+        final Object isolatedPool = loader.loadClass(ScriptingContainerPool.class.getName()).getMethod("forGems", File.class).invoke(null, createGemsDir("compiled"));
+
+        isolatedPool.getClass().getMethod("setCompileRubySources", boolean.class).invoke(isolatedPool, true);
+
+        assertEquals(false, isolatedPool.getClass().getMethod("isCodeCacheInUse").invoke(isolatedPool));
+    }
+
+    @Test
+    public void shouldDiscardIdleContainersWhenCompileModeChanges() throws Exception {
+        final ScriptingContainer container = pool.acquire();
+        pool.release(container);
+
+        pool.setCompileRubySources(true);
+
+        assertEquals(0, pool.getIdleCount());
+        assertNotSame(container, pool.acquire());
+    }
+
+    private File createGemsDir(String name) throws Exception {
+        final File gemsDir = temporaryFolder.newFolder(name);
+        FileUtils.writeStringToFile(new File(gemsDir, "gems/calabash-android-0.4.21/lib/calabash-android.rb"),
+                "$fakeCalabashLoaded = true\n$fakeCalabashLoadedOn = java.lang.Thread.currentThread.getName\n");
+        return gemsDir;
+    }
+
+    /**
+     * Loads JRuby and the pool again, so that JRuby reads its configuration as if the JVM had just started
+     */
+    private ClassLoader newJRubyClassLoader() throws Exception {
+        final List<URL> urls = new ArrayList<URL>();
+        for (String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+            urls.add(new File(entry).toURI().toURL());
+        }
+        return new URLClassLoader(urls.toArray(new URL[urls.size()]), ClassLoader.getSystemClassLoader().getParent());
+    }
+}
@@ -0,0 +1,83 @@
+package com.thoughtworks.calabash.android.unit;
+
+import com.thoughtworks.calabash.android.CalabashException;
+import com.thoughtworks.calabash.android.SetupCache;
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+
+import static org.junit.Assert.*;
+
+public class SetupCacheTest {
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void shouldRestoreResignedAppAndTestServerInAnotherWorkspace() throws Exception {
+        final SetupCache cache = new SetupCache(temporaryFolder.newFolder("cache"));
+        final File keystore = write(temporaryFolder.newFile("debug.keystore"), "keystore");
+        final File workspace = temporaryFolder.newFolder("workspace");
+        final File apk = write(new File(workspace, "app.apk"), "original app");
+        final String key = SetupCache.key(apk, keystore, "calabash-android-0.4.21");
+
+        write(apk, "resigned app");
+        final File testServer = write(new File(workspace, "test_servers/" + md5("resigned app") + "_0.4.21.apk"), "test server");
+        write(new File(workspace, "test_servers/someotherapp_0.4.21.apk"), "other test server");
+        cache.store(key, SetupCache.key(apk, keystore, "calabash-android-0.4.21"), apk, testServer.getParentFile());
+
+        final File otherWorkspace = temporaryFolder.newFolder("other-workspace");
+        final File otherApk = write(new File(otherWorkspace, "app.apk"), "original app");
+        final File otherTestServers = new File(otherWorkspace, "test_servers");
+
+        assertTrue(cache.restore(SetupCache.key(otherApk, keystore, "calabash-android-0.4.21"), otherApk, otherTestServers));
+        assertEquals("resigned app", FileUtils.readFileToString(otherApk));
+        assertEquals("test server", FileUtils.readFileToString(new File(otherTestServers, testServer.getName())));
+        assertFalse(new File(otherTestServers, "someotherapp_0.4.21.apk").exists());
+    }
+
+    @Test
+    public void shouldFindEntryUsingTheResignedApp() throws Exception {
+        final SetupCache cache = new SetupCache(temporaryFolder.newFolder("cache"));
+        final File workspace = temporaryFolder.newFolder("workspace");
+        final File apk = write(new File(workspace, "app.apk"), "original app");
+        final String key = SetupCache.key(apk, null, "calabash-android-0.4.21");
+        write(apk, "resigned app");
+        write(new File(workspace, "test_servers/" + md5("resigned app") + "_0.4.21.apk"), "test server");
+        final String resignedKey = SetupCache.key(apk, null, "calabash-android-0.4.21");
+        cache.store(key, resignedKey, apk, new File(workspace, "test_servers"));
+
+        final File otherApk = write(new File(temporaryFolder.newFolder("other-workspace"), "app.apk"), "resigned app");
+
+        assertTrue(cache.restore(resignedKey, otherApk, new File(otherApk.getParentFile(), "test_servers")));
+    }
+
+    @Test
+    public void shouldMissWhenKeystoreOrVersionChanges() throws Exception {
+        final File apk = write(temporaryFolder.newFile("app.apk"), "app");
+        final File keystore = write(temporaryFolder.newFile("debug.keystore"), "keystore");
+        final File otherKeystore = write(temporaryFolder.newFile("other.keystore"), "other keystore");
+
+        final String key = SetupCache.key(apk, keystore, "calabash-android-0.4.21");
+
+        assertEquals(key, SetupCache.key(apk, keystore, "calabash-android-0.4.21"));
+        assertFalse(key.equals(SetupCache.key(apk, otherKeystore, "calabash-android-0.4.21")));
+        assertFalse(key.equals(SetupCache.key(apk, keystore, "calabash-android-0.5.0")));
+        assertFalse(new SetupCache(temporaryFolder.newFolder("cache")).restore(key, apk, temporaryFolder.newFolder("test_servers")));
+    }
+
+    private File write(File file, String content) throws IOException {
+        FileUtils.writeStringToFile(file, content);
+        return file;
+    }
+
+    private String md5(String content) throws Exception {
+        final byte[] digest = MessageDigest.getInstance("MD5").digest(content.getBytes("UTF-8"));
+        return String.format("%032x", new BigInteger(1, digest));
+    }
+}
@@ -0,0 +1,59 @@
+package com.thoughtworks.calabash.android.unit;
+
+import com.thoughtworks.calabash.android.StartupTimings;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class StartupTimingsTest {
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void shouldRecordPhasesInTheOrderTheyEnd() throws Exception {
+        final StartupTimings timings = new StartupTimings();
+        final long gemExtractionStart = System.nanoTime();
+        final long resignStart = System.nanoTime();
+        Thread.sleep(20);
+        timings.record(StartupTimings.RESIGN, resignStart);
+        timings.record(StartupTimings.GEM_EXTRACTION, gemExtractionStart);
+
+        assertEquals(Arrays.asList(StartupTimings.RESIGN, StartupTimings.GEM_EXTRACTION), new ArrayList<String>(timings.getDurationsInMs().keySet()));
+        assertTrue(timings.getDurationInMs(StartupTimings.RESIGN) >= 20);
+        assertTrue(timings.getElapsedInMs() >= timings.getDurationInMs(StartupTimings.GEM_EXTRACTION));
+        assertNull(timings.getDurationInMs(StartupTimings.BUILD));
+    }
+
+    @Test
+    public void shouldReplacePhaseRecordedAgain() throws Exception {
+        final StartupTimings timings = new StartupTimings();
+        timings.record(StartupTimings.INSTALL, System.nanoTime() - 5000000000L);
+        timings.record(StartupTimings.SERVER_START, System.nanoTime());
+        timings.record(StartupTimings.INSTALL, System.nanoTime());
+
+        assertEquals(2, timings.getDurationsInMs().size());
+        assertTrue(timings.getDurationInMs(StartupTimings.INSTALL) < 5000);
+    }
+
+    @Test
+    public void shouldWriteTimingsAsJson() throws Exception {
+        final StartupTimings timings = new StartupTimings();
+        timings.record(StartupTimings.BUILD, System.nanoTime() - 3000000000L);
+        final File file = new File(temporaryFolder.getRoot(), StartupTimings.FILE_NAME);
+
+        timings.writeTo(file);
+
+        final Map<?, ?> json = new ObjectMapper().readValue(file, Map.class);
+        assertEquals(timings.getCreatedAt(), ((Number) json.get("createdAt")).longValue());
+        final Map<?, ?> phases = (Map<?, ?>) json.get("phases");
+        assertTrue(((Number) phases.get(StartupTimings.BUILD)).longValue() >= 3000);
+    }
+}
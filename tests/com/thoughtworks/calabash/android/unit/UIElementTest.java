@@ -3,9 +3,12 @@ package com.thoughtworks.calabash.android.unit;
 import com.thoughtworks.calabash.android.CalabashWrapper;
 import com.thoughtworks.calabash.android.UIElement;
 import org.jruby.RubyArray;
+import org.jruby.RubyHash;
 import org.junit.Test;
 
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 
 import static org.junit.Assert.assertEquals;
 import static org.mockito.Mockito.*;
@@ -35,4 +38,32 @@ public class UIElementTest {
         verify(wrapper).query("query", contentDescriptionField);
         assertEquals(contentDescriptionValue, contentDescription);
     }
+
+    @Test
+    public void shouldConvertRubyPropertiesOnlyWhenRead() throws Exception {
+        final RubyHash data = mock(RubyHash.class);
+        final CalabashWrapper wrapper = mock(CalabashWrapper.class);
+        when(data.get("text")).thenReturn("Login");
+        final UIElement element = new UIElement(data, "query", wrapper);
+
+        assertEquals("Login", element.getText());
+        assertEquals("Login", element.getText());
+
+        verify(data, times(1)).get("text");
+        verify(data, never()).keySet();
+    }
+
+    @Test
+    public void shouldKeepPropertiesAfterMaterializing() throws Exception {
+        final RubyHash data = mock(RubyHash.class);
+        final CalabashWrapper wrapper = mock(CalabashWrapper.class);
+        when(data.keySet()).thenReturn(new HashSet<Object>(Arrays.asList("id", "text")));
+        when(data.get("id")).thenReturn("login_button");
+        when(data.get("text")).thenReturn("Login");
+        final UIElement element = new UIElement(data, "query", wrapper).materialize();
+
+        assertEquals("login_button", element.getId());
+        assertEquals("Login", element.getText());
+        verify(data, times(1)).get("text");
+    }
 }
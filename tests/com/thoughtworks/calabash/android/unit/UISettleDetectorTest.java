@@ -0,0 +1,116 @@
+package com.thoughtworks.calabash.android.unit;
+
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+import com.thoughtworks.calabash.android.CalabashException;
+import com.thoughtworks.calabash.android.CalabashHttpClient;
+import com.thoughtworks.calabash.android.CalabashWrapper;
+import com.thoughtworks.calabash.android.UISettleDetector;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.stubFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.*;
+
+public class UISettleDetectorTest {
+    private static final int TEST_SERVER_PORT = 34777;
+    @Rule
+    public WireMockRule wireMockRule = new WireMockRule(TEST_SERVER_PORT);
+
+    @Test
+    public void shouldReturnOnceConsecutiveDumpsAreIdentical() throws CalabashException {
+        final CalabashHttpClient httpClient = mock(CalabashHttpClient.class);
+        when(httpClient.getViewDump(anyInt())).thenReturn("{\"a\":1}", "{\"a\":2}", "{\"a\":2}", "{\"a\":3}");
+        final UISettleDetector detector = new UISettleDetector(httpClient, 5000, 1, 2);
+
+        final long settleTime = detector.waitForSettle();
+
+        verify(httpClient, times(3)).getViewDump(anyInt());
+        assertTrue(settleTime < 5000);
+        assertEquals(settleTime, detector.getLastSettleTimeInMs());
+    }
+
+    @Test
+    public void shouldGiveUpAfterTheCeiling() throws CalabashException {
+        final CalabashHttpClient httpClient = mock(CalabashHttpClient.class);
+        when(httpClient.getViewDump(anyInt())).thenAnswer(new Answer<String>() {
+            public String answer(InvocationOnMock invocation) {
+                return String.valueOf(System.nanoTime());
+            }
+        });
+        final UISettleDetector detector = new UISettleDetector(httpClient, 100, 5, 2);
+
+        final long settleTime = detector.waitForSettle();
+
+        assertTrue(settleTime >= 100);
+    }
+
+    @Test
+    public void shouldNotSettleWhileViewDumpFails() throws CalabashException {
+        final CalabashHttpClient httpClient = mock(CalabashHttpClient.class);
+        when(httpClient.getViewDump(anyInt())).thenThrow(new CalabashException("Could not fetch view dump. Connection refused"));
+        final UISettleDetector detector = new UISettleDetector(httpClient, 100, 5, 2);
+
+        final long settleTime = detector.waitForSettle();
+
+        assertTrue(settleTime >= 100);
+    }
+
+    @Test
+    public void shouldNotCountFailedDumpAsStable() throws CalabashException {
+        final CalabashHttpClient httpClient = mock(CalabashHttpClient.class);
+        when(httpClient.getViewDump(anyInt()))
+                .thenReturn("{\"a\":1}")
+                .thenThrow(new CalabashException("Could not fetch view dump. Read timed out"))
+                .thenReturn("{\"a\":1}", "{\"a\":1}");
+        final UISettleDetector detector = new UISettleDetector(httpClient, 5000, 1, 2);
+
+        detector.waitForSettle();
+
+        verify(httpClient, times(4)).getViewDump(anyInt());
+    }
+
+    @Test
+    public void shouldTakeFirstSampleAfterOneInterval() throws CalabashException {
+        final CalabashHttpClient httpClient = mock(CalabashHttpClient.class);
+        final long[] firstSampleAt = new long[]{-1};
+        when(httpClient.getViewDump(anyInt())).thenAnswer(new Answer<String>() {
+            public String answer(InvocationOnMock invocation) {
+                if (firstSampleAt[0] == -1)
+                    firstSampleAt[0] = System.currentTimeMillis();
+                return "{}";
+            }
+        });
+        final UISettleDetector detector = new UISettleDetector(httpClient, 5000, 100, 2);
+        final long start = System.currentTimeMillis();
+
+        detector.waitForSettle();
+
+        assertTrue(firstSampleAt[0] - start >= 100);
+        assertFalse(detector.getLastSettleTimeInMs() >= 5000);
+    }
+
+    @Test
+    public void shouldNotWaitForSlowViewDumpPastTheCeiling() throws CalabashException {
+        stubFor(get(urlEqualTo("/dump"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withFixedDelay(5000)
+                        .withBody("{}")));
+        final CalabashWrapper wrapper = mock(CalabashWrapper.class);
+        when(wrapper.getTestServerPort()).thenReturn(String.valueOf(TEST_SERVER_PORT));
+        final UISettleDetector detector = new UISettleDetector(new CalabashHttpClient(wrapper), 500, 10, 2);
+
+        final long settleTime = detector.waitForSettle();
+
+        assertTrue(settleTime >= 500);
+        assertTrue(settleTime < 2000);
+    }
+}